@@ -0,0 +1,67 @@
+package co.joyatwork.pedometer.android;
+
+import co.joyatwork.pedometer.SampleSource;
+import co.joyatwork.pedometer.StepCounter;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+/**
+ * Feeds step counter by accelerometer samples, samples are delivered on the thread of given handler.
+ */
+public class AccelerometerSampleSource implements SampleSource {
+
+	private static final long NANO_TO_MILISECONDS = 1000000;
+
+	private final SensorManager sensorManager;
+	private final Sensor sensor;
+	private final Handler handler;
+	private final int samplingPeriod;
+	private StepCounter stepCounter;
+
+	private final SensorEventListener accelerometerListener = new SensorEventListener() {
+
+		@Override
+		public void onSensorChanged(SensorEvent event) {
+			//TODO check if correct sensor is calling
+			long currentSampleTime = event.timestamp / NANO_TO_MILISECONDS;
+			// StepCounter does not keep the reference to samples, no need to copy the values
+			stepCounter.countSteps(event.values, currentSampleTime);
+		}
+
+		@Override
+		public void onAccuracyChanged(Sensor sensor, int accuracy) {
+			// TODO Auto-generated method stub
+		}
+	};
+
+	/**
+	 * @param samplingPeriod - SensorManager.SENSOR_DELAY_* constant or period in us,
+	 * e.g. 50000 for 20 Hz with StepCounter windows derived from the sample rate
+	 */
+	public AccelerometerSampleSource(Context context, Handler handler, int samplingPeriod) {
+		this.sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+		this.sensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+		this.handler = handler;
+		this.samplingPeriod = samplingPeriod;
+	}
+
+	public AccelerometerSampleSource(Context context, Handler handler) {
+		this(context, handler, SensorManager.SENSOR_DELAY_GAME);
+	}
+
+	@Override
+	public void start(StepCounter stepCounter) {
+		this.stepCounter = stepCounter;
+		sensorManager.registerListener(accelerometerListener, sensor, samplingPeriod, handler);
+	}
+
+	@Override
+	public void stop() {
+		sensorManager.unregisterListener(accelerometerListener);
+	}
+
+}
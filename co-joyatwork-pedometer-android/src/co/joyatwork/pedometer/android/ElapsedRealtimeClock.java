@@ -0,0 +1,16 @@
+package co.joyatwork.pedometer.android;
+
+import co.joyatwork.pedometer.Clock;
+import android.os.SystemClock;
+
+/**
+ * Monotonic clock of Android, counts also time spent in deep sleep.
+ */
+public class ElapsedRealtimeClock implements Clock {
+
+	@Override
+	public long getTimeInMilis() {
+		return SystemClock.elapsedRealtime();
+	}
+
+}
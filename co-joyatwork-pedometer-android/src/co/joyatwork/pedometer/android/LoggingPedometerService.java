@@ -1,368 +1,570 @@
-package co.joyatwork.pedometer.android;
-
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
-
-import co.joyatwork.pedometer.StepCounter;
-import co.joyatwork.pedometer.StepCounter.StepCounterListener;
-import android.annotation.SuppressLint;
-import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.res.Configuration;
-import android.os.IBinder;
-import android.os.SystemClock;
-import android.preference.PreferenceManager;
-import android.text.format.DateFormat;
-import android.util.Log;
-
-public abstract class LoggingPedometerService extends PedometerService {
-
-	private final static String TAG = "LoggingPedometerService";
-    private static final char CSV_DELIM = ',';
-    private static final String CSV_HEADER_SERVICE_FILE = "Time,Event";
-    private StringBuffer serviceLogString;
-	private long countStepsCallCounter = 0;
-	private	long lastCountStepsCallTimeInMilis = 0;
-	
-	private final class LoggingStepCounter extends StepCounter {
-
-		public LoggingStepCounter(StepCounter.StepCounterListener l) {
-			super(l);
-			initializeLogging();
-		}
-
-	    @Override
-		public void countSteps(float[] accelerationSamples, long sampleTimeInMilis) {
-			super.countSteps(accelerationSamples, sampleTimeInMilis);
-			writeLogIfEnabled(sampleTimeInMilis, accelerationSamples);
-			countStepsCallCounter++;
-			lastCountStepsCallTimeInMilis = SystemClock.elapsedRealtime();
-			//Log.d(TAG, "countSteps " + sampleTimeInMilis);
-		}
-
-	    private static final String CSV_HEADER_FILTER_OUTPUT_FILE =
-	            "Time,X-sensor,X-filter,Y-sensor,Y-filter,Z-sensor,Z-filter";
-	    private static final String CSV_HEADER_STEPS_FILE =
-	    		"Time,X-Avg,X-Thld,X-Step,X-Int,X-AvgInt,X-Var,X-Val,Y-Avg,Y-Thld,Y-Step,Y-Int,Y-AvgInt,Y-Var,Y-Val,Z-Avg,Z-Thld,Z-Step,Z-Int,Z-AvgInt,Z-Var,Z-Val";
-	    private static final String CSV_HEADER_PEAK_DETECTION_FILE =
-	            "Time,X-val,X-currPeak,X-fixedPeak,Y-val,Y-currPeak,Y-fixedPeak,Z-val,Z-currPeak,Z-fixedPeak";
-
-		private PrintWriter filterOutputLogWriter = null;
-		private PrintWriter stepsDataWriter = null;
-		private PrintWriter peakDetectionLogWriter = null;
-		private long startTime;
-		private int[] oldCrossingThresholdCounts = new int[3];
-		private float[] stepFlip = new float[3];
-		private StringBuffer stringBuffer;
-
-		private void initializeLogging() {
-			// Data files are stored on the external cache directory so they can
-	        // be pulled off of the device by the user
-	        File filterOutputLogFile = new File(getExternalCacheDir(), "filters.csv");
-	        File stepsDataFile = new File(getExternalCacheDir(), "steps.csv");
-	        File peakDetectionLogFile = new File(getExternalCacheDir(), "peaks.csv");
-			try {
-				//FileWriter calls directly OS for every write request
-				//For better performance the FileWriter is wrapped into BufferedWriter, which calls out for a batch of bytes
-				//PrintWriter allows a human-readable writing into a file
-				filterOutputLogWriter = new PrintWriter(new BufferedWriter(new FileWriter(filterOutputLogFile)));
-				filterOutputLogWriter.println(CSV_HEADER_FILTER_OUTPUT_FILE);
-
-				stepsDataWriter = new PrintWriter(new BufferedWriter(new FileWriter(stepsDataFile)));
-				stepsDataWriter.println(CSV_HEADER_STEPS_FILE);
-				
-				peakDetectionLogWriter = new PrintWriter(new BufferedWriter(new FileWriter(peakDetectionLogFile)));
-				peakDetectionLogWriter.println(CSV_HEADER_PEAK_DETECTION_FILE);
-
-			} catch (IOException e) {
-				Log.e(TAG, "Could not open CSV file(s)", e);
-			}
-
-			startTime = SystemClock.uptimeMillis();
-			
-			for (int i = 0; i < 3; i++) {
-				oldCrossingThresholdCounts[i] = 0;
-				stepFlip[i] = -0.5F;
-			}
-			
-			stringBuffer = new StringBuffer();
-		}
-
-		private void writeLogIfEnabled(long sampleTimeInMillis, float[] values) {
-			if (settings.getBoolean("logging", false)) {
-				Log.d("LoggingPedometerService", "logging");
-				writeFilterOutputData(sampleTimeInMillis, values);
-				writePeakDetectionData(sampleTimeInMillis);
-				writeStepDetectionData(sampleTimeInMillis);
-			}
-		}
-		
-		private void writeFilterOutputData(long sampleTimeInMillis, float[] values) {
-
-			if (filterOutputLogWriter != null) {
-				long timeStampInMilis = sampleTimeInMillis - startTime;
-				stringBuffer.delete(0, stringBuffer.length())
-					.append(timeStampInMilis).append(CSV_DELIM)
-					.append(values[0]).append(CSV_DELIM) // x
-					.append(getSmoothedAcceleration(0)).append(CSV_DELIM)
-					.append(values[1]).append(CSV_DELIM) // y
-					.append(getSmoothedAcceleration(1)).append(CSV_DELIM)
-					.append(values[2]).append(CSV_DELIM) // z
-					.append(getSmoothedAcceleration(2))
-					;
-
-				filterOutputLogWriter.println(stringBuffer.toString());
-				if (filterOutputLogWriter.checkError()) {
-					Log.w(TAG, "Error writing filter output log");
-				}
-			}
-
-		}
-		
-		private void writePeakDetectionData(long sampleTimeInMillis) {
-
-			if (peakDetectionLogWriter != null) {
-				long timeStampInMilis = sampleTimeInMillis - startTime;
-				stringBuffer.delete(0, stringBuffer.length())
-					.append(timeStampInMilis).append(CSV_DELIM)
-					.append(getSmoothedAcceleration(0)).append(CSV_DELIM)
-					.append(getCurrentPeak2PeakValue(0)).append(CSV_DELIM)
-					.append(getFixedPeak2PeakValue(0)).append(CSV_DELIM)
-					.append(getSmoothedAcceleration(1)).append(CSV_DELIM)
-					.append(getCurrentPeak2PeakValue(1)).append(CSV_DELIM)
-					.append(getFixedPeak2PeakValue(1)).append(CSV_DELIM)
-					.append(getSmoothedAcceleration(2)).append(CSV_DELIM)
-					.append(getCurrentPeak2PeakValue(2)).append(CSV_DELIM)
-					.append(getFixedPeak2PeakValue(2))
-					;
-
-				peakDetectionLogWriter.println(stringBuffer.toString());
-				if (peakDetectionLogWriter.checkError()) {
-					Log.w(TAG, "Error writing peak detection log");
-				}
-			}
-
-		}
-		
-		private void writeStepDetectionData(long sampleTimeInMillis) {
-			flipSteps();
-			
-			if (stepsDataWriter != null) {
-				long timeStampInMilis = sampleTimeInMillis - startTime;
-				stringBuffer.delete(0, stringBuffer.length())
-					.append(timeStampInMilis).append(CSV_DELIM)
-					.append(getSmoothedAcceleration(0)).append(CSV_DELIM)
-					.append(getThresholdValue(0)).append(CSV_DELIM)
-					.append(stepFlip[0]).append(CSV_DELIM)
-					.append(getStepInterval(0)).append(CSV_DELIM)
-					.append(getAvgStepInterval(0)).append(CSV_DELIM)
-					.append(getStepIntervalVariance(0)).append(CSV_DELIM)
-					.append(hasValidSteps(0)).append(CSV_DELIM)
-					.append(getSmoothedAcceleration(1)).append(CSV_DELIM)
-					.append(getThresholdValue(1)).append(CSV_DELIM)
-					.append(stepFlip[1]).append(CSV_DELIM)
-					.append(getStepInterval(1)).append(CSV_DELIM)
-					.append(getAvgStepInterval(1)).append(CSV_DELIM)
-					.append(getStepIntervalVariance(1)).append(CSV_DELIM)
-					.append(hasValidSteps(1)).append(CSV_DELIM)
-					.append(getSmoothedAcceleration(2)).append(CSV_DELIM)
-					.append(getThresholdValue(2)).append(CSV_DELIM)
-					.append(stepFlip[2]).append(CSV_DELIM)
-					.append(getStepInterval(2)).append(CSV_DELIM)
-					.append(getAvgStepInterval(2)).append(CSV_DELIM)
-					.append(getStepIntervalVariance(2)).append(CSV_DELIM)
-					.append(hasValidSteps(2))
-					/*
-					.append(CSV_DELIM)
-					.append(getFixedMinValue(0)).append(CSV_DELIM)
-					.append(getFixedMaxValue(0)).append(CSV_DELIM)
-					.append(getFixedMinValue(1)).append(CSV_DELIM)
-					.append(getFixedMaxValue(1)).append(CSV_DELIM)
-					.append(getFixedMinValue(2)).append(CSV_DELIM)
-					.append(getFixedMaxValue(2)).append(CSV_DELIM)
-					*/
-					;
-
-				stepsDataWriter.println(stringBuffer.toString());
-				if (stepsDataWriter.checkError()) {
-					Log.w(TAG, "Error writing step detection log");
-				}
-			}
-		}
-
-		private void flipSteps() {
-			int[] crossingThresholdCounts = new int[3];
-			for (int i = 0; i < 3; i++) {
-				crossingThresholdCounts[i] = getCrossingThresholdCount(i);
-			}
-			
-			if (oldCrossingThresholdCounts[0] != crossingThresholdCounts[0]) {
-				stepFlip[0] *= -1;
-			}
-			if (oldCrossingThresholdCounts[1] != crossingThresholdCounts[1]) {
-				stepFlip[1] *= -1;
-			}
-			if (oldCrossingThresholdCounts[2] != crossingThresholdCounts[2]) {
-				stepFlip[2] *= -1;
-			}
-			for (int i = 0; i < 3; i++) {
-				oldCrossingThresholdCounts[i] = crossingThresholdCounts[i];
-			}
-		}
-	}
-
-	private SharedPreferences settings;
-	private PrintWriter serviceLogWriter;
-	private long onCreateTimeInMilis;
-
-	@Override
-	public void onCreate() {
-		super.onCreate();
-		
-		settings = PreferenceManager.getDefaultSharedPreferences(this);
-		
-		File serviceLogFile = new File(getExternalCacheDir(), "service.csv");
-		try {
-			//FileWriter calls directly OS for every write request
-			//For better performance the FileWriter is wrapped into BufferedWriter, which calls out for a batch of bytes
-			//PrintWriter allows a human-readable writing into a file
-			if (serviceLogFile.exists()) {
-				serviceLogWriter = new PrintWriter(new BufferedWriter(new FileWriter(serviceLogFile, true)));
-			}
-			else {
-				serviceLogWriter = new PrintWriter(new BufferedWriter(new FileWriter(serviceLogFile)));
-				serviceLogWriter.println(CSV_HEADER_SERVICE_FILE);
-			}
-		} catch (IOException e) {
-			Log.e(TAG, "Could not open service log file", e);
-		}
-		
-		serviceLogString = new StringBuffer();
-		
-		onCreateTimeInMilis = SystemClock.elapsedRealtime();
-		
-		Log.d(TAG, "onCreate()");
-		logServiceEvent("onCreate");
-
-	}
-
-	@Override
-	protected StepCounter createStepCounter(StepCounterListener listener) {
-		return new LoggingStepCounter(listener);
-	}
-
-	@Override
-	public int onStartCommand(Intent intent, int flags, int startId) {
-		Log.d(TAG, "onStartCommand(" 
-				+ (intent != null ? intent.toString() : "null") 
-				+ ", " 
-				+ flags 
-				+ ", " 
-				+ startId 
-				+ ")");
-		StringBuffer eventRecord = new StringBuffer()
-			.append("onStartCommand::")
-			.append("last countSteps called before:")
-			.append((lastCountStepsCallTimeInMilis != 0) ? (SystemClock.elapsedRealtime() - lastCountStepsCallTimeInMilis) : "?")
-			.append("ms::")
-			;
-		Log.d(TAG, eventRecord.toString());
-		logServiceEvent(eventRecord.toString());
-		return super.onStartCommand(intent, flags, startId);
-	}
-
-	@Override
-	public void onDestroy() {
-		super.onDestroy();
-		long elapsedRealtimeInMilis = SystemClock.elapsedRealtime();
-		long elapsedTimeInMilis = elapsedRealtimeInMilis - onCreateTimeInMilis;
-		long elapsedTimeInSec = elapsedTimeInMilis / 1000;
-		float countStepsCallRate = ((float)countStepsCallCounter / elapsedTimeInMilis) * 1000;
-		StringBuffer eventRecord = new StringBuffer()
-			.append("onDestroy::")
-			.append("elapsed time:")
-			.append(elapsedTimeInSec)
-			.append("s::")
-			.append("countSteps called:")
-			.append(countStepsCallCounter)
-			.append("x::")
-			.append("at rate:")
-			.append((float)Math.round(countStepsCallRate * 100) / 100)
-			.append("Hz::")
-			.append("last countSteps called before:")
-			.append((lastCountStepsCallTimeInMilis != 0) ? (elapsedRealtimeInMilis - lastCountStepsCallTimeInMilis) : "?")
-			.append("ms::")
-			;
-		logServiceEvent(eventRecord.toString());
-		Log.d(TAG, eventRecord.toString());
-		
-	}
-
-	@Override
-	public void onRebind(Intent intent) {
-		super.onRebind(intent);
-		Log.d(TAG, "onRebind()");
-		logServiceEvent("onRebind");
-	}
-
-	@Override
-	public boolean onUnbind(Intent intent) {
-		Log.d(TAG, "onUnbind()");
-		logServiceEvent("onUnbind");
-		return super.onUnbind(intent);
-	}
-
-	@Override
-	public IBinder onBind(Intent arg0) {
-		Log.d(TAG, "onBind()");
-		logServiceEvent("onBind");
-		return null;
-	}
-
-	@Override
-	public void onConfigurationChanged(Configuration newConfig) {
-		super.onConfigurationChanged(newConfig);
-		Log.d(TAG, "onConfigurationChanged()");
-		logServiceEvent("onConfigurationChanged");
-	}
-
-	@Override
-	public void onLowMemory() {
-		super.onLowMemory();
-		Log.d(TAG, "onLowMemory()");
-		logServiceEvent("onLowMemory");
-	}
-
-	@SuppressLint("NewApi")
-	@Override
-	public void onTaskRemoved(Intent rootIntent) {
-		super.onTaskRemoved(rootIntent);
-		Log.d(TAG, "onTaskRemoved()");
-		logServiceEvent("onTaskRemoved");
-	}
-
-	@SuppressLint("NewApi")
-	@Override
-	public void onTrimMemory(int level) {
-		super.onTrimMemory(level);
-		Log.d(TAG, "onTrimMemory() level: " + level);
-		logServiceEvent("onTrimMemory");
-	}
-
-	private void logServiceEvent(String event) {
-		if (serviceLogWriter != null) {
-			String timeStamp = DateFormat.format("hh:mm:ssaa dd/MM/yyyy", System.currentTimeMillis()).toString();
-			serviceLogString.delete(0, serviceLogString.length())
-				.append(timeStamp).append(CSV_DELIM)
-				.append(event)
-				;
-			serviceLogWriter.println(serviceLogString.toString());
-			if (serviceLogWriter.checkError()) {
-				Log.w(TAG, "Error writing service log");
-			}
-		}
-	}
-}
+package co.joyatwork.pedometer.android;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import co.joyatwork.pedometer.RecordingWriter;
+import co.joyatwork.pedometer.SnapshotRing;
+import co.joyatwork.pedometer.StepCounter;
+import co.joyatwork.pedometer.StepCounterMetrics;
+import co.joyatwork.pedometer.StepCounterSnapshot;
+import co.joyatwork.pedometer.StepCounter.StepCounterListener;
+import android.annotation.SuppressLint;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Configuration;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.text.format.DateFormat;
+import android.util.Log;
+
+public abstract class LoggingPedometerService extends PedometerService {
+
+	private final static String TAG = "LoggingPedometerService";
+    private static final char CSV_DELIM = ',';
+    private static final String CSV_HEADER_SERVICE_FILE = "Time,Event";
+    private static final String LOGGING_PREFERENCE = "logging";
+    private static final int LOG_RING_CAPACITY = 1024; // ~20s of samples at SENSOR_DELAY_GAME rate
+    private static final int LOG_WRITER_BATCH_SIZE = 256;
+    private static final long LOG_WRITER_IDLE_TIME = 200; //ms
+    private StringBuffer serviceLogString;
+	private long countStepsCallCounter = 0;
+	private	long lastCountStepsCallTimeInMilis = 0;
+	// cached logging preference, read on HelperThread for every sample
+	private volatile boolean isLoggingEnabled = false;
+	private LoggingStepCounter loggingStepCounter;
+	
+	/**
+	 * Step counter which logs its state for every sample.
+	 * The state is copied into a lock-free ring on HelperThread and written to files 
+	 * by LogWriterThread, so a slow file write does not stall step detection.
+	 */
+	private final class LoggingStepCounter extends StepCounter implements SnapshotRing.SnapshotHandler {
+
+		private final SnapshotRing logRing = new SnapshotRing(LOG_RING_CAPACITY);
+		// enabled only while logging, kept to sum up counts of all logging periods
+		private final StepCounterMetrics metrics = new StepCounterMetrics();
+		private volatile boolean isLogWriterRunning;
+		private Thread logWriterThread;
+
+		public LoggingStepCounter(StepCounter.StepCounterListener l) {
+			super(l);
+			initializeLogging();
+			startLogWriter();
+		}
+
+	    @Override
+		public void countSteps(float[] accelerationSamples, long sampleTimeInMilis) {
+			updateMetricsEnabled();
+			super.countSteps(accelerationSamples, sampleTimeInMilis);
+			logIfEnabled();
+			countStepsCallCounter++;
+			lastCountStepsCallTimeInMilis = SystemClock.elapsedRealtime();
+			//Log.d(TAG, "countSteps " + sampleTimeInMilis);
+		}
+
+	    private static final String CSV_HEADER_FILTER_OUTPUT_FILE =
+	            "Time,X-sensor,X-filter,Y-sensor,Y-filter,Z-sensor,Z-filter";
+	    private static final String CSV_HEADER_STEPS_FILE =
+	    		"Time,X-Avg,X-Thld,X-Step,X-Int,X-AvgInt,X-Var,X-Val,Y-Avg,Y-Thld,Y-Step,Y-Int,Y-AvgInt,Y-Var,Y-Val,Z-Avg,Z-Thld,Z-Step,Z-Int,Z-AvgInt,Z-Var,Z-Val";
+	    private static final String CSV_HEADER_PEAK_DETECTION_FILE =
+	            "Time,X-val,X-currPeak,X-fixedPeak,Y-val,Y-currPeak,Y-fixedPeak,Z-val,Z-currPeak,Z-fixedPeak";
+
+		private PrintWriter filterOutputLogWriter = null;
+		private PrintWriter stepsDataWriter = null;
+		private PrintWriter peakDetectionLogWriter = null;
+		private RecordingWriter recordingWriter = null; // binary log replacing CSV files if enabled
+		private long startTime;
+		private int[] oldCrossingThresholdCounts = new int[3];
+		private float[] stepFlip = new float[3];
+		private StringBuffer stringBuffer;
+
+		private void initializeLogging() {
+			startTime = SystemClock.uptimeMillis();
+			
+			for (int i = 0; i < 3; i++) {
+				oldCrossingThresholdCounts[i] = 0;
+				stepFlip[i] = -0.5F;
+			}
+			
+			stringBuffer = new StringBuffer();
+
+			// called from super.onCreate(), settings field is not initialized yet
+			SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(LoggingPedometerService.this);
+			if (preferences.getBoolean("binary_logging", false)) {
+				initializeBinaryLogging(preferences.getBoolean("quantized_logging", true));
+			}
+			else {
+				initializeCsvLogging();
+			}
+		}
+
+		/**
+		 * Binary records are written to memory-mapped segments in recording directory,
+		 * RecordingCsvConverter converts them to the CSV files offline.
+		 */
+		private void initializeBinaryLogging(boolean quantized) {
+			File recordingDirectory = new File(getExternalCacheDir(), "recording");
+			recordingDirectory.mkdirs();
+			try {
+				recordingWriter = new RecordingWriter(recordingDirectory, quantized, startTime);
+			} catch (IOException e) {
+				Log.e(TAG, "Could not open recording", e);
+			}
+		}
+
+		private void initializeCsvLogging() {
+			// Data files are stored on the external cache directory so they can
+	        // be pulled off of the device by the user
+	        File filterOutputLogFile = new File(getExternalCacheDir(), "filters.csv");
+	        File stepsDataFile = new File(getExternalCacheDir(), "steps.csv");
+	        File peakDetectionLogFile = new File(getExternalCacheDir(), "peaks.csv");
+			try {
+				//FileWriter calls directly OS for every write request
+				//For better performance the FileWriter is wrapped into BufferedWriter, which calls out for a batch of bytes
+				//PrintWriter allows a human-readable writing into a file
+				filterOutputLogWriter = new PrintWriter(new BufferedWriter(new FileWriter(filterOutputLogFile)));
+				filterOutputLogWriter.println(CSV_HEADER_FILTER_OUTPUT_FILE);
+
+				stepsDataWriter = new PrintWriter(new BufferedWriter(new FileWriter(stepsDataFile)));
+				stepsDataWriter.println(CSV_HEADER_STEPS_FILE);
+				
+				peakDetectionLogWriter = new PrintWriter(new BufferedWriter(new FileWriter(peakDetectionLogFile)));
+				peakDetectionLogWriter.println(CSV_HEADER_PEAK_DETECTION_FILE);
+
+			} catch (IOException e) {
+				Log.e(TAG, "Could not open CSV file(s)", e);
+			}
+		}
+
+		/**
+		 * called on HelperThread!!!
+		 * Metrics follow the logging preference, they are switched between samples on the counting thread.
+		 */
+		private void updateMetricsEnabled() {
+			boolean isEnabled = isLoggingEnabled;
+			if (isEnabled != (getMetrics() != null)) {
+				setMetrics(isEnabled ? metrics : null);
+			}
+		}
+
+		/**
+		 * called on HelperThread!!!
+		 */
+		private void logIfEnabled() {
+			if (isLoggingEnabled) {
+				StepCounterSnapshot snapshot = logRing.claim();
+				if (snapshot != null) {
+					fillSnapshot(snapshot);
+					logRing.publish();
+				} // else ring is full, record is dropped and counted by the ring
+			}
+		}
+
+		private void startLogWriter() {
+			isLogWriterRunning = true;
+			logWriterThread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					while (isLogWriterRunning) {
+						if (logRing.drain(LoggingStepCounter.this, LOG_WRITER_BATCH_SIZE) == 0) {
+							try {
+								Thread.sleep(LOG_WRITER_IDLE_TIME);
+							} catch (InterruptedException e) {
+								break;
+							}
+						}
+					}
+					// write what is left in the ring and release files
+					while (logRing.drain(LoggingStepCounter.this, LOG_WRITER_BATCH_SIZE) > 0) {
+						;
+					}
+					closeLogWriters();
+				}
+				
+			}, "LogWriterThread");
+			logWriterThread.start();
+		}
+		
+		/**
+		 * called on UI thread, the LogWriterThread finishes writing and closes files on its own
+		 */
+		private void stopLogWriter() {
+			isLogWriterRunning = false;
+			logWriterThread.interrupt();
+		}
+		
+		private long getDroppedLogRecordCount() {
+			return logRing.getDroppedCount();
+		}
+
+		/**
+		 * called on LogWriterThread!!!
+		 */
+		@Override
+		public void onSnapshot(StepCounterSnapshot snapshot) {
+			if (recordingWriter != null) {
+				writeRecord(snapshot);
+				return;
+			}
+			writeFilterOutputData(snapshot);
+			writePeakDetectionData(snapshot);
+			writeStepDetectionData(snapshot);
+		}
+		
+		private void writeRecord(StepCounterSnapshot snapshot) {
+			try {
+				recordingWriter.write(snapshot);
+			} catch (IOException e) {
+				Log.w(TAG, "Error writing recording, binary logging stopped", e);
+				recordingWriter = null;
+			}
+		}
+
+		private void closeLogWriters() {
+			if (recordingWriter != null) {
+				try {
+					recordingWriter.close();
+				} catch (IOException e) {
+					Log.w(TAG, "Error closing recording", e);
+				}
+			}
+			if (filterOutputLogWriter != null) {
+				filterOutputLogWriter.close();
+			}
+			if (stepsDataWriter != null) {
+				stepsDataWriter.close();
+			}
+			if (peakDetectionLogWriter != null) {
+				peakDetectionLogWriter.close();
+			}
+		}
+		
+		private void writeFilterOutputData(StepCounterSnapshot snapshot) {
+
+			if (filterOutputLogWriter != null) {
+				long timeStampInMilis = snapshot.getSampleTime() - startTime;
+				stringBuffer.delete(0, stringBuffer.length())
+					.append(timeStampInMilis).append(CSV_DELIM)
+					.append(snapshot.getSensorValue(0)).append(CSV_DELIM) // x
+					.append(snapshot.getSmoothedAcceleration(0)).append(CSV_DELIM)
+					.append(snapshot.getSensorValue(1)).append(CSV_DELIM) // y
+					.append(snapshot.getSmoothedAcceleration(1)).append(CSV_DELIM)
+					.append(snapshot.getSensorValue(2)).append(CSV_DELIM) // z
+					.append(snapshot.getSmoothedAcceleration(2))
+					;
+
+				filterOutputLogWriter.println(stringBuffer.toString());
+				if (filterOutputLogWriter.checkError()) {
+					Log.w(TAG, "Error writing filter output log");
+				}
+			}
+
+		}
+		
+		private void writePeakDetectionData(StepCounterSnapshot snapshot) {
+
+			if (peakDetectionLogWriter != null) {
+				long timeStampInMilis = snapshot.getSampleTime() - startTime;
+				stringBuffer.delete(0, stringBuffer.length())
+					.append(timeStampInMilis).append(CSV_DELIM)
+					.append(snapshot.getSmoothedAcceleration(0)).append(CSV_DELIM)
+					.append(snapshot.getCurrentPeak2PeakValue(0)).append(CSV_DELIM)
+					.append(snapshot.getFixedPeak2PeakValue(0)).append(CSV_DELIM)
+					.append(snapshot.getSmoothedAcceleration(1)).append(CSV_DELIM)
+					.append(snapshot.getCurrentPeak2PeakValue(1)).append(CSV_DELIM)
+					.append(snapshot.getFixedPeak2PeakValue(1)).append(CSV_DELIM)
+					.append(snapshot.getSmoothedAcceleration(2)).append(CSV_DELIM)
+					.append(snapshot.getCurrentPeak2PeakValue(2)).append(CSV_DELIM)
+					.append(snapshot.getFixedPeak2PeakValue(2))
+					;
+
+				peakDetectionLogWriter.println(stringBuffer.toString());
+				if (peakDetectionLogWriter.checkError()) {
+					Log.w(TAG, "Error writing peak detection log");
+				}
+			}
+
+		}
+		
+		private void writeStepDetectionData(StepCounterSnapshot snapshot) {
+			flipSteps(snapshot);
+			
+			if (stepsDataWriter != null) {
+				long timeStampInMilis = snapshot.getSampleTime() - startTime;
+				stringBuffer.delete(0, stringBuffer.length())
+					.append(timeStampInMilis).append(CSV_DELIM)
+					.append(snapshot.getSmoothedAcceleration(0)).append(CSV_DELIM)
+					.append(snapshot.getThresholdValue(0)).append(CSV_DELIM)
+					.append(stepFlip[0]).append(CSV_DELIM)
+					.append(snapshot.getStepInterval(0)).append(CSV_DELIM)
+					.append(snapshot.getAvgStepInterval(0)).append(CSV_DELIM)
+					.append(snapshot.getStepIntervalVariance(0)).append(CSV_DELIM)
+					.append(snapshot.hasValidSteps(0)).append(CSV_DELIM)
+					.append(snapshot.getSmoothedAcceleration(1)).append(CSV_DELIM)
+					.append(snapshot.getThresholdValue(1)).append(CSV_DELIM)
+					.append(stepFlip[1]).append(CSV_DELIM)
+					.append(snapshot.getStepInterval(1)).append(CSV_DELIM)
+					.append(snapshot.getAvgStepInterval(1)).append(CSV_DELIM)
+					.append(snapshot.getStepIntervalVariance(1)).append(CSV_DELIM)
+					.append(snapshot.hasValidSteps(1)).append(CSV_DELIM)
+					.append(snapshot.getSmoothedAcceleration(2)).append(CSV_DELIM)
+					.append(snapshot.getThresholdValue(2)).append(CSV_DELIM)
+					.append(stepFlip[2]).append(CSV_DELIM)
+					.append(snapshot.getStepInterval(2)).append(CSV_DELIM)
+					.append(snapshot.getAvgStepInterval(2)).append(CSV_DELIM)
+					.append(snapshot.getStepIntervalVariance(2)).append(CSV_DELIM)
+					.append(snapshot.hasValidSteps(2))
+					/*
+					.append(CSV_DELIM)
+					.append(snapshot.getFixedMinValue(0)).append(CSV_DELIM)
+					.append(snapshot.getFixedMaxValue(0)).append(CSV_DELIM)
+					.append(snapshot.getFixedMinValue(1)).append(CSV_DELIM)
+					.append(snapshot.getFixedMaxValue(1)).append(CSV_DELIM)
+					.append(snapshot.getFixedMinValue(2)).append(CSV_DELIM)
+					.append(snapshot.getFixedMaxValue(2)).append(CSV_DELIM)
+					*/
+					;
+
+				stepsDataWriter.println(stringBuffer.toString());
+				if (stepsDataWriter.checkError()) {
+					Log.w(TAG, "Error writing step detection log");
+				}
+			}
+		}
+
+		private void flipSteps(StepCounterSnapshot snapshot) {
+			for (int i = 0; i < 3; i++) {
+				int crossingThresholdCount = snapshot.getCrossingThresholdCount(i);
+				if (oldCrossingThresholdCounts[i] != crossingThresholdCount) {
+					stepFlip[i] *= -1;
+				}
+				oldCrossingThresholdCounts[i] = crossingThresholdCount;
+			}
+		}
+	}
+
+	private SharedPreferences settings;
+	// SharedPreferences keeps listeners in weak references, hold a strong one here
+	private final SharedPreferences.OnSharedPreferenceChangeListener settingsListener =
+			new SharedPreferences.OnSharedPreferenceChangeListener() {
+		
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+			if (LOGGING_PREFERENCE.equals(key)) {
+				isLoggingEnabled = sharedPreferences.getBoolean(LOGGING_PREFERENCE, false);
+			}
+		}
+	};
+	private PrintWriter serviceLogWriter;
+	private long onCreateTimeInMilis;
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		
+		settings = PreferenceManager.getDefaultSharedPreferences(this);
+		isLoggingEnabled = settings.getBoolean(LOGGING_PREFERENCE, false);
+		settings.registerOnSharedPreferenceChangeListener(settingsListener);
+		
+		File serviceLogFile = new File(getExternalCacheDir(), "service.csv");
+		try {
+			//FileWriter calls directly OS for every write request
+			//For better performance the FileWriter is wrapped into BufferedWriter, which calls out for a batch of bytes
+			//PrintWriter allows a human-readable writing into a file
+			if (serviceLogFile.exists()) {
+				serviceLogWriter = new PrintWriter(new BufferedWriter(new FileWriter(serviceLogFile, true)));
+			}
+			else {
+				serviceLogWriter = new PrintWriter(new BufferedWriter(new FileWriter(serviceLogFile)));
+				serviceLogWriter.println(CSV_HEADER_SERVICE_FILE);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Could not open service log file", e);
+		}
+		
+		serviceLogString = new StringBuffer();
+		
+		onCreateTimeInMilis = SystemClock.elapsedRealtime();
+		
+		Log.d(TAG, "onCreate()");
+		logServiceEvent("onCreate");
+
+	}
+
+	@Override
+	protected StepCounter createStepCounter(StepCounterListener listener) {
+		loggingStepCounter = new LoggingStepCounter(listener);
+		return loggingStepCounter;
+	}
+
+	/**
+	 * Appends counters of step counter metrics to service event, times are averaged per processed sample.
+	 * Metrics are counted only while logging is enabled.
+	 */
+	private void appendMetrics(StringBuffer eventRecord) {
+		StepCounterMetrics.Snapshot metrics = loggingStepCounter.metrics.snapshot();
+		eventRecord
+			.append("samples:")
+			.append(metrics.getSampleCount())
+			.append("::")
+			.append("gated:")
+			.append(metrics.getGatedSampleCount())
+			.append("::");
+		for (int axis = 0; axis < StepCounterMetrics.AXIS_COUNT; axis++) {
+			long count = metrics.getProcessedSampleCount(axis);
+			if (count == 0) {
+				continue;
+			}
+			eventRecord
+				.append("axis ").append(axis).append(":")
+				.append("filter/thld/detect:")
+				.append(metrics.getFilteringTime(axis) / count).append('/')
+				.append(metrics.getThresholdTime(axis) / count).append('/')
+				.append(metrics.getDetectionTime(axis) / count)
+				.append("ns:")
+				.append("searching->counting:")
+				.append(metrics.getSearchingToCountingCount(axis))
+				.append("x:")
+				.append("counting->searching:")
+				.append(metrics.getCountingToSearchingCount(axis))
+				.append("x:")
+				.append("rejected interval/variance:")
+				.append(metrics.getIntervalRejectCount(axis)).append('/')
+				.append(metrics.getVarianceRejectCount(axis))
+				.append("::");
+		}
+	}
+
+	/**
+	 * Returns number of log records dropped because LogWriterThread did not keep up
+	 */
+	public long getDroppedLogRecordCount() {
+		return loggingStepCounter != null ? loggingStepCounter.getDroppedLogRecordCount() : 0;
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		Log.d(TAG, "onStartCommand(" 
+				+ (intent != null ? intent.toString() : "null") 
+				+ ", " 
+				+ flags 
+				+ ", " 
+				+ startId 
+				+ ")");
+		StringBuffer eventRecord = new StringBuffer()
+			.append("onStartCommand::")
+			.append("last countSteps called before:")
+			.append((lastCountStepsCallTimeInMilis != 0) ? (SystemClock.elapsedRealtime() - lastCountStepsCallTimeInMilis) : "?")
+			.append("ms::")
+			;
+		Log.d(TAG, eventRecord.toString());
+		logServiceEvent(eventRecord.toString());
+		return super.onStartCommand(intent, flags, startId);
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		settings.unregisterOnSharedPreferenceChangeListener(settingsListener);
+		loggingStepCounter.stopLogWriter();
+		long elapsedRealtimeInMilis = SystemClock.elapsedRealtime();
+		long elapsedTimeInMilis = elapsedRealtimeInMilis - onCreateTimeInMilis;
+		long elapsedTimeInSec = elapsedTimeInMilis / 1000;
+		float countStepsCallRate = ((float)countStepsCallCounter / elapsedTimeInMilis) * 1000;
+		StringBuffer eventRecord = new StringBuffer()
+			.append("onDestroy::")
+			.append("elapsed time:")
+			.append(elapsedTimeInSec)
+			.append("s::")
+			.append("countSteps called:")
+			.append(countStepsCallCounter)
+			.append("x::")
+			.append("at rate:")
+			.append((float)Math.round(countStepsCallRate * 100) / 100)
+			.append("Hz::")
+			.append("last countSteps called before:")
+			.append((lastCountStepsCallTimeInMilis != 0) ? (elapsedRealtimeInMilis - lastCountStepsCallTimeInMilis) : "?")
+			.append("ms::")
+			.append("log records dropped:")
+			.append(getDroppedLogRecordCount())
+			.append("::")
+			;
+		appendMetrics(eventRecord);
+		logServiceEvent(eventRecord.toString());
+		Log.d(TAG, eventRecord.toString());
+		
+	}
+
+	@Override
+	public void onRebind(Intent intent) {
+		super.onRebind(intent);
+		Log.d(TAG, "onRebind()");
+		logServiceEvent("onRebind");
+	}
+
+	@Override
+	public boolean onUnbind(Intent intent) {
+		Log.d(TAG, "onUnbind()");
+		logServiceEvent("onUnbind");
+		return super.onUnbind(intent);
+	}
+
+	@Override
+	public IBinder onBind(Intent arg0) {
+		Log.d(TAG, "onBind()");
+		logServiceEvent("onBind");
+		return null;
+	}
+
+	@Override
+	public void onConfigurationChanged(Configuration newConfig) {
+		super.onConfigurationChanged(newConfig);
+		Log.d(TAG, "onConfigurationChanged()");
+		logServiceEvent("onConfigurationChanged");
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		Log.d(TAG, "onLowMemory()");
+		logServiceEvent("onLowMemory");
+	}
+
+	@SuppressLint("NewApi")
+	@Override
+	public void onTaskRemoved(Intent rootIntent) {
+		super.onTaskRemoved(rootIntent);
+		Log.d(TAG, "onTaskRemoved()");
+		logServiceEvent("onTaskRemoved");
+	}
+
+	@SuppressLint("NewApi")
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		Log.d(TAG, "onTrimMemory() level: " + level);
+		logServiceEvent("onTrimMemory");
+	}
+
+	private void logServiceEvent(String event) {
+		if (serviceLogWriter != null) {
+			String timeStamp = DateFormat.format("hh:mm:ssaa dd/MM/yyyy", System.currentTimeMillis()).toString();
+			serviceLogString.delete(0, serviceLogString.length())
+				.append(timeStamp).append(CSV_DELIM)
+				.append(event)
+				;
+			serviceLogWriter.println(serviceLogString.toString());
+			if (serviceLogWriter.checkError()) {
+				Log.w(TAG, "Error writing service log");
+			}
+		}
+	}
+}
@@ -1,19 +1,25 @@
 package co.joyatwork.pedometer.android;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.File;
+import java.io.IOException;
 
+import co.joyatwork.pedometer.Clock;
+import co.joyatwork.pedometer.GaitAnalytics;
+import co.joyatwork.pedometer.SampleSource;
+import co.joyatwork.pedometer.StepCountPublisher;
 import co.joyatwork.pedometer.StepCounter;
+import co.joyatwork.pedometer.StepCounterCheckpoint;
+import co.joyatwork.pedometer.StepCountingPipeline;
+import co.joyatwork.pedometer.StepJournal;
+import co.joyatwork.pedometer.StepTimeSeries;
+import co.joyatwork.pedometer.WallClock;
+import android.annotation.SuppressLint;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
@@ -27,63 +33,85 @@ public abstract class PedometerService extends Service {
 	
 	private static final String PERSISTENT_STATE_STEPS_FILE = "steps";
 	private static final String PERSISTENT_SATE_STEPS_COUNT = "stepsCount";
+	private static final String PERSISTENT_STATE_STEPS_GENERATION = "stepsGeneration";
+	private static final String STEPS_JOURNAL_FILE = "steps.journal";
+	private static final String STEPS_TIME_SERIES_FILE = "steps.series";
+	private static final String STEP_COUNTER_CHECKPOINT_FILE = "stepcounter.checkpoint";
+	private static final long CHECKPOINT_INTERVAL = 10 * 1000; //ms
 	// the following fields are accessed from UI thread
 	private static final String TAG = "PedometerService";
-	private static final long NANO_TO_MILISECONDS = 1000000;
 	private boolean isRunning = false;
 	//TODO check if you can start this thread anonymously, if so you can remove private field
 	private Thread helperThread;
-	//TODO could you decrease the footprint of service if you have removed these fields (these are only references)? >>
-	private SensorManager sensorManager;
-	private Sensor sensor;
-	//<<
 
 	// the following objects are created on UI thread but used by HelperThread 
 	private StepCounter stepCounter;
 	private SharedPreferences persistentState;
-	private Editor persistentStateEditor; //TODO called on UI Thread in onDestroy()!!! 
-	
-	private AtomicInteger stepsCount; // to allow concurrent access from UI and Helper thread
+	private Clock clock;
+	private StepCounterCheckpoint checkpoint;
+	// used on HelperThread only, read when step count is broadcast
+	private final GaitAnalytics gaitAnalytics = new GaitAnalytics();
+	// step count is read from UI and Helper thread
+	private StepCountingPipeline stepCountingPipeline;
+	// created on HelperThread
+	private SampleSource sampleSource;
+	// broadcast keys resolved once in onCreate()
+	private String stepCountUpdateAction;
+	private String stepCountKey;
+	private String stepAxisKey;
+	private String stepCadenceKey;
+	private String stepDistanceKey;
 	
 	private boolean debugging = true; //TODO get value from preferences
 
-	private final class StepsListener implements StepCounter.StepCounterListener {
-
-		@Override
-		public void onStepsCounted(int deltaStepCount) {
+	/**
+	 * Coalesces step count broadcasts to at most DEFAULT_MIN_PUBLISH_INTERVAL rate, called on HelperThread
+	 */
+	private final class StepCountBroadcaster extends StepCountPublisher {
 
-			stepsCount.addAndGet(deltaStepCount);
-			
-			persistentStateEditor.putInt(PERSISTENT_SATE_STEPS_COUNT, stepsCount.get());
-			persistentStateEditor.apply();
+		private final Runnable flushRunnable = new Runnable() {
+			public void run() {
+				flush(clock.getTimeInMilis());
+			}
+		};
 
-			broadcastStepCount(stepsCount.get());
-			
-			Log.d(TAG, "onStepCounted: " + stepsCount.get());
+		@Override
+		protected void publish(int stepCount) {
+			broadcastStepCount(stepCount);
 		}
-		
-	}
-	
-	private final class AccelerometerListener implements SensorEventListener {
-
 
 		@Override
-		public void onSensorChanged(SensorEvent event) {
-			//TODO check if correct sensor is calling
-
-			//Log.d(TAG, "onSensorChanged called on " + Thread.currentThread().getName() + " " + event.timestamp / NANO_TO_MILISECONDS + " ms");
-
-			countSteps(event);
+		protected void requestFlush(long delayInMilis) {
+			handler.postDelayed(flushRunnable, delayInMilis);
+		}
+	}
 
+	/**
+	 * Broadcasts the current step count, posted to HelperThread the gait analytics are updated on
+	 */
+	private final Runnable broadcastStepCountRunnable = new Runnable() {
+		public void run() {
+			broadcastStepCount(stepCountingPipeline.getStepCount());
 		}
+	};
 
-		@Override
-		public void onAccuracyChanged(Sensor sensor, int accuracy) {
-			// TODO Auto-generated method stub
-			
+	/**
+	 * Saves step counter state periodically and ends the walking bout if steps stopped coming,
+	 * called on HelperThread
+	 */
+	private final Runnable saveCheckpointRunnable = new Runnable() {
+		public void run() {
+			saveCheckpoint();
+			if (gaitAnalytics.isInBout()) {
+				gaitAnalytics.flush(stepCounter.getLastSampleTime());
+				if (!gaitAnalytics.isInBout()) {
+					broadcastStepCount(stepCountingPipeline.getStepCount()); // cadence dropped to 0
+				}
+			}
+			handler.postDelayed(this, CHECKPOINT_INTERVAL);
 		}
-	}
-	private AccelerometerListener accelerometerListener;
+	};
+
 	protected Handler handler;
 	
 	//<<
@@ -102,8 +130,8 @@ public abstract class PedometerService extends Service {
                     Log.i(TAG, "Runnable executing.");
                     // Unregisters the listener and registers it again.
                 	if (isRunning) {
-        				unregisterSensorListener();
-        				registerSensorListener();
+        				sampleSource.stop();
+        				startSampleSource();
         			}
                     // release and acquire wake lock
                 	wakeLock.release();
@@ -120,13 +148,21 @@ public abstract class PedometerService extends Service {
 	@Override
 	public void onCreate() {
 		
-		stepCounter = createStepCounter(new StepsListener());
+		clock = createClock();
+		stepCountUpdateAction = getResources().getString(R.string.step_count_update_action);
+		stepCountKey = getResources().getString(R.string.step_count);
+		stepAxisKey = getResources().getString(R.string.step_axis);
+		stepCadenceKey = getResources().getString(R.string.step_cadence);
+		stepDistanceKey = getResources().getString(R.string.step_distance);
 		
 		persistentState = getSharedPreferences(PERSISTENT_STATE_STEPS_FILE, 0);
-		persistentStateEditor = persistentState.edit();
-		
-		stepsCount = new AtomicInteger();
-		stepsCount.set((persistentState.getInt(PERSISTENT_SATE_STEPS_COUNT, 0)));
+		stepCountingPipeline = new StepCountingPipeline(openStepJournal(), new StepCountBroadcaster(), 
+				openStepTimeSeries(), clock);
+		stepCounter = createStepCounter(stepCountingPipeline);
+		stepCounter.setStepEventListener(gaitAnalytics);
+		// resume detection of restarted service, step counter is not used by HelperThread yet
+		checkpoint = new StepCounterCheckpoint(new File(getFilesDir(), STEP_COUNTER_CHECKPOINT_FILE));
+		restoreCheckpoint();
 		
 		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
 		wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "PedometerService");
@@ -136,7 +172,7 @@ public abstract class PedometerService extends Service {
 		
 		startForeground();
 
-		Log.d(TAG, "onCreate - stepCount: " + stepsCount.get());
+		Log.d(TAG, "onCreate - stepCount: " + stepCountingPipeline.getStepCount());
 		
 	}
 
@@ -158,11 +194,10 @@ public abstract class PedometerService extends Service {
 					Looper.prepare();
 
 					handler = new Handler();
-					sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
-					sensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-					
-					accelerometerListener = new AccelerometerListener();
-					registerSensorListener();
+					sampleSource = createSampleSource(handler);
+					startSampleSource();
+					handler.postDelayed(saveCheckpointRunnable, CHECKPOINT_INTERVAL);
+					broadcastStepCount(stepCountingPipeline.getStepCount());
 					
 					Looper.loop();
 					
@@ -173,8 +208,11 @@ public abstract class PedometerService extends Service {
 
 		}
 
-		// Parent Activity recreated, broadcast update 
-		broadcastStepCount(stepsCount.get());
+		// Parent Activity recreated, broadcast update on HelperThread,
+		// a just started HelperThread broadcasts when its handler is ready
+		if (handler != null) {
+			handler.post(broadcastStepCountRunnable);
+		}
 		
 		wakeLock.acquire();
 		
@@ -192,47 +230,130 @@ public abstract class PedometerService extends Service {
 			isRunning = false;
 			// thread with looper is gracefully killed when service is killed
 			// no need to call interrupt explicitly (anyway not sure if Looper can be interrupted explicitly?)
-			unregisterSensorListener();
+			sampleSource.stop();
 		}
 
-		// hopefully onSensorChanged() will not be invoked when listener got unregistered!?
-		// SharedPreferences should be thread safe
-		// otherwise the race conditions on storing to state might occur!!!!
-		persistentStateEditor.putInt(PERSISTENT_SATE_STEPS_COUNT, 0); // reset counter on service exit
-		persistentStateEditor.commit();
+		// reset counter on service exit, pipeline is used only by HelperThread,
+		// sensor events queued before unregistering are handled before the reset
+		Runnable closeStepCountingPipeline = new Runnable() {
+			public void run() {
+				saveCheckpoint();
+				closeStepCountingPipeline();
+			}
+		};
+		if (handler != null) {
+			handler.removeCallbacks(saveCheckpointRunnable);
+			handler.post(closeStepCountingPipeline);
+		}
+		else {
+			closeStepCountingPipeline.run();
+		}
 
 		wakeLock.release();
 
 	}
 
+	/**
+	 * System is going to kill processes, the state is saved so the restarted service resumes detection
+	 */
+	@SuppressLint("NewApi")
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if (handler != null) {
+			handler.post(new Runnable() {
+				public void run() {
+					saveCheckpoint();
+				}
+			});
+		}
+	}
+
 	/**
 	 * called on HelperThread!!!
-	 * @param stepCount
+	 */
+	private void saveCheckpoint() {
+		try {
+			checkpoint.save(stepCounter, clock.getTimeInMilis());
+		} catch (IOException e) {
+			Log.e(TAG, "step counter checkpoint could not be saved", e);
+		}
+	}
+
+	private void restoreCheckpoint() {
+		try {
+			if (checkpoint.restore(stepCounter, clock.getTimeInMilis())) {
+				Log.d(TAG, "step counter restored from checkpoint");
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "step counter checkpoint could not be restored", e);
+		}
+	}
+
+	private StepJournal openStepJournal() {
+		StepJournal.StepTotalStore store = new PreferencesStepTotalStore(persistentState, 
+				PERSISTENT_SATE_STEPS_COUNT, PERSISTENT_STATE_STEPS_GENERATION);
+		try {
+			return new StepJournal(new File(getFilesDir(), STEPS_JOURNAL_FILE), store);
+		} catch (IOException e) {
+			Log.e(TAG, "step journal could not be opened, steps are not persisted", e);
+			return null;
+		}
+	}
+
+	private StepTimeSeries openStepTimeSeries() {
+		try {
+			return new StepTimeSeries(new File(getFilesDir(), STEPS_TIME_SERIES_FILE), new WallClock());
+		} catch (IOException e) {
+			Log.e(TAG, "step time series could not be opened, step history is not kept", e);
+			return null;
+		}
+	}
+
+	private void closeStepCountingPipeline() {
+		stepCountingPipeline.reset();
+		try {
+			stepCountingPipeline.close();
+		} catch (IOException e) {
+			Log.e(TAG, "step journal close failed", e);
+		}
+	}
+
+	/**
+	 * called on HelperThread!!!
+	 */
+	private void startSampleSource() {
+		try {
+			sampleSource.start(stepCounter);
+		} catch (IOException e) {
+			Log.e(TAG, "sample source could not be started", e);
+		}
+	}
+
+	/**
+	 * called on HelperThread!!! (rate limited by stepCountPublisher, and on start of service command)
+	 * @param stepCount - sent as int extra, cadence (steps/min) and distance (m) as float extras
 	 */
 	private void broadcastStepCount(int stepCount) {
 		
+		// cadence is 0 if steps stopped coming, times of samples and steps share the time base
+		gaitAnalytics.flush(stepCounter.getLastSampleTime());
 		LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(this);
-		Intent intent = new Intent(getResources().getString(R.string.step_count_update_action))
-			.putExtra(getResources().getString(R.string.step_count), "" + stepCount) //TODO optimize string formating
+		// new intent per broadcast, LocalBroadcastManager delivers it later on UI thread
+		Intent intent = new Intent(stepCountUpdateAction)
+			.putExtra(stepCountKey, stepCount)
+			.putExtra(stepCadenceKey, gaitAnalytics.getCadence())
+			.putExtra(stepDistanceKey, gaitAnalytics.getDistance())
 			;
 		
 		if (debugging) {
-			intent.putExtra(getResources().getString(R.string.step_axis), stepCounter.getDetectedAxis());
+			intent.putExtra(stepAxisKey, stepCounter.getDetectedAxis());
 		}
 		
 		lbm.sendBroadcast(intent);
 			
 	}
 
-	/**
-	 * called on HelperThread!!!
-	 * @param event
-	 */
-	private void countSteps(SensorEvent event) {
-		long currentSampleTime = event.timestamp / NANO_TO_MILISECONDS;
-		stepCounter.countSteps(event.values.clone(), currentSampleTime);
-	}
-
 	/**
 	 * can subclass and override for debugging
 	 * @param listener
@@ -242,6 +363,21 @@ public abstract class PedometerService extends Service {
 		return new StepCounter(listener);
 	}
 
+	/**
+	 * can subclass and override to feed step counter from other source, called on HelperThread
+	 * @param handler - handler of HelperThread the samples are expected on
+	 */
+	protected SampleSource createSampleSource(Handler handler) {
+		return new AccelerometerSampleSource(this, handler);
+	}
+
+	/**
+	 * can subclass and override to run with other time source
+	 */
+	protected Clock createClock() {
+		return new ElapsedRealtimeClock();
+	}
+
 	@Override
 	public IBinder onBind(Intent intent) {
 		// TODO Auto-generated method stub
@@ -254,13 +390,4 @@ public abstract class PedometerService extends Service {
 	 */
 	abstract protected void startForeground();
 
-	private void registerSensorListener() {
-		sensorManager.registerListener(accelerometerListener, sensor, 
-				SensorManager.SENSOR_DELAY_GAME, handler);
-	}
-
-	private void unregisterSensorListener() {
-		sensorManager.unregisterListener(accelerometerListener);
-	}
-
 }
@@ -0,0 +1,41 @@
+package co.joyatwork.pedometer.android;
+
+import co.joyatwork.pedometer.StepJournal;
+import android.content.SharedPreferences;
+
+/**
+ * Keeps durable step total of {@link StepJournal} in SharedPreferences.
+ * Total and generation are written by one blocking commit(), it is called only on compaction
+ * of the journal, so it is expected on the thread counting steps, not on UI thread.
+ */
+class PreferencesStepTotalStore implements StepJournal.StepTotalStore {
+
+	private final SharedPreferences preferences;
+	private final String totalKey;
+	private final String generationKey;
+
+	PreferencesStepTotalStore(SharedPreferences preferences, String totalKey, String generationKey) {
+		this.preferences = preferences;
+		this.totalKey = totalKey;
+		this.generationKey = generationKey;
+	}
+
+	@Override
+	public int getTotal() {
+		return preferences.getInt(totalKey, 0);
+	}
+
+	@Override
+	public long getGeneration() {
+		return preferences.getLong(generationKey, 0);
+	}
+
+	@Override
+	public void store(int total, long generation) {
+		preferences.edit()
+			.putInt(totalKey, total)
+			.putLong(generationKey, generation)
+			.commit();
+	}
+
+}
@@ -0,0 +1,100 @@
+package co.joyatwork.pedometer;
+
+import java.util.Random;
+
+/**
+ * Pre-computed 3-axis acceleration inputs for benchmarks.
+ * Every signal is generated for a whole number of step patterns, so it can be replayed in a loop
+ * without a discontinuity at the end of the array.
+ */
+final class AccelerationSignals {
+
+	static final String STEADY_WALKING = "walking";
+	static final String NOISY_IDLE = "idle";
+	static final String STRATEGY_THRASHING = "thrashing";
+	static final String IRREGULAR_GAIT = "irregular";
+
+	private static final float GRAVITY = 9.81F;
+	private static final long SEED = 42;
+
+	private static final long[] WALKING_STEP_PATTERN = { 550 }; //ms
+	// 6 regular steps keep SearchingDetector validating and CountingDetector counting,
+	// the 2 slow steps are out of variance range and switch the detector back to searching
+	private static final long[] THRASHING_STEP_PATTERN = { 500, 500, 500, 500, 500, 500, 900, 900 }; //ms
+	// 3 regular steps are validated by SearchingDetector, the slow step is out of variance range
+	// and restarts validation before it completes, so the detector keeps searching on every step
+	private static final long[] IRREGULAR_STEP_PATTERN = { 500, 500, 500, 1200 }; //ms
+	private static final int PATTERN_REPEATS = 32;
+	private static final long IDLE_DURATION = 20000; //ms
+
+	private AccelerationSignals() {
+	}
+
+	/**
+	 * @return samples interleaved as x0,y0,z0,x1,y1,z1,...
+	 */
+	static float[] generate(String kind, int sampleRateInHz) {
+		if (STEADY_WALKING.equals(kind)) {
+			return generateSteps(WALKING_STEP_PATTERN, 3.0F, 0.05F, sampleRateInHz);
+		}
+		else if (STRATEGY_THRASHING.equals(kind)) {
+			return generateSteps(THRASHING_STEP_PATTERN, 3.0F, 0.05F, sampleRateInHz);
+		}
+		else if (IRREGULAR_GAIT.equals(kind)) {
+			return generateSteps(IRREGULAR_STEP_PATTERN, 3.0F, 0.05F, sampleRateInHz);
+		}
+		else if (NOISY_IDLE.equals(kind)) {
+			return generateIdle(0.35F, sampleRateInHz);
+		}
+		throw new IllegalArgumentException("Unknown signal: " + kind);
+	}
+
+	/**
+	 * @return sample time in ms of sample with given index
+	 */
+	static long sampleTime(long sampleIndex, int sampleRateInHz) {
+		return sampleIndex * 1000 / sampleRateInHz;
+	}
+
+	private static float[] generateSteps(long[] stepPattern, float amplitude, float noise, int sampleRateInHz) {
+		long patternDuration = 0;
+		for (long stepDuration : stepPattern) {
+			patternDuration += stepDuration;
+		}
+		int sampleCount = (int) (patternDuration * PATTERN_REPEATS * sampleRateInHz / 1000);
+		float[] samples = new float[sampleCount * 3];
+		Random random = new Random(SEED);
+
+		int stepIndex = 0;
+		double stepPhase = 0; // 0..1 within current step
+		double samplePeriod = 1000.0 / sampleRateInHz;
+		for (int i = 0; i < sampleCount; i++) {
+			double angle = 2 * Math.PI * stepPhase;
+			// lateral sway has period of two steps
+			double swayAngle = Math.PI * ((stepIndex & 1) + stepPhase);
+			samples[3 * i] = (float) (0.4 * amplitude * Math.sin(swayAngle) + noise * random.nextGaussian());
+			samples[3 * i + 1] = (float) (GRAVITY + amplitude * Math.sin(angle) + noise * random.nextGaussian());
+			samples[3 * i + 2] = (float) (0.6 * amplitude * Math.sin(angle + 0.8) + noise * random.nextGaussian());
+
+			stepPhase += samplePeriod / stepPattern[stepIndex % stepPattern.length];
+			if (stepPhase >= 1) {
+				stepPhase -= 1;
+				stepIndex++;
+			}
+		}
+		return samples;
+	}
+
+	private static float[] generateIdle(float noise, int sampleRateInHz) {
+		int sampleCount = (int) (IDLE_DURATION * sampleRateInHz / 1000);
+		float[] samples = new float[sampleCount * 3];
+		Random random = new Random(SEED);
+		for (int i = 0; i < sampleCount; i++) {
+			samples[3 * i] = (float) (noise * random.nextGaussian());
+			samples[3 * i + 1] = (float) (GRAVITY + noise * random.nextGaussian());
+			samples[3 * i + 2] = (float) (noise * random.nextGaussian());
+		}
+		return samples;
+	}
+
+}
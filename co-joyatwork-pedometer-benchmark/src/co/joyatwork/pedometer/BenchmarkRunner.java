@@ -0,0 +1,26 @@
+package co.joyatwork.pedometer;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all detection core benchmarks with GC profiler, 
+ * gc.alloc.rate.norm column then shows bytes allocated per sample.
+ * Standard JMH command line options can be passed to narrow or tune the run.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.include("co\\.joyatwork\\.pedometer\\..*Benchmark")
+				.addProfiler(GCProfiler.class)
+				.build())
+			.run();
+	}
+
+}
@@ -0,0 +1,68 @@
+package co.joyatwork.pedometer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link LinearAccelerationFilter} of a single axis fed sample by sample
+ * and by whole blocks of interleaved x,y,z samples, reported time is per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LinearAccelerationFilterBenchmark {
+
+	static final int SAMPLES_PER_INVOCATION = 1000;
+	private static final int SAMPLE_RATE = 50; //Hz
+
+	private float[] xyz;
+	private float[] smoothed;
+	private int sampleIndex;
+	private LinearAccelerationFilter filter;
+
+	@Setup
+	public void setUp() {
+		xyz = AccelerationSignals.generate(AccelerationSignals.STEADY_WALKING, SAMPLE_RATE);
+		smoothed = new float[SAMPLES_PER_INVOCATION];
+		sampleIndex = 0;
+		filter = new LinearAccelerationFilter(StepDetector.ALPHA, StepDetector.MOVING_AVG_WINDOW_SIZE);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES_PER_INVOCATION)
+	public float perSample() {
+		float value = 0;
+		for (int i = 0; i < SAMPLES_PER_INVOCATION; i++) {
+			value += filter.filter(xyz[3 * sampleIndex + 1]);
+			if (++sampleIndex == xyz.length / 3) {
+				sampleIndex = 0;
+			}
+		}
+		return value;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES_PER_INVOCATION)
+	public float[] block() {
+		int filtered = 0;
+		while (filtered < SAMPLES_PER_INVOCATION) {
+			int count = Math.min(SAMPLES_PER_INVOCATION - filtered, xyz.length / 3 - sampleIndex);
+			filter.filter(xyz, 3 * sampleIndex + 1, 3, count, smoothed, filtered);
+			filtered += count;
+			sampleIndex += count;
+			if (sampleIndex == xyz.length / 3) {
+				sampleIndex = 0;
+			}
+		}
+		return smoothed;
+	}
+
+}
@@ -0,0 +1,84 @@
+package co.joyatwork.pedometer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link StepCounter#countSteps(float[], long)} and the block variant
+ * {@link StepCounter#countSteps(float[], long[], int, int)}, reported time is per 3-axis sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StepCounterBenchmark {
+
+	static final int SAMPLES_PER_INVOCATION = 1000;
+
+	@Param({ "50", "100", "200", "400" })
+	public int sampleRate; //Hz
+
+	@Param({ AccelerationSignals.STEADY_WALKING, AccelerationSignals.NOISY_IDLE, AccelerationSignals.STRATEGY_THRASHING })
+	public String signal;
+
+	private float[] samples;
+	private int sampleIndex;
+	private long sampleCount;
+	private StepCounter stepCounter;
+
+	private final float[] accelerationSamples = new float[3];
+	private final float[] blockSamples = new float[SAMPLES_PER_INVOCATION * 3];
+	private final long[] blockTimestamps = new long[SAMPLES_PER_INVOCATION];
+
+	@Setup
+	public void setUp() {
+		samples = AccelerationSignals.generate(signal, sampleRate);
+		sampleIndex = 0;
+		sampleCount = 0;
+		stepCounter = new StepCounter(null, StepCounter.TUMBLING_WINDOW_THRESHOLD, sampleRate);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES_PER_INVOCATION)
+	public int countSteps() {
+		for (int i = 0; i < SAMPLES_PER_INVOCATION; i++) {
+			accelerationSamples[0] = samples[sampleIndex];
+			accelerationSamples[1] = samples[sampleIndex + 1];
+			accelerationSamples[2] = samples[sampleIndex + 2];
+			stepCounter.countSteps(accelerationSamples, AccelerationSignals.sampleTime(sampleCount++, sampleRate));
+			nextSample();
+		}
+		return stepCounter.getStepCount();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES_PER_INVOCATION)
+	public int countStepsBlock() {
+		// copying the block is part of the measurement, it is what a sensor burst handler would do
+		for (int i = 0; i < SAMPLES_PER_INVOCATION; i++) {
+			blockSamples[3 * i] = samples[sampleIndex];
+			blockSamples[3 * i + 1] = samples[sampleIndex + 1];
+			blockSamples[3 * i + 2] = samples[sampleIndex + 2];
+			blockTimestamps[i] = AccelerationSignals.sampleTime(sampleCount++, sampleRate);
+			nextSample();
+		}
+		stepCounter.countSteps(blockSamples, blockTimestamps, 0, SAMPLES_PER_INVOCATION);
+		return stepCounter.getStepCount();
+	}
+
+	private void nextSample() {
+		sampleIndex += 3;
+		if (sampleIndex == samples.length) {
+			sampleIndex = 0;
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package co.joyatwork.pedometer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link StepDetector#update(float, long)} of a single axis, reported time is per sample.
+ * The detector is warmed up so it stays in the requested detecting strategy during measurement:
+ * irregular gait keeps it in SearchingDetector validating and rejecting every step,
+ * steady walking keeps it in CountingDetector.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StepDetectorBenchmark {
+
+	static final int SAMPLES_PER_INVOCATION = 1000;
+	private static final int SAMPLE_RATE = 50; //Hz
+	private static final int WARM_UP_TIME = 10000; //ms
+
+	@Param({ "searching", "counting" })
+	public String state;
+
+	private float[] samples; // vertical axis only
+	private int sampleIndex;
+	private long sampleCount;
+	private StepDetector stepDetector;
+
+	@Setup
+	public void setUp() {
+		boolean counting = "counting".equals(state);
+		float[] xyz = AccelerationSignals.generate(
+				counting ? AccelerationSignals.STEADY_WALKING : AccelerationSignals.IRREGULAR_GAIT, SAMPLE_RATE);
+		samples = new float[xyz.length / 3];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = xyz[3 * i + 1];
+		}
+		sampleIndex = 0;
+		sampleCount = 0;
+		stepDetector = new StepDetector();
+
+		int warmUpSamples = WARM_UP_TIME * SAMPLE_RATE / 1000;
+		for (int i = 0; i < warmUpSamples; i++) {
+			updateStepDetector();
+		}
+		if (stepDetector.isCounting() != counting) {
+			throw new IllegalStateException("Step detector is not " + state + " after warm up");
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES_PER_INVOCATION)
+	public int update() {
+		for (int i = 0; i < SAMPLES_PER_INVOCATION; i++) {
+			updateStepDetector();
+		}
+		return stepDetector.getStepCount();
+	}
+
+	private void updateStepDetector() {
+		stepDetector.update(samples[sampleIndex], AccelerationSignals.sampleTime(sampleCount++, SAMPLE_RATE));
+		if (++sampleIndex == samples.length) {
+			sampleIndex = 0;
+		}
+	}
+
+}
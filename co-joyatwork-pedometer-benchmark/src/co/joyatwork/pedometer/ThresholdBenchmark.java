@@ -0,0 +1,62 @@
+package co.joyatwork.pedometer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link DynamicThreshold#pushSample(float)}, reported time is per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ThresholdBenchmark {
+
+	static final int SAMPLES_PER_INVOCATION = 1000;
+	private static final int THRESHOLD_WINDOW_SIZE = 50;
+	private static final int SAMPLE_RATE = 50; //Hz
+
+	@Param({ AccelerationSignals.STEADY_WALKING, AccelerationSignals.NOISY_IDLE, AccelerationSignals.STRATEGY_THRASHING })
+	public String signal;
+
+	@Param({ "tumbling", "sliding" })
+	public String window;
+
+	private float[] samples; // vertical axis only, gravity removed
+	private int sampleIndex;
+	private DynamicThreshold threshold;
+
+	@Setup
+	public void setUp() {
+		float[] xyz = AccelerationSignals.generate(signal, SAMPLE_RATE);
+		samples = new float[xyz.length / 3];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = xyz[3 * i + 1] - 9.81F;
+		}
+		sampleIndex = 0;
+		threshold = "sliding".equals(window) 
+				? new SlidingWindowThreshold(THRESHOLD_WINDOW_SIZE) 
+				: new Threshold(THRESHOLD_WINDOW_SIZE);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES_PER_INVOCATION)
+	public float pushSample() {
+		for (int i = 0; i < SAMPLES_PER_INVOCATION; i++) {
+			threshold.pushSample(samples[sampleIndex]);
+			if (++sampleIndex == samples.length) {
+				sampleIndex = 0;
+			}
+		}
+		return threshold.getThresholdValue();
+	}
+
+}
@@ -0,0 +1,162 @@
+package co.joyatwork.pedometer.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary protocol of {@link IngestionServer}, big endian.
+ *
+ * A connection starts by client hello: int MAGIC, short VERSION. Then both sides send frames:
+ * int length of the rest of the frame, byte type, payload. A connection can carry batches of many devices,
+ * e.g. of a gateway, the server answers every batch by STEPS or BUSY in the order of processing.
+ * <pre>
+ * BATCH (client):  long device id, int sequence, short sample rate in Hz (0 if unknown, otherwise
+ *                  MIN_SAMPLE_RATE..MAX_SAMPLE_RATE), long time of the first sample in ms,
+ *                  short sample count, per sample: unsigned short ms since previous sample (0 for the first),
+ *                  short x, y, z in 1/ACCELERATION_SCALE m/s^2
+ * STEPS (server):  long device id, int sequence, int step count delta of the batch, int step count of the device
+ * BUSY (server):   long device id, int sequence; the batch was shed, the device sends it again later
+ * </pre>
+ * Sequence grows by batch of the device, a device can send next batches before the previous ones are answered.
+ * Batches are counted in order of sequence: a batch with sequence not above the last counted one is a repeat,
+ * it is answered by STEPS with 0 delta and not counted again; a batch after a shed or lost one is answered
+ * by BUSY, so the device sends every batch answered by BUSY again in order of sequence.
+ * Sequence 0 starts new stream of the device (e.g. restarted app), its step count starts from 0.
+ * The first batch of a device without session (e.g. evicted after idle time) starts the session.
+ */
+public final class BatchProtocol {
+
+	public static final int MAGIC = 0x53545053; // "STPS"
+	public static final short VERSION = 1;
+	public static final int HELLO_SIZE = 6;
+
+	public static final byte BATCH = 1;
+	public static final byte STEPS = 2;
+	public static final byte BUSY = 3;
+
+	public static final float ACCELERATION_SCALE = 512; // per m/s^2, short covers +-64 m/s^2
+	public static final int MAX_BATCH_SAMPLES = 1024;
+	public static final int MIN_SAMPLE_RATE = 10; // Hz
+	public static final int MAX_SAMPLE_RATE = 400; // Hz
+
+	static final int LENGTH_SIZE = 4;
+	static final int BATCH_HEADER_SIZE = 1 + 8 + 4 + 2 + 8 + 2;
+	static final int SAMPLE_SIZE = 8;
+	static final int MAX_FRAME_SIZE = BATCH_HEADER_SIZE + MAX_BATCH_SAMPLES * SAMPLE_SIZE;
+	static final int STEPS_SIZE = 1 + 8 + 4 + 4 + 4;
+	static final int BUSY_SIZE = 1 + 8 + 4;
+
+	private BatchProtocol() {
+	}
+
+	public static void putHello(ByteBuffer buffer) {
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+	}
+
+	/**
+	 * @throws IOException if the hello is not of this protocol
+	 */
+	public static void getHello(ByteBuffer buffer) throws IOException {
+		int magic = buffer.getInt();
+		short version = buffer.getShort();
+		if (magic != MAGIC || version != VERSION) {
+			throw new IOException("Unsupported protocol " + Integer.toHexString(magic) + " version " + version);
+		}
+	}
+
+	/**
+	 * Returns size of the batch frame including its length
+	 */
+	public static int getBatchFrameSize(int sampleCount) {
+		return LENGTH_SIZE + BATCH_HEADER_SIZE + sampleCount * SAMPLE_SIZE;
+	}
+
+	/**
+	 * Writes batch frame of samples, acceleration out of short range is clipped.
+	 * @param xyzInterleaved - samples as x0,y0,z0,x1,y1,z1,... in m/s^2
+	 * @param timestamps - sample times in ms, increasing
+	 */
+	public static void putBatch(ByteBuffer buffer, long deviceId, int sequence, int sampleRateInHz,
+			float[] xyzInterleaved, long[] timestamps, int offset, int count) {
+		if (count > MAX_BATCH_SAMPLES) {
+			throw new IllegalArgumentException("Too many samples: " + count);
+		}
+		if (!isValidSampleRate(sampleRateInHz)) {
+			throw new IllegalArgumentException("Unsupported sample rate: " + sampleRateInHz);
+		}
+		buffer.putInt(BATCH_HEADER_SIZE + count * SAMPLE_SIZE);
+		buffer.put(BATCH);
+		buffer.putLong(deviceId);
+		buffer.putInt(sequence);
+		buffer.putShort((short) sampleRateInHz);
+		buffer.putLong(count > 0 ? timestamps[offset] : 0);
+		buffer.putShort((short) count);
+		long previousTime = count > 0 ? timestamps[offset] : 0;
+		int valueIndex = offset * 3;
+		for (int i = offset; i < offset + count; i++) {
+			buffer.putShort((short) Math.min(0xFFFF, timestamps[i] - previousTime));
+			previousTime = timestamps[i];
+			buffer.putShort(toShort(xyzInterleaved[valueIndex++]));
+			buffer.putShort(toShort(xyzInterleaved[valueIndex++]));
+			buffer.putShort(toShort(xyzInterleaved[valueIndex++]));
+		}
+	}
+
+	/**
+	 * Reads batch frame payload after its type into the batch.
+	 * @param length - of the frame
+	 * @throws IOException if the frame is malformed
+	 */
+	static void getBatch(ByteBuffer buffer, int length, SampleBatch batch) throws IOException {
+		batch.deviceId = buffer.getLong();
+		batch.sequence = buffer.getInt();
+		batch.sampleRateInHz = buffer.getShort();
+		long sampleTime = buffer.getLong();
+		int count = buffer.getShort() & 0xFFFF;
+		if (count > MAX_BATCH_SAMPLES || length != BATCH_HEADER_SIZE + count * SAMPLE_SIZE) {
+			throw new IOException("Malformed batch of " + count + " samples, length " + length);
+		}
+		if (!isValidSampleRate(batch.sampleRateInHz)) {
+			// sizes windows of the step counter
+			throw new IOException("Malformed batch of sample rate " + batch.sampleRateInHz + " Hz");
+		}
+		float[] xyzInterleaved = batch.xyzInterleaved;
+		long[] timestamps = batch.timestamps;
+		int valueIndex = 0;
+		for (int i = 0; i < count; i++) {
+			sampleTime += buffer.getShort() & 0xFFFF;
+			timestamps[i] = sampleTime;
+			xyzInterleaved[valueIndex++] = buffer.getShort() / ACCELERATION_SCALE;
+			xyzInterleaved[valueIndex++] = buffer.getShort() / ACCELERATION_SCALE;
+			xyzInterleaved[valueIndex++] = buffer.getShort() / ACCELERATION_SCALE;
+		}
+		batch.sampleCount = count;
+	}
+
+	static void putSteps(ByteBuffer buffer, long deviceId, int sequence, int deltaStepCount, int stepCount) {
+		buffer.putInt(STEPS_SIZE);
+		buffer.put(STEPS);
+		buffer.putLong(deviceId);
+		buffer.putInt(sequence);
+		buffer.putInt(deltaStepCount);
+		buffer.putInt(stepCount);
+	}
+
+	static void putBusy(ByteBuffer buffer, long deviceId, int sequence) {
+		buffer.putInt(BUSY_SIZE);
+		buffer.put(BUSY);
+		buffer.putLong(deviceId);
+		buffer.putInt(sequence);
+	}
+
+	private static boolean isValidSampleRate(int sampleRateInHz) {
+		return sampleRateInHz == 0 || (sampleRateInHz >= MIN_SAMPLE_RATE && sampleRateInHz <= MAX_SAMPLE_RATE);
+	}
+
+	private static short toShort(float acceleration) {
+		float value = acceleration * ACCELERATION_SCALE;
+		return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+	}
+
+}
@@ -0,0 +1,161 @@
+package co.joyatwork.pedometer.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Client connection served by one {@link IoLoop}. Read side is used by the I/O thread only,
+ * answers are written to the write buffer by shard workers and flushed by the I/O thread.
+ *
+ * Backpressure: the I/O thread stops reading from the connection while MAX_IN_FLIGHT batches are not answered
+ * or the client does not read answers (write buffer above HIGH_WATER_MARK), TCP flow control then
+ * slows the client down. The write buffer always has room for answers of batches in flight.
+ *
+ * Order: once a batch of a device is shed, its later batches read from the connection are shed too
+ * until the device sends the shed one again, so a shed batch never gets behind a counted one.
+ */
+final class Connection {
+
+	static final int MAX_IN_FLIGHT = 64; // batches read but not answered
+	static final int HIGH_WATER_MARK = 16 * 1024; // bytes of answers not written to socket
+	private static final int READ_BUFFER_SIZE = 2 * (BatchProtocol.LENGTH_SIZE + BatchProtocol.MAX_FRAME_SIZE);
+	private static final int WRITE_BUFFER_SIZE = HIGH_WATER_MARK
+			+ MAX_IN_FLIGHT * (BatchProtocol.LENGTH_SIZE + BatchProtocol.STEPS_SIZE);
+
+	final SocketChannel channel;
+	final IoLoop ioLoop;
+	final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE); // I/O thread only
+	SelectionKey key; // I/O thread only
+	boolean hasHello; // I/O thread only
+
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+	private int inFlightCount;
+	private boolean isWriteRequested;
+	private boolean isClosed;
+	private final Map<Long, Integer> shedSequences = new HashMap<Long, Integer>(); // first shed batch by device
+
+	Connection(SocketChannel channel, IoLoop ioLoop) {
+		this.channel = channel;
+		this.ioLoop = ioLoop;
+	}
+
+	/**
+	 * Called by the I/O thread for every batch read, before it is dispatched or shed.
+	 * @return false if the batch has to be shed, an earlier batch of the device was shed and not sent again yet
+	 */
+	synchronized boolean onBatchRead(long deviceId, int sequence) {
+		inFlightCount++;
+		if (shedSequences.isEmpty()) {
+			return true;
+		}
+		Long key = Long.valueOf(deviceId);
+		Integer shedSequence = shedSequences.get(key);
+		if (shedSequence == null) {
+			return true;
+		}
+		if (sequence == 0 || sequence == shedSequence.intValue()) { // new stream or the shed batch again
+			shedSequences.remove(key);
+			return true;
+		}
+		return sequence - shedSequence.intValue() < 0;
+	}
+
+	/**
+	 * Returns true if an earlier batch of the device was shed and not sent again yet.
+	 */
+	synchronized boolean isShedBefore(long deviceId, int sequence) {
+		if (shedSequences.isEmpty() || sequence == 0) {
+			return false;
+		}
+		Integer shedSequence = shedSequences.get(Long.valueOf(deviceId));
+		return shedSequence != null && sequence - shedSequence.intValue() > 0;
+	}
+
+	/**
+	 * Returns true if next batch can be read
+	 */
+	synchronized boolean canRead() {
+		return !isClosed && inFlightCount < MAX_IN_FLIGHT && writeBuffer.position() <= HIGH_WATER_MARK;
+	}
+
+	synchronized boolean hasPendingAnswers() {
+		return writeBuffer.position() > 0;
+	}
+
+	void answerSteps(long deviceId, int sequence, int deltaStepCount, int stepCount) {
+		synchronized (this) {
+			if (isClosed) {
+				return;
+			}
+			BatchProtocol.putSteps(writeBuffer, deviceId, sequence, deltaStepCount, stepCount);
+			inFlightCount--;
+			if (isWriteRequested) {
+				return;
+			}
+			isWriteRequested = true;
+		}
+		ioLoop.requestWrite(this);
+	}
+
+	void answerBusy(long deviceId, int sequence) {
+		synchronized (this) {
+			if (isClosed) {
+				return;
+			}
+			BatchProtocol.putBusy(writeBuffer, deviceId, sequence);
+			inFlightCount--;
+			Long key = Long.valueOf(deviceId);
+			Integer shedSequence = shedSequences.get(key);
+			if (shedSequence == null || sequence - shedSequence.intValue() < 0) {
+				shedSequences.put(key, Integer.valueOf(sequence));
+			}
+			if (isWriteRequested) {
+				return;
+			}
+			isWriteRequested = true;
+		}
+		ioLoop.requestWrite(this);
+	}
+
+	/**
+	 * Writes answers to the socket as far as it accepts them, called by the I/O thread.
+	 */
+	synchronized void flush() throws IOException {
+		isWriteRequested = false;
+		if (writeBuffer.position() == 0) {
+			return;
+		}
+		writeBuffer.flip();
+		try {
+			channel.write(writeBuffer);
+		} finally {
+			writeBuffer.compact();
+		}
+	}
+
+	/**
+	 * Closes the socket, answers of batches in flight are dropped.
+	 */
+	void close() {
+		synchronized (this) {
+			isClosed = true;
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	synchronized boolean isClosed() {
+		return isClosed;
+	}
+
+}
@@ -0,0 +1,271 @@
+package co.joyatwork.pedometer.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import co.joyatwork.pedometer.StepCounter;
+
+/**
+ * Headless server recounting steps of raw accelerometer batches uploaded by devices, see {@link BatchProtocol}.
+ * Every device has its own {@link StepCounter} session, the answer of a batch is the step count delta.
+ *
+ * Threads: an acceptor hands connections over to I/O threads round-robin, each I/O thread runs a selector
+ * over its non-blocking connections, decodes batches and dispatches them by device id to shard workers
+ * owning the sessions. So the number of connections and devices is bounded by memory, not by threads,
+ * and sessions of a device are never shared by threads.
+ *
+ * Overload: a connection is not read while it has Connection.MAX_IN_FLIGHT batches not answered
+ * or its client does not read answers (backpressure by TCP flow control), a batch not fitting
+ * the queue of its shard and a new device over the session limit are answered by BUSY (load shedding),
+ * so the server keeps answering in bounded time and clients retry later.
+ */
+public class IngestionServer {
+
+	public static final int DEFAULT_PORT = 7433;
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024; // batches per shard
+	public static final int DEFAULT_MAX_SESSION_COUNT = 200000;
+	private static final int ACCEPT_BACKLOG = 1024;
+	private static final long STATS_INTERVAL = 10 * 1000; // ms
+	private static final long ACCEPT_RETRY_DELAY = 100; // ms, e.g. out of file descriptors
+
+	private final InetSocketAddress address;
+	private final SampleBatch.Pool batchPool = new SampleBatch.Pool();
+	private final IoLoop[] ioLoops;
+	private final ShardWorker[] workers;
+	private final Thread[] threads;
+	private ServerSocketChannel serverChannel;
+	private Thread acceptorThread;
+	private volatile boolean isStopped;
+
+	/**
+	 * @param address - to listen on, port 0 picks a free port, see {@link #getPort()}
+	 * @param queueCapacity - batches queued per shard, more are shed
+	 * @param maxSessionCount - devices counted at once, batches of new devices over it are shed
+	 */
+	public IngestionServer(InetSocketAddress address, int ioThreadCount, int shardCount, int queueCapacity,
+			int maxSessionCount) throws IOException {
+		this.address = address;
+		ioLoops = new IoLoop[ioThreadCount];
+		for (int i = 0; i < ioThreadCount; i++) {
+			ioLoops[i] = new IoLoop(this, batchPool);
+		}
+		workers = new ShardWorker[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			workers[i] = new ShardWorker(this, batchPool, queueCapacity,
+					(maxSessionCount + shardCount - 1) / shardCount);
+		}
+		threads = new Thread[ioThreadCount + shardCount];
+	}
+
+	/**
+	 * Server with a shard per processor and an I/O thread per 4 processors.
+	 */
+	public IngestionServer(InetSocketAddress address) throws IOException {
+		this(address, Math.max(1, Runtime.getRuntime().availableProcessors() / 4),
+				Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_SESSION_COUNT);
+	}
+
+	public void start() throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(address, ACCEPT_BACKLOG);
+		for (int i = 0; i < workers.length; i++) {
+			threads[i] = new Thread(workers[i], "ShardWorker-" + i);
+		}
+		for (int i = 0; i < ioLoops.length; i++) {
+			threads[workers.length + i] = new Thread(ioLoops[i], "IoLoop-" + i);
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		acceptorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "Acceptor");
+		acceptorThread.start();
+	}
+
+	private void accept() {
+		int next = 0;
+		while (!isStopped) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				ioLoops[next].register(channel);
+				next = (next + 1) % ioLoops.length;
+			} catch (IOException e) {
+				if (!isStopped) {
+					onError("accept failed", e);
+					try {
+						Thread.sleep(ACCEPT_RETRY_DELAY);
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queues the batch to the shard of its device or sheds it, called by I/O threads.
+	 * @return false if the batch was shed
+	 */
+	boolean dispatch(SampleBatch batch) {
+		int shard = (int) ((batch.deviceId ^ (batch.deviceId >>> 32)) & 0x7FFFFFFF) % workers.length;
+		if (!workers[shard].offer(batch)) {
+			batch.connection.answerBusy(batch.deviceId, batch.sequence);
+			batchPool.release(batch);
+			return false;
+		}
+		return true;
+	}
+
+	void onError(String message, Exception e) {
+		System.err.println(message + ": " + e);
+	}
+
+	public void stop() throws InterruptedException {
+		isStopped = true;
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			// stopping anyway
+		}
+		acceptorThread.join();
+		for (IoLoop ioLoop : ioLoops) {
+			ioLoop.stop();
+		}
+		for (Thread thread : threads) {
+			thread.interrupt(); // workers wait for batches
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	public int getConnectionCount() {
+		int count = 0;
+		for (IoLoop ioLoop : ioLoops) {
+			count += ioLoop.getConnectionCount();
+		}
+		return count;
+	}
+
+	public int getSessionCount() {
+		int count = 0;
+		for (ShardWorker worker : workers) {
+			count += worker.getSessionCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns number of counted batches
+	 */
+	public long getBatchCount() {
+		long count = 0;
+		for (ShardWorker worker : workers) {
+			count += worker.getBatchCount();
+		}
+		return count;
+	}
+
+	public long getSampleCount() {
+		long count = 0;
+		for (ShardWorker worker : workers) {
+			count += worker.getSampleCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns number of batches answered by BUSY
+	 */
+	public long getShedBatchCount() {
+		long count = 0;
+		for (IoLoop ioLoop : ioLoops) {
+			count += ioLoop.getShedBatchCount();
+		}
+		for (ShardWorker worker : workers) {
+			count += worker.getShedBatchCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns number of batches waiting in shard queues
+	 */
+	public int getQueuedBatchCount() {
+		int count = 0;
+		for (ShardWorker worker : workers) {
+			count += worker.getQueueSize();
+		}
+		return count;
+	}
+
+	/**
+	 * Usage: IngestionServer [-p port] [-i io-threads] [-w shard-workers] [-q queue-capacity] [-s max-sessions]
+	 * Prints statistics every 10 s.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int processorCount = Runtime.getRuntime().availableProcessors();
+		int port = DEFAULT_PORT;
+		int ioThreadCount = Math.max(1, processorCount / 4);
+		int shardCount = processorCount;
+		int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+		int maxSessionCount = DEFAULT_MAX_SESSION_COUNT;
+		for (int i = 0; i < args.length; i++) {
+			if ("-p".equals(args[i]) && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			}
+			else if ("-i".equals(args[i]) && i + 1 < args.length) {
+				ioThreadCount = Integer.parseInt(args[++i]);
+			}
+			else if ("-w".equals(args[i]) && i + 1 < args.length) {
+				shardCount = Integer.parseInt(args[++i]);
+			}
+			else if ("-q".equals(args[i]) && i + 1 < args.length) {
+				queueCapacity = Integer.parseInt(args[++i]);
+			}
+			else if ("-s".equals(args[i]) && i + 1 < args.length) {
+				maxSessionCount = Integer.parseInt(args[++i]);
+			}
+			else {
+				System.err.println("Usage: IngestionServer [-p port] [-i io-threads] [-w shard-workers]"
+						+ " [-q queue-capacity] [-s max-sessions]");
+				System.exit(2);
+			}
+		}
+
+		IngestionServer server = new IngestionServer(new InetSocketAddress(port), ioThreadCount, shardCount,
+				queueCapacity, maxSessionCount);
+		server.start();
+		System.err.println("listening on " + server.getPort() + ", " + ioThreadCount + " I/O threads, "
+				+ shardCount + " shards");
+		System.out.println("Time-s,Connections,Sessions,Batches,Samples/s,Shed,Queued");
+		long startTime = System.currentTimeMillis();
+		long lastSampleCount = 0;
+		while (true) {
+			Thread.sleep(STATS_INTERVAL);
+			long sampleCount = server.getSampleCount();
+			System.out.println((System.currentTimeMillis() - startTime) / 1000 + ","
+					+ server.getConnectionCount() + ","
+					+ server.getSessionCount() + ","
+					+ server.getBatchCount() + ","
+					+ (sampleCount - lastSampleCount) * 1000 / STATS_INTERVAL + ","
+					+ server.getShedBatchCount() + ","
+					+ server.getQueuedBatchCount());
+			lastSampleCount = sampleCount;
+		}
+	}
+
+}
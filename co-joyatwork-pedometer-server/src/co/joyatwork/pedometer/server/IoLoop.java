@@ -0,0 +1,218 @@
+package co.joyatwork.pedometer.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Selector thread of {@link IngestionServer} serving a share of connections: reads and decodes batch frames,
+ * dispatches them to shard workers and writes answers. Workers ask for writes by {@link #requestWrite(Connection)},
+ * the selector is woken once for all writes requested while it was busy.
+ */
+final class IoLoop implements Runnable {
+
+	private final IngestionServer server;
+	private final SampleBatch.Pool batchPool;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+	private final ConcurrentLinkedQueue<Connection> writeRequests = new ConcurrentLinkedQueue<Connection>();
+	private final AtomicBoolean isWakeupPending = new AtomicBoolean();
+	private volatile boolean isStopped;
+	// written by this thread only
+	private volatile int connectionCount;
+	private volatile long shedBatchCount;
+
+	IoLoop(IngestionServer server, SampleBatch.Pool batchPool) throws IOException {
+		this.server = server;
+		this.batchPool = batchPool;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Hands accepted non-blocking channel over to this loop, called by the acceptor.
+	 */
+	void register(SocketChannel channel) {
+		newChannels.offer(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Asks to flush answers of the connection, called by shard workers.
+	 */
+	void requestWrite(Connection connection) {
+		writeRequests.offer(connection);
+		if (isWakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	void stop() {
+		isStopped = true;
+		selector.wakeup();
+	}
+
+	int getConnectionCount() {
+		return connectionCount;
+	}
+
+	long getShedBatchCount() {
+		return shedBatchCount;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!isStopped) {
+				selector.select();
+				isWakeupPending.set(false);
+				registerNewChannels();
+				processWriteRequests();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Connection connection = (Connection) key.attachment();
+					if (!key.isValid()) {
+						continue;
+					}
+					try {
+						if (key.isReadable()) {
+							read(connection);
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+						updateInterest(connection);
+					} catch (IOException e) {
+						close(connection);
+					}
+				}
+			}
+		} catch (IOException e) {
+			server.onError("I/O loop failed", e);
+		} catch (ClosedSelectorException e) {
+			// stopped
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				((Connection) key.attachment()).close();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// stopping anyway
+			}
+		}
+	}
+
+	private void registerNewChannels() {
+		SocketChannel channel;
+		while ((channel = newChannels.poll()) != null) {
+			Connection connection = new Connection(channel, this);
+			try {
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				connectionCount++;
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+	}
+
+	private void processWriteRequests() {
+		Connection connection;
+		while ((connection = writeRequests.poll()) != null) {
+			if (connection.isClosed()) {
+				continue;
+			}
+			try {
+				connection.flush();
+				updateInterest(connection);
+			} catch (IOException e) {
+				close(connection);
+			}
+		}
+	}
+
+	private void read(Connection connection) throws IOException {
+		if (connection.channel.read(connection.readBuffer) < 0) {
+			throw new IOException("closed by client");
+		}
+		processFrames(connection);
+	}
+
+	/**
+	 * Decodes and dispatches complete frames of the read buffer as long as the connection can take batches.
+	 */
+	private void processFrames(Connection connection) throws IOException {
+		ByteBuffer buffer = connection.readBuffer;
+		buffer.flip();
+		try {
+			if (!connection.hasHello) {
+				if (buffer.remaining() < BatchProtocol.HELLO_SIZE) {
+					return;
+				}
+				BatchProtocol.getHello(buffer);
+				connection.hasHello = true;
+			}
+			while (buffer.remaining() >= BatchProtocol.LENGTH_SIZE && connection.canRead()) {
+				int length = buffer.getInt(buffer.position());
+				if (length < 1 || length > BatchProtocol.MAX_FRAME_SIZE) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				if (buffer.remaining() < BatchProtocol.LENGTH_SIZE + length) {
+					break;
+				}
+				buffer.position(buffer.position() + BatchProtocol.LENGTH_SIZE);
+				byte type = buffer.get();
+				if (type != BatchProtocol.BATCH) {
+					throw new IOException("Unexpected frame type " + type);
+				}
+				SampleBatch batch = batchPool.acquire();
+				try {
+					BatchProtocol.getBatch(buffer, length, batch);
+				} catch (IOException e) {
+					batchPool.release(batch);
+					throw e;
+				}
+				batch.connection = connection;
+				if (!connection.onBatchRead(batch.deviceId, batch.sequence)) {
+					connection.answerBusy(batch.deviceId, batch.sequence);
+					batchPool.release(batch);
+					shedBatchCount++;
+				}
+				else if (!server.dispatch(batch)) {
+					shedBatchCount++;
+				}
+			}
+		} finally {
+			buffer.compact();
+		}
+	}
+
+	/**
+	 * Reads while the connection can take batches, writes while answers are pending.
+	 */
+	private void updateInterest(Connection connection) throws IOException {
+		boolean canRead = connection.canRead();
+		if (canRead && connection.readBuffer.position() > 0) {
+			processFrames(connection); // frames left in the buffer when reading stopped
+			canRead = connection.canRead();
+		}
+		int ops = (canRead ? SelectionKey.OP_READ : 0)
+				| (connection.hasPendingAnswers() ? SelectionKey.OP_WRITE : 0);
+		if (connection.key.isValid() && connection.key.interestOps() != ops) {
+			connection.key.interestOps(ops);
+		}
+	}
+
+	private void close(Connection connection) {
+		connection.close();
+		connectionCount--;
+	}
+
+}
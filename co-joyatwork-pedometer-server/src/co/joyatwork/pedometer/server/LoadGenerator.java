@@ -0,0 +1,586 @@
+package co.joyatwork.pedometer.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+import co.joyatwork.pedometer.tools.SyntheticGaitGenerator;
+
+/**
+ * Load generator of {@link IngestionServer}: simulated devices stream batches of {@link SyntheticGaitGenerator}
+ * signal over a number of connections, all driven by one selector thread.
+ *
+ * In real time mode every device sends a batch every batch interval, devices are spread evenly over the interval.
+ * A device has up to pipeline depth batches not answered, a batch due meanwhile is late and sent at the next slot
+ * of the device. In flat out mode a device sends the next batch as soon as one of its batches is answered.
+ * Batches answered by BUSY are sent again in order after RETRY_DELAY, new batches of the device wait behind them.
+ * Reports batches/s, samples/s, shed and late batches, answer latency and step count of the server
+ * against the ground truth of the generators.
+ */
+public class LoadGenerator {
+
+	static final long RETRY_DELAY = 50; // ms
+	static final long DRAIN_TIMEOUT = 5000; // ms, waiting for answers after the run
+	static final long REPORT_INTERVAL = 1000; // ms
+	private static final long BASE_DEVICE_ID = 1000000;
+	private static final long ACTIVITY_DURATION = 60 * 60 * 1000; // ms, repeated by generators
+	private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private static final class ClientConnection {
+		final SocketChannel channel;
+		final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+		final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		SelectionKey key;
+
+		ClientConnection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private final InetSocketAddress address;
+	private final int deviceCount;
+	private final int connectionCount;
+	private final int sampleRateInHz;
+	private final long batchInterval;
+	private final boolean isFlatOut;
+	private final int pipelineDepth;
+	private final int samplesPerBatch;
+
+	// per device
+	private final SyntheticGaitGenerator[] generators;
+	private final int[] firstSequences; // the oldest batch not answered by STEPS
+	private final int[] nextSequences;
+	private final boolean[] isRetryPending;
+	private final long[] retryTimes; // ms
+	private final int[] stepCounts; // counted by the server till the first batch not answered
+	private final long[] answeredGeneratedStepCounts; // ground truth of the same batches
+
+	// per batch not answered, pipeline depth slots of a device indexed by sequence
+	private final byte[][] frames; // sent again if shed
+	private final int[] frameSizes;
+	private final long[] sendTimes; // ns
+	private final boolean[] isAnswered;
+	private final boolean[] isBusy; // waiting to be sent again
+	private final int[] answeredStepCounts;
+	private final long[] generatedStepCounts;
+
+	// free pipeline slots of devices (flat out) and devices waiting to send again, rings of device indexes
+	private final int[] readyDevices;
+	private int readyHead;
+	private int readyCount;
+	private final int[] retryDevices;
+	private int retryHead;
+	private int retryCount;
+
+	private final float[] xyzInterleaved;
+	private final long[] timestamps;
+	private final ByteBuffer frameBuffer;
+	private Selector selector;
+	private ClientConnection[] connections;
+
+	// statistics
+	private long sentBatchCount;
+	private long answeredBatchCount;
+	private long answeredSampleCount;
+	private long busyCount;
+	private long lateCount;
+	private long latencySum; // ns
+	private long maxLatency; // ns
+	private long deltaStepCount;
+
+	/**
+	 * @param batchInterval - ms of signal in a batch and time between batches of a device in real time mode
+	 * @param isFlatOut - true sends batches as fast as they are answered
+	 * @param pipelineDepth - batches of a device sent before the first of them is answered
+	 */
+	public LoadGenerator(InetSocketAddress address, int deviceCount, int connectionCount, int sampleRateInHz,
+			long batchInterval, boolean isFlatOut, int pipelineDepth, long seed) {
+		this.address = address;
+		this.deviceCount = deviceCount;
+		this.connectionCount = Math.min(connectionCount, deviceCount);
+		this.sampleRateInHz = sampleRateInHz;
+		this.batchInterval = batchInterval;
+		this.isFlatOut = isFlatOut;
+		this.pipelineDepth = pipelineDepth;
+		samplesPerBatch = (int) Math.min(BatchProtocol.MAX_BATCH_SAMPLES, sampleRateInHz * batchInterval / 1000);
+		generators = new SyntheticGaitGenerator[deviceCount];
+		firstSequences = new int[deviceCount];
+		nextSequences = new int[deviceCount];
+		isRetryPending = new boolean[deviceCount];
+		retryTimes = new long[deviceCount];
+		stepCounts = new int[deviceCount];
+		answeredGeneratedStepCounts = new long[deviceCount];
+		int slotCount = deviceCount * pipelineDepth;
+		frames = new byte[slotCount][];
+		frameSizes = new int[slotCount];
+		sendTimes = new long[slotCount];
+		isAnswered = new boolean[slotCount];
+		isBusy = new boolean[slotCount];
+		answeredStepCounts = new int[slotCount];
+		generatedStepCounts = new long[slotCount];
+		readyDevices = new int[slotCount];
+		retryDevices = new int[deviceCount];
+		for (int d = 0; d < deviceCount; d++) {
+			generators[d] = new SyntheticGaitGenerator(sampleRateInHz, seed + d);
+			generators[d].addMixedActivity(ACTIVITY_DURATION);
+			generators[d].setOrientationDrift(5);
+			generators[d].setRepeating(true);
+		}
+		for (int slot = 0; slot < slotCount; slot++) {
+			frames[slot] = new byte[BatchProtocol.getBatchFrameSize(samplesPerBatch)];
+		}
+		xyzInterleaved = new float[samplesPerBatch * 3];
+		timestamps = new long[samplesPerBatch];
+		frameBuffer = ByteBuffer.allocate(BatchProtocol.getBatchFrameSize(samplesPerBatch));
+	}
+
+	/**
+	 * Streams batches for given time, then waits for the answers of batches in flight.
+	 */
+	public void run(long durationInMilis) throws IOException {
+		try {
+			connect();
+			long startTime = System.currentTimeMillis();
+			long endTime = startTime + durationInMilis;
+			long lastTickTime = 0; // ms since start
+			long lastReportTime = startTime;
+			long lastReportBatchCount = 0;
+			long lastReportSampleCount = 0;
+			if (isFlatOut) {
+				for (int i = 0; i < pipelineDepth; i++) {
+					for (int d = 0; d < deviceCount; d++) {
+						pushReady(d);
+					}
+				}
+			}
+			System.out.println("Time-s,Batches/s,Samples/s,Busy,Late,Latency-ms,Max-Latency-ms");
+			long now = startTime;
+			while (now < endTime || (getAwaitingCount() > 0 && now < endTime + DRAIN_TIMEOUT)) {
+				selector.select(1);
+				processSelectedKeys();
+				now = System.currentTimeMillis();
+				if (now < endTime) {
+					if (isFlatOut) {
+						sendReady();
+					}
+					else {
+						long tickTime = now - startTime;
+						sendDue(lastTickTime, tickTime);
+						lastTickTime = tickTime;
+					}
+				}
+				sendRetries(now);
+				flushAll();
+				if (now - lastReportTime >= REPORT_INTERVAL) {
+					long interval = now - lastReportTime;
+					System.out.println((now - startTime) / 1000 + ","
+							+ (answeredBatchCount - lastReportBatchCount) * 1000 / interval + ","
+							+ (answeredSampleCount - lastReportSampleCount) * 1000 / interval + ","
+							+ busyCount + ","
+							+ lateCount + ","
+							+ (answeredBatchCount > 0 ? latencySum / answeredBatchCount / 1000000.0 : 0) + ","
+							+ maxLatency / 1000000.0);
+					lastReportTime = now;
+					lastReportBatchCount = answeredBatchCount;
+					lastReportSampleCount = answeredSampleCount;
+				}
+			}
+		} finally {
+			close();
+		}
+	}
+
+	private void connect() throws IOException {
+		selector = Selector.open();
+		connections = new ClientConnection[connectionCount];
+		for (int i = 0; i < connectionCount; i++) {
+			SocketChannel channel = SocketChannel.open(address);
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			ClientConnection connection = new ClientConnection(channel);
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			BatchProtocol.putHello(connection.writeBuffer);
+			connections[i] = connection;
+		}
+	}
+
+	private void close() {
+		if (selector == null) {
+			return;
+		}
+		for (ClientConnection connection : connections) {
+			if (connection == null) {
+				continue;
+			}
+			try {
+				connection.channel.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	private void processSelectedKeys() throws IOException {
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			ClientConnection connection = (ClientConnection) key.attachment();
+			if (key.isReadable()) {
+				if (connection.channel.read(connection.readBuffer) < 0) {
+					throw new IOException("Connection closed by server");
+				}
+				processAnswers(connection.readBuffer);
+			}
+			if (key.isValid() && key.isWritable()) {
+				flush(connection);
+			}
+		}
+	}
+
+	private void processAnswers(ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.remaining() >= BatchProtocol.LENGTH_SIZE) {
+			int length = buffer.getInt(buffer.position());
+			if (buffer.remaining() < BatchProtocol.LENGTH_SIZE + length) {
+				break;
+			}
+			buffer.position(buffer.position() + BatchProtocol.LENGTH_SIZE);
+			byte type = buffer.get();
+			int device = (int) (buffer.getLong() - BASE_DEVICE_ID);
+			int sequence = buffer.getInt();
+			if (device < 0 || device >= deviceCount || sequence - firstSequences[device] < 0
+					|| sequence - nextSequences[device] >= 0
+					|| isAnswered[getSlot(device, sequence)] || isBusy[getSlot(device, sequence)]) {
+				throw new IOException("Unexpected answer of device " + device + " sequence " + sequence);
+			}
+			int slot = getSlot(device, sequence);
+			if (type == BatchProtocol.STEPS) {
+				deltaStepCount += buffer.getInt();
+				answeredStepCounts[slot] = buffer.getInt();
+				onAnswered(device, slot);
+			}
+			else if (type == BatchProtocol.BUSY) {
+				busyCount++;
+				isBusy[slot] = true;
+				scheduleRetry(device, System.currentTimeMillis() + RETRY_DELAY);
+			}
+			else {
+				throw new IOException("Unexpected answer type " + type);
+			}
+		}
+		buffer.compact();
+	}
+
+	private void onAnswered(int device, int slot) {
+		long latency = System.nanoTime() - sendTimes[slot];
+		latencySum += latency;
+		maxLatency = Math.max(maxLatency, latency);
+		answeredBatchCount++;
+		answeredSampleCount += samplesPerBatch;
+		isAnswered[slot] = true;
+		while (firstSequences[device] != nextSequences[device]
+				&& isAnswered[getSlot(device, firstSequences[device])]) {
+			int firstSlot = getSlot(device, firstSequences[device]);
+			isAnswered[firstSlot] = false;
+			stepCounts[device] = answeredStepCounts[firstSlot];
+			answeredGeneratedStepCounts[device] = generatedStepCounts[firstSlot];
+			firstSequences[device]++;
+			if (isFlatOut) {
+				pushReady(device);
+			}
+		}
+	}
+
+	private int getSlot(int device, int sequence) {
+		return device * pipelineDepth + (sequence & Integer.MAX_VALUE) % pipelineDepth;
+	}
+
+	private int getAwaitingCount(int device) {
+		return nextSequences[device] - firstSequences[device];
+	}
+
+	/**
+	 * Sends batches of devices with slots in (lastTickTime, tickTime] of the batch interval.
+	 */
+	private void sendDue(long lastTickTime, long tickTime) {
+		long fromTime = Math.max(lastTickTime, tickTime - batchInterval);
+		for (long time = fromTime; time < tickTime; time++) {
+			long slot = time % batchInterval;
+			int firstDevice = (int) ((slot * deviceCount + batchInterval - 1) / batchInterval);
+			int endDevice = (int) (((slot + 1) * deviceCount + batchInterval - 1) / batchInterval);
+			for (int d = firstDevice; d < endDevice; d++) {
+				if (getAwaitingCount(d) == pipelineDepth) {
+					lateCount++;
+				}
+				else {
+					sendBatch(d);
+				}
+			}
+		}
+	}
+
+	private void sendReady() {
+		while (readyCount > 0) {
+			int device = readyDevices[readyHead];
+			ClientConnection connection = connections[device % connectionCount];
+			if (connection.writeBuffer.remaining() < frames[0].length) {
+				return; // the server is slower, TCP pushes back
+			}
+			readyHead = (readyHead + 1) % readyDevices.length;
+			readyCount--;
+			sendBatch(device);
+		}
+	}
+
+	/**
+	 * Sends batches waiting to be sent again of devices due till now, in order of sequence.
+	 */
+	private void sendRetries(long now) {
+		while (retryCount > 0 && retryTimes[retryDevices[retryHead]] <= now) {
+			int device = retryDevices[retryHead];
+			retryHead = (retryHead + 1) % deviceCount;
+			retryCount--;
+			isRetryPending[device] = false;
+			for (int sequence = firstSequences[device]; sequence != nextSequences[device]; sequence++) {
+				int slot = getSlot(device, sequence);
+				if (isBusy[slot]) {
+					if (!sendFrame(device, slot)) {
+						scheduleRetry(device, now + 1);
+						break;
+					}
+					isBusy[slot] = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Generates and sends the next batch of the device, it waits as a retry behind batches to be sent again.
+	 */
+	private void sendBatch(int device) {
+		int count = generators[device].generate(xyzInterleaved, timestamps, 0, samplesPerBatch);
+		int slot = getSlot(device, nextSequences[device]);
+		frameBuffer.clear();
+		BatchProtocol.putBatch(frameBuffer, BASE_DEVICE_ID + device, nextSequences[device], sampleRateInHz,
+				xyzInterleaved, timestamps, 0, count);
+		frameSizes[slot] = frameBuffer.position();
+		frameBuffer.flip();
+		frameBuffer.get(frames[slot], 0, frameSizes[slot]);
+		generatedStepCounts[slot] = generators[device].getGeneratedStepCount();
+		nextSequences[device]++;
+		sentBatchCount++;
+		if (isRetryPending[device] || !sendFrame(device, slot)) {
+			isBusy[slot] = true;
+			scheduleRetry(device, System.currentTimeMillis() + 1);
+		}
+	}
+
+	/**
+	 * Writes the batch to the connection of the device, false if the connection buffer is full.
+	 */
+	private boolean sendFrame(int device, int slot) {
+		ClientConnection connection = connections[device % connectionCount];
+		if (connection.writeBuffer.remaining() < frameSizes[slot]) {
+			return false;
+		}
+		connection.writeBuffer.put(frames[slot], 0, frameSizes[slot]);
+		sendTimes[slot] = System.nanoTime();
+		return true;
+	}
+
+	private void pushReady(int device) {
+		readyDevices[(readyHead + readyCount) % readyDevices.length] = device;
+		readyCount++;
+	}
+
+	private void scheduleRetry(int device, long time) {
+		if (isRetryPending[device]) {
+			return;
+		}
+		isRetryPending[device] = true;
+		retryTimes[device] = time;
+		retryDevices[(retryHead + retryCount) % deviceCount] = device;
+		retryCount++;
+	}
+
+	private void flushAll() throws IOException {
+		for (ClientConnection connection : connections) {
+			if (connection.writeBuffer.position() > 0) {
+				flush(connection);
+			}
+		}
+	}
+
+	private void flush(ClientConnection connection) throws IOException {
+		connection.writeBuffer.flip();
+		connection.channel.write(connection.writeBuffer);
+		connection.writeBuffer.compact();
+		int ops = SelectionKey.OP_READ | (connection.writeBuffer.position() > 0 ? SelectionKey.OP_WRITE : 0);
+		if (connection.key.interestOps() != ops) {
+			connection.key.interestOps(ops);
+		}
+	}
+
+	private int getAwaitingCount() {
+		int count = 0;
+		for (int d = 0; d < deviceCount; d++) {
+			count += getAwaitingCount(d);
+		}
+		return count;
+	}
+
+	public long getSentBatchCount() {
+		return sentBatchCount;
+	}
+
+	public long getAnsweredBatchCount() {
+		return answeredBatchCount;
+	}
+
+	public long getBusyCount() {
+		return busyCount;
+	}
+
+	public long getLateCount() {
+		return lateCount;
+	}
+
+	/**
+	 * Returns mean time from sending a batch to its answer in ms
+	 */
+	public double getMeanLatency() {
+		return answeredBatchCount > 0 ? latencySum / answeredBatchCount / 1000000.0 : 0;
+	}
+
+	/**
+	 * Returns sum of step counts of all devices counted by the server
+	 */
+	public long getServerStepCount() {
+		long count = 0;
+		for (int d = 0; d < deviceCount; d++) {
+			count += stepCounts[d];
+		}
+		return count;
+	}
+
+	/**
+	 * Returns sum of step count deltas answered by the server, equal to server step count if none was lost
+	 */
+	public long getDeltaStepCount() {
+		return deltaStepCount;
+	}
+
+	/**
+	 * Returns sum of ground truth step counts of answered batches
+	 */
+	public long getGeneratedStepCount() {
+		long count = 0;
+		for (int d = 0; d < deviceCount; d++) {
+			count += answeredGeneratedStepCounts[d];
+		}
+		return count;
+	}
+
+	/**
+	 * Usage: LoadGenerator [-h host] [-p port] [-d devices] [-c connections] [-r rate-Hz] [-b batch-ms] [-t seconds] [-x]
+	 * [-w pipeline-depth] [-q queue-capacity]
+	 * Without -h an in-process server is started on loopback with given shard queue capacity, its counted batches
+	 * are reported too. -x sends batches flat out instead of in real time.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String host = null;
+		int port = IngestionServer.DEFAULT_PORT;
+		int deviceCount = 10000;
+		int connectionCount = 100;
+		int sampleRate = 50;
+		long batchInterval = 1000;
+		long duration = 30 * 1000;
+		boolean isFlatOut = false;
+		int pipelineDepth = 1;
+		int queueCapacity = IngestionServer.DEFAULT_QUEUE_CAPACITY;
+		for (int i = 0; i < args.length; i++) {
+			if ("-h".equals(args[i]) && i + 1 < args.length) {
+				host = args[++i];
+			}
+			else if ("-p".equals(args[i]) && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			}
+			else if ("-d".equals(args[i]) && i + 1 < args.length) {
+				deviceCount = Integer.parseInt(args[++i]);
+			}
+			else if ("-c".equals(args[i]) && i + 1 < args.length) {
+				connectionCount = Integer.parseInt(args[++i]);
+			}
+			else if ("-r".equals(args[i]) && i + 1 < args.length) {
+				sampleRate = Integer.parseInt(args[++i]);
+			}
+			else if ("-b".equals(args[i]) && i + 1 < args.length) {
+				batchInterval = Long.parseLong(args[++i]);
+			}
+			else if ("-t".equals(args[i]) && i + 1 < args.length) {
+				duration = Long.parseLong(args[++i]) * 1000;
+			}
+			else if ("-x".equals(args[i])) {
+				isFlatOut = true;
+			}
+			else if ("-w".equals(args[i]) && i + 1 < args.length) {
+				pipelineDepth = Integer.parseInt(args[++i]);
+			}
+			else if ("-q".equals(args[i]) && i + 1 < args.length) {
+				queueCapacity = Integer.parseInt(args[++i]);
+			}
+			else {
+				System.err.println("Usage: LoadGenerator [-h host] [-p port] [-d devices] [-c connections] [-r rate-Hz]"
+						+ " [-b batch-ms] [-t seconds] [-x] [-w pipeline-depth] [-q queue-capacity]");
+				System.exit(2);
+			}
+		}
+		if (pipelineDepth < 1) {
+			System.err.println("Pipeline depth has to be at least 1");
+			System.exit(2);
+		}
+
+		IngestionServer server = null;
+		InetSocketAddress address;
+		if (host == null) {
+			int processorCount = Runtime.getRuntime().availableProcessors();
+			server = new IngestionServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+					Math.max(1, processorCount / 4), processorCount, queueCapacity,
+					IngestionServer.DEFAULT_MAX_SESSION_COUNT);
+			server.start();
+			address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+		}
+		else {
+			address = new InetSocketAddress(host, port);
+		}
+		LoadGenerator generator = new LoadGenerator(address, deviceCount, connectionCount, sampleRate,
+				batchInterval, isFlatOut, pipelineDepth, 0);
+		try {
+			generator.run(duration);
+		} finally {
+			if (server != null) {
+				server.stop();
+			}
+		}
+		System.err.println(deviceCount + " devices on " + Math.min(connectionCount, deviceCount) + " connections, "
+				+ generator.getAnsweredBatchCount() + " of " + generator.getSentBatchCount() + " batches answered"
+				+ (server != null ? " (" + server.getBatchCount() + " counted by the server)" : "") + ", "
+				+ generator.getBusyCount() + " busy, " + generator.getLateCount() + " late, "
+				+ "mean latency " + generator.getMeanLatency() + " ms, "
+				+ "steps " + generator.getServerStepCount() + " counted (" + generator.getDeltaStepCount()
+				+ " by deltas), " + generator.getGeneratedStepCount() + " generated");
+	}
+
+}
@@ -0,0 +1,37 @@
+package co.joyatwork.pedometer.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Decoded batch of samples on its way from I/O thread to shard worker, reused through {@link Pool}.
+ */
+final class SampleBatch {
+
+	/**
+	 * Free batches shared by I/O threads and shard workers, the number of batches is bounded
+	 * by capacities of shard queues, so they are allocated on demand.
+	 */
+	static final class Pool {
+
+		private final ConcurrentLinkedQueue<SampleBatch> batches = new ConcurrentLinkedQueue<SampleBatch>();
+
+		SampleBatch acquire() {
+			SampleBatch batch = batches.poll();
+			return batch != null ? batch : new SampleBatch();
+		}
+
+		void release(SampleBatch batch) {
+			batch.connection = null;
+			batches.offer(batch);
+		}
+	}
+
+	final float[] xyzInterleaved = new float[BatchProtocol.MAX_BATCH_SAMPLES * 3];
+	final long[] timestamps = new long[BatchProtocol.MAX_BATCH_SAMPLES];
+	Connection connection; // the answer goes to
+	long deviceId;
+	int sequence;
+	int sampleRateInHz;
+	int sampleCount;
+
+}
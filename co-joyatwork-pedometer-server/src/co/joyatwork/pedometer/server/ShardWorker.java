@@ -0,0 +1,182 @@
+package co.joyatwork.pedometer.server;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import co.joyatwork.pedometer.StepCounter;
+
+/**
+ * Worker thread owning {@link StepCounter} sessions of a shard of devices, so a session is used by one thread only
+ * and needs no lock. Batches come through a bounded queue, a batch not fitting the queue is shed
+ * by the I/O thread. New devices over the session limit are shed too, idle sessions are evicted.
+ *
+ * Batches of a device are counted in order of their sequence, a batch after a gap is shed
+ * till the device sends the missing one again, see {@link BatchProtocol}. A batch failing to be counted
+ * is answered by 0 steps and drops the session of its device, so the next batch starts a new one.
+ */
+final class ShardWorker implements Runnable {
+
+	static final long SESSION_TIMEOUT = 10 * 60 * 1000; // ms
+	static final long EVICTION_INTERVAL = 10 * 1000; // ms
+
+	/**
+	 * Step counter of a device with the last counted batch.
+	 */
+	private static final class DeviceSession {
+		StepCounter stepCounter;
+		int lastSequence;
+		long lastSampleTime;
+		long lastActiveTime;
+	}
+
+	private final IngestionServer server;
+	private final SampleBatch.Pool batchPool;
+	private final BlockingQueue<SampleBatch> queue;
+	private final int maxSessionCount;
+	private final Map<Long, DeviceSession> sessions = new HashMap<Long, DeviceSession>();
+	private long lastEvictionTime;
+	// written by this thread only
+	private volatile int sessionCount;
+	private volatile long batchCount;
+	private volatile long sampleCount;
+	private volatile long shedBatchCount;
+
+	ShardWorker(IngestionServer server, SampleBatch.Pool batchPool, int queueCapacity, int maxSessionCount) {
+		this.server = server;
+		this.batchPool = batchPool;
+		this.queue = new ArrayBlockingQueue<SampleBatch>(queueCapacity);
+		this.maxSessionCount = maxSessionCount;
+	}
+
+	/**
+	 * Queues the batch, false if the queue is full and the batch has to be shed.
+	 */
+	boolean offer(SampleBatch batch) {
+		return queue.offer(batch);
+	}
+
+	@Override
+	public void run() {
+		lastEvictionTime = System.currentTimeMillis();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				SampleBatch batch = queue.poll(EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+				long now = System.currentTimeMillis();
+				if (batch != null) {
+					try {
+						count(batch, now);
+					} catch (RuntimeException e) {
+						server.onError("counting batch of device " + batch.deviceId + " failed", e);
+						sessions.remove(Long.valueOf(batch.deviceId));
+						sessionCount = sessions.size();
+						batch.connection.answerSteps(batch.deviceId, batch.sequence, 0, 0);
+					}
+					batchPool.release(batch);
+				}
+				if (now - lastEvictionTime >= EVICTION_INTERVAL) {
+					evictIdleSessions(now);
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	private void count(SampleBatch batch, long now) {
+		Long deviceId = Long.valueOf(batch.deviceId);
+		DeviceSession session = sessions.get(deviceId);
+		if (session == null) {
+			if (sessions.size() >= maxSessionCount || batch.connection.isShedBefore(batch.deviceId, batch.sequence)) {
+				shedBatchCount++;
+				batch.connection.answerBusy(batch.deviceId, batch.sequence);
+				return;
+			}
+			session = new DeviceSession();
+			session.lastSequence = batch.sequence - 1;
+			sessions.put(deviceId, session);
+			sessionCount = sessions.size();
+		}
+		session.lastActiveTime = now;
+		if (batch.sequence == 0) { // new stream of the device, e.g. restarted app
+			session.stepCounter = null;
+			session.lastSequence = -1;
+		}
+		int gap = batch.sequence - session.lastSequence;
+		if (gap <= 0) { // repeat of counted batch, e.g. answer was lost
+			batch.connection.answerSteps(batch.deviceId, batch.sequence, 0, getStepCount(session));
+			return;
+		}
+		if (gap > 1) { // an earlier batch was shed or lost, counted after it is sent again
+			shedBatchCount++;
+			batch.connection.answerBusy(batch.deviceId, batch.sequence);
+			return;
+		}
+		int count = batch.sampleCount;
+		if (session.stepCounter == null || (count > 0 && batch.timestamps[0] < session.lastSampleTime)) {
+			// new device or its clock restarted
+			session.stepCounter = createStepCounter(batch.sampleRateInHz);
+			session.lastSampleTime = 0;
+		}
+		int stepCount = session.stepCounter.getStepCount();
+		session.stepCounter.countSteps(batch.xyzInterleaved, batch.timestamps, 0, count);
+		if (count > 0) {
+			session.lastSampleTime = batch.timestamps[count - 1];
+		}
+		session.lastSequence = batch.sequence;
+		batchCount++;
+		sampleCount += count;
+		batch.connection.answerSteps(batch.deviceId, batch.sequence,
+				session.stepCounter.getStepCount() - stepCount, session.stepCounter.getStepCount());
+	}
+
+	/**
+	 * Still devices cost little, the motion gate bypasses step detection.
+	 */
+	private static StepCounter createStepCounter(int sampleRateInHz) {
+		StepCounter stepCounter = sampleRateInHz > 0
+				? new StepCounter(null, StepCounter.TUMBLING_WINDOW_THRESHOLD, sampleRateInHz)
+				: new StepCounter(null);
+		stepCounter.setMotionGate(true);
+		return stepCounter;
+	}
+
+	private static int getStepCount(DeviceSession session) {
+		return session.stepCounter != null ? session.stepCounter.getStepCount() : 0;
+	}
+
+	private void evictIdleSessions(long now) {
+		lastEvictionTime = now;
+		Iterator<DeviceSession> iterator = sessions.values().iterator();
+		while (iterator.hasNext()) {
+			if (now - iterator.next().lastActiveTime > SESSION_TIMEOUT) {
+				iterator.remove();
+			}
+		}
+		sessionCount = sessions.size();
+	}
+
+	int getSessionCount() {
+		return sessionCount;
+	}
+
+	long getBatchCount() {
+		return batchCount;
+	}
+
+	long getSampleCount() {
+		return sampleCount;
+	}
+
+	long getShedBatchCount() {
+		return shedBatchCount;
+	}
+
+	int getQueueSize() {
+		return queue.size();
+	}
+
+}
@@ -0,0 +1,81 @@
+package co.joyatwork.pedometer.tools;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import co.joyatwork.pedometer.StepJournal;
+
+/**
+ * Keeps durable step total of {@link StepJournal} in a small file on host.
+ * The file is replaced atomically by rename of synced temporary file.
+ */
+public class FileStepTotalStore implements StepJournal.StepTotalStore {
+
+	private final File file;
+	private final File temporaryFile;
+	private int total;
+	private long generation;
+	private long storeCount;
+
+	public FileStepTotalStore(File file) throws IOException {
+		this.file = file;
+		this.temporaryFile = new File(file.getPath() + ".tmp");
+		total = 0;
+		generation = 0;
+		if (file.exists()) {
+			DataInputStream input = new DataInputStream(new FileInputStream(file));
+			try {
+				total = input.readInt();
+				generation = input.readLong();
+			} finally {
+				input.close();
+			}
+		}
+	}
+
+	@Override
+	public int getTotal() {
+		return total;
+	}
+
+	@Override
+	public long getGeneration() {
+		return generation;
+	}
+
+	@Override
+	public void store(int total, long generation) {
+		try {
+			FileOutputStream output = new FileOutputStream(temporaryFile);
+			try {
+				DataOutputStream data = new DataOutputStream(output);
+				data.writeInt(total);
+				data.writeLong(generation);
+				data.flush();
+				output.getFD().sync();
+			} finally {
+				output.close();
+			}
+			if (!temporaryFile.renameTo(file)) {
+				throw new IOException("rename to " + file + " failed");
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("step total could not be stored", e);
+		}
+		this.total = total;
+		this.generation = generation;
+		storeCount++;
+	}
+
+	/**
+	 * Returns number of writes of the total
+	 */
+	public long getStoreCount() {
+		return storeCount;
+	}
+
+}
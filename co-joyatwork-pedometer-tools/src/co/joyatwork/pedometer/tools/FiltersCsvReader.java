@@ -0,0 +1,102 @@
+package co.joyatwork.pedometer.tools;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Reads raw sensor columns of filters.csv as written by LoggingPedometerService:
+ * Time,X-sensor,X-filter,Y-sensor,Y-filter,Z-sensor,Z-filter
+ * Samples are read in blocks into caller supplied arrays, so memory does not grow with the recording length.
+ */
+public class FiltersCsvReader implements Closeable {
+
+	static final String CSV_HEADER_FILTER_OUTPUT_FILE =
+			"Time,X-sensor,X-filter,Y-sensor,Y-filter,Z-sensor,Z-filter";
+	private static final char CSV_DELIM = ',';
+	private static final int TIME_COLUMN = 0;
+	private static final int X_SENSOR_COLUMN = 1;
+	private static final int Y_SENSOR_COLUMN = 3;
+	private static final int Z_SENSOR_COLUMN = 5;
+
+	private final BufferedReader reader;
+	private final File file;
+	private int lineNumber;
+
+	public FiltersCsvReader(File file) throws IOException {
+		this.file = file;
+		this.reader = new BufferedReader(new FileReader(file));
+		String header = reader.readLine();
+		lineNumber = 1;
+		if (header == null || !header.startsWith(CSV_HEADER_FILTER_OUTPUT_FILE)) {
+			reader.close();
+			throw new IOException(file + ": not a filters.csv recording, header: " + header);
+		}
+	}
+
+	/**
+	 * Reads next block of samples.
+	 * @param xyzInterleaved - destination of raw samples stored as x0,y0,z0,x1,y1,z1,...
+	 * @param timestamps - destination of sample times in ms
+	 * @return number of samples read, 0 at the end of file
+	 */
+	public int read(float[] xyzInterleaved, long[] timestamps) throws IOException {
+		int maxCount = Math.min(timestamps.length, xyzInterleaved.length / 3);
+		int count = 0;
+		String line;
+		while (count < maxCount && (line = reader.readLine()) != null) {
+			lineNumber++;
+			if (line.length() == 0) {
+				continue;
+			}
+			try {
+				parseLine(line, xyzInterleaved, timestamps, count);
+			} catch (NumberFormatException e) {
+				throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+			}
+			count++;
+		}
+		return count;
+	}
+
+	private void parseLine(String line, float[] xyzInterleaved, long[] timestamps, int index) {
+		int column = 0;
+		int start = 0;
+		int valueIndex = index * 3;
+		while (column <= Z_SENSOR_COLUMN) {
+			int end = line.indexOf(CSV_DELIM, start);
+			if (end < 0) {
+				end = line.length();
+			}
+			switch (column) {
+			case TIME_COLUMN:
+				timestamps[index] = Long.parseLong(line.substring(start, end));
+				break;
+			case X_SENSOR_COLUMN:
+				xyzInterleaved[valueIndex] = Float.parseFloat(line.substring(start, end));
+				break;
+			case Y_SENSOR_COLUMN:
+				xyzInterleaved[valueIndex + 1] = Float.parseFloat(line.substring(start, end));
+				break;
+			case Z_SENSOR_COLUMN:
+				xyzInterleaved[valueIndex + 2] = Float.parseFloat(line.substring(start, end));
+				break;
+			default: // filter columns are not needed for replay
+				break;
+			}
+			if (end == line.length() && column < Z_SENSOR_COLUMN) {
+				throw new NumberFormatException("missing column " + (column + 1));
+			}
+			column++;
+			start = end + 1;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
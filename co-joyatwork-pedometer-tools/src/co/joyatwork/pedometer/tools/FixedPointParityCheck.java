@@ -0,0 +1,101 @@
+package co.joyatwork.pedometer.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import co.joyatwork.pedometer.StepCounter;
+
+/**
+ * Replays recorded filters.csv files through the float and the fixed point step detectors
+ * and checks the step counts of both engines match within tolerance.
+ * Exit code is 0 if all recordings pass, 1 if any recording differs more than allowed or could not be read,
+ * 2 on usage error.
+ */
+public class FixedPointParityCheck {
+
+	static final float DEFAULT_TOLERANCE = 2.0F; // % of float engine step count
+	static final int MIN_ALLOWED_DIFFERENCE = 1; // steps, short recordings may differ by a step anyway
+
+	/**
+	 * Returns true if fixed point step count is within tolerance (in %) of float step count
+	 */
+	static boolean isWithinTolerance(int floatSteps, int fixedPointSteps, float tolerance) {
+		int allowedDifference = Math.max(MIN_ALLOWED_DIFFERENCE, (int) (floatSteps * tolerance / 100));
+		return Math.abs(fixedPointSteps - floatSteps) <= allowedDifference;
+	}
+
+	/**
+	 * Usage: FixedPointParityCheck [-j threads] [-t tolerance%] dir|file...
+	 * Prints per-file step counts of both engines as CSV.
+	 */
+	public static void main(String[] args) {
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		float tolerance = DEFAULT_TOLERANCE;
+		List<File> recordings = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-j".equals(args[i]) && i + 1 < args.length) {
+				parallelism = Integer.parseInt(args[++i]);
+			}
+			else if ("-t".equals(args[i]) && i + 1 < args.length) {
+				tolerance = Float.parseFloat(args[++i]);
+			}
+			else {
+				File file = new File(args[i]);
+				if (file.isDirectory()) {
+					ReplayEngine.findRecordings(file, recordings);
+				}
+				else {
+					recordings.add(file);
+				}
+			}
+		}
+		if (recordings.isEmpty()) {
+			System.err.println("Usage: FixedPointParityCheck [-j threads] [-t tolerance%] dir|file...");
+			System.exit(2);
+		}
+
+		List<ReplayResult> floatResults = replay(recordings, parallelism, StepCounter.TUMBLING_WINDOW_THRESHOLD);
+		List<ReplayResult> fixedPointResults = replay(recordings, parallelism, StepCounter.FIXED_POINT_DETECTOR);
+
+		int failedCount = 0;
+		long floatTime = 0;
+		long fixedPointTime = 0;
+		System.out.println("File,Float-Steps,Fixed-Steps,Difference,Result");
+		for (int i = 0; i < recordings.size(); i++) {
+			int floatSteps = floatResults.get(i).getStepCount();
+			int fixedPointSteps = fixedPointResults.get(i).getStepCount();
+			Exception error = floatResults.get(i).isFailed()
+					? floatResults.get(i).getError() : fixedPointResults.get(i).getError();
+			boolean isRead = error == null;
+			if (!isRead) {
+				System.err.println(recordings.get(i).getPath() + ": " + error);
+			}
+			boolean passed = isRead && isWithinTolerance(floatSteps, fixedPointSteps, tolerance);
+			if (!passed) {
+				failedCount++;
+			}
+			floatTime += floatResults.get(i).getElapsedTimeInNanos();
+			fixedPointTime += fixedPointResults.get(i).getElapsedTimeInNanos();
+			System.out.println(recordings.get(i).getPath() + ','
+					+ floatSteps + ','
+					+ fixedPointSteps + ','
+					+ (fixedPointSteps - floatSteps) + ','
+					+ (passed ? "ok" : "FAILED"));
+		}
+		System.err.println(recordings.size() + " recordings, " + failedCount + " failed (tolerance "
+				+ tolerance + "%), float " + floatTime / 1000000 + " ms, fixed point "
+				+ fixedPointTime / 1000000 + " ms");
+		System.exit(failedCount == 0 ? 0 : 1);
+	}
+
+	private static List<ReplayResult> replay(List<File> recordings, int parallelism, int detectorType) {
+		ReplayEngine engine = new ReplayEngine(parallelism, detectorType);
+		try {
+			return engine.replay(recordings);
+		} finally {
+			engine.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+package co.joyatwork.pedometer.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import co.joyatwork.pedometer.Clock;
+import co.joyatwork.pedometer.GaitAnalytics;
+import co.joyatwork.pedometer.SampleSource;
+import co.joyatwork.pedometer.StepCountPublisher;
+import co.joyatwork.pedometer.StepCounter;
+import co.joyatwork.pedometer.StepCountingPipeline;
+import co.joyatwork.pedometer.StepJournal;
+
+/**
+ * Runs the whole step counting path of PedometerService (step counter, journal persistence, rate limited
+ * publishing) headless on JVM, fed by recordings or synthetic signal as fast as possible.
+ * Used to profile and load-test the path on build hosts.
+ */
+public class HeadlessPedometerRunner {
+
+	private static final String STEPS_JOURNAL_FILE = "steps.journal";
+	private static final String STEPS_TOTAL_FILE = "steps.total";
+
+	/**
+	 * Counts published step counts, a host has no UI to deliver them to.
+	 * Flush requests are not scheduled, the last count is flushed when the pipeline is closed.
+	 */
+	static final class CountingStepCountPublisher extends StepCountPublisher {
+
+		private long publishCount;
+
+		@Override
+		protected void publish(int stepCount) {
+			publishCount++;
+		}
+
+		@Override
+		protected void requestFlush(long delayInMilis) {
+		}
+
+		long getPublishCount() {
+			return publishCount;
+		}
+	}
+
+	private final StepCountingPipeline pipeline;
+	private final StepCounter stepCounter;
+	private final FileStepTotalStore store;
+	private final CountingStepCountPublisher publisher;
+	private final GaitAnalytics gaitAnalytics;
+
+	/**
+	 * @param workDirectory - directory of journal and step total files, they are reused by next runs
+	 * @param detectorType - see {@link StepCounter#StepCounter(StepCounter.StepCounterListener, int)}
+	 * @param sampleRateInHz - of the samples or {@link StepCounter#OBSERVED_SAMPLE_RATE}
+	 */
+	public HeadlessPedometerRunner(File workDirectory, int detectorType, int sampleRateInHz, Clock clock)
+			throws IOException {
+		store = new FileStepTotalStore(new File(workDirectory, STEPS_TOTAL_FILE));
+		StepJournal journal = new StepJournal(new File(workDirectory, STEPS_JOURNAL_FILE), store);
+		publisher = new CountingStepCountPublisher();
+		pipeline = new StepCountingPipeline(journal, publisher, clock);
+		stepCounter = new StepCounter(pipeline, detectorType, sampleRateInHz);
+		gaitAnalytics = new GaitAnalytics();
+		stepCounter.setStepEventListener(gaitAnalytics);
+	}
+
+	/**
+	 * Feeds the step counter by all samples of the source on calling thread.
+	 */
+	public void run(SampleSource source) throws IOException {
+		source.start(stepCounter);
+		gaitAnalytics.flush(Long.MAX_VALUE); // the last bout ends with the source
+	}
+
+	public void close() throws IOException {
+		pipeline.close();
+	}
+
+	public int getStepCount() {
+		return pipeline.getStepCount();
+	}
+
+	public long getStoreCount() {
+		return store.getStoreCount();
+	}
+
+	public long getPublishCount() {
+		return publisher.getPublishCount();
+	}
+
+	public GaitAnalytics getGaitAnalytics() {
+		return gaitAnalytics;
+	}
+
+	/**
+	 * Usage: HeadlessPedometerRunner [-w work-dir] [-d detector-type] [-n repeat] (-s seconds [-r rate-Hz] [-m] | recording...)
+	 * Recording is filters.csv file or directory of binary recording segments.
+	 * Synthetic signal is steady walking, with -m seeded mix of walking, running and pauses with orientation drift.
+	 * Without -w the work directory is a fresh temporary one.
+	 * Windows of the step counter are sized by the synthetic sample rate, for recordings by the rate observed
+	 * at the start of the first one.
+	 */
+	public static void main(String[] args) throws IOException {
+		File workDirectory = null;
+		int detectorType = StepCounter.TUMBLING_WINDOW_THRESHOLD;
+		int repeatCount = 1;
+		long syntheticDuration = 0;
+		int sampleRate = 50;
+		boolean isMixedActivity = false;
+		List<File> recordings = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-w".equals(args[i]) && i + 1 < args.length) {
+				workDirectory = new File(args[++i]);
+			}
+			else if ("-d".equals(args[i]) && i + 1 < args.length) {
+				detectorType = Integer.parseInt(args[++i]);
+			}
+			else if ("-n".equals(args[i]) && i + 1 < args.length) {
+				repeatCount = Integer.parseInt(args[++i]);
+			}
+			else if ("-s".equals(args[i]) && i + 1 < args.length) {
+				syntheticDuration = Long.parseLong(args[++i]) * 1000;
+			}
+			else if ("-r".equals(args[i]) && i + 1 < args.length) {
+				sampleRate = Integer.parseInt(args[++i]);
+			}
+			else if ("-m".equals(args[i])) {
+				isMixedActivity = true;
+			}
+			else {
+				recordings.add(new File(args[i]));
+			}
+		}
+		if (recordings.isEmpty() == (syntheticDuration == 0)) {
+			System.err.println("Usage: HeadlessPedometerRunner [-w work-dir] [-d detector-type] [-n repeat]"
+					+ " (-s seconds [-r rate-Hz] [-m] | recording...)");
+			System.exit(2);
+		}
+		if (workDirectory == null) {
+			workDirectory = File.createTempFile("pedometer", "");
+			if (!workDirectory.delete() || !workDirectory.mkdir()) {
+				throw new IOException(workDirectory + ": work directory could not be created");
+			}
+		}
+
+		HeadlessPedometerRunner runner = new HeadlessPedometerRunner(workDirectory, detectorType,
+				syntheticDuration > 0 ? sampleRate : StepCounter.OBSERVED_SAMPLE_RATE, new HostClock());
+		long sampleCount = 0;
+		long generatedStepCount = 0;
+		long startTime = System.nanoTime();
+		try {
+			for (int n = 0; n < repeatCount; n++) {
+				if (syntheticDuration > 0) {
+					SyntheticSampleSource source = isMixedActivity
+							? new SyntheticSampleSource(createMixedActivity(syntheticDuration, sampleRate, n))
+							: new SyntheticSampleSource(syntheticDuration, sampleRate, 500, 3.0F, 0.2F, n);
+					runner.run(source);
+					sampleCount += source.getSampleCount();
+					generatedStepCount += source.getGeneratedStepCount();
+				}
+				for (File recording : recordings) {
+					RecordingSampleSource source = new RecordingSampleSource(recording);
+					runner.run(source);
+					sampleCount += source.getSampleCount();
+				}
+			}
+		} finally {
+			runner.close();
+		}
+		long elapsedTime = System.nanoTime() - startTime;
+
+		GaitAnalytics gaitAnalytics = runner.getGaitAnalytics();
+		System.out.println("Samples,Steps,Generated-Steps,Time-ms,Samples/s,Total-Writes,Publishes,"
+				+ "Distance-m,Bouts,Walking-s,Running-s");
+		System.out.println(sampleCount + ","
+				+ runner.getStepCount() + ","
+				+ (syntheticDuration > 0 ? Long.toString(generatedStepCount) : "") + ","
+				+ elapsedTime / 1000000 + ","
+				+ Math.round(sampleCount * 1e9 / elapsedTime) + ","
+				+ runner.getStoreCount() + ","
+				+ runner.getPublishCount() + ","
+				+ Math.round(gaitAnalytics.getDistance()) + ","
+				+ gaitAnalytics.getBoutCount() + ","
+				+ gaitAnalytics.getWalkingTime() / 1000 + ","
+				+ gaitAnalytics.getRunningTime() / 1000);
+		System.err.println("work directory " + workDirectory);
+	}
+
+	private static SyntheticGaitGenerator createMixedActivity(long durationInMilis, int sampleRateInHz, long seed) {
+		SyntheticGaitGenerator generator = new SyntheticGaitGenerator(sampleRateInHz, seed);
+		generator.addMixedActivity(durationInMilis);
+		generator.setOrientationDrift(10);
+		return generator;
+	}
+
+}
@@ -0,0 +1,17 @@
+package co.joyatwork.pedometer.tools;
+
+import co.joyatwork.pedometer.Clock;
+
+/**
+ * Monotonic clock of JVM host.
+ */
+public class HostClock implements Clock {
+
+	private static final long NANO_TO_MILISECONDS = 1000000;
+
+	@Override
+	public long getTimeInMilis() {
+		return System.nanoTime() / NANO_TO_MILISECONDS;
+	}
+
+}
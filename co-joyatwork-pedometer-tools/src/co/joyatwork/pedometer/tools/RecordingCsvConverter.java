@@ -0,0 +1,114 @@
+package co.joyatwork.pedometer.tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import co.joyatwork.pedometer.RecordingReader;
+
+/**
+ * Converts binary recording to filters.csv, steps.csv and peaks.csv
+ * in the same layout as LoggingPedometerService writes them.
+ */
+public class RecordingCsvConverter {
+
+	private static final char CSV_DELIM = ',';
+	private static final String CSV_HEADER_STEPS_FILE =
+			"Time,X-Avg,X-Thld,X-Step,X-Int,X-AvgInt,X-Var,X-Val,Y-Avg,Y-Thld,Y-Step,Y-Int,Y-AvgInt,Y-Var,Y-Val,Z-Avg,Z-Thld,Z-Step,Z-Int,Z-AvgInt,Z-Var,Z-Val";
+	private static final String CSV_HEADER_PEAK_DETECTION_FILE =
+			"Time,X-val,X-currPeak,X-fixedPeak,Y-val,Y-currPeak,Y-fixedPeak,Z-val,Z-currPeak,Z-fixedPeak";
+
+	/**
+	 * @return number of converted sample records
+	 */
+	public static long convert(File recordingDirectory, File outputDirectory) throws IOException {
+		RecordingReader reader = new RecordingReader(recordingDirectory);
+		PrintWriter filterOutputLogWriter = null;
+		PrintWriter stepsDataWriter = null;
+		PrintWriter peakDetectionLogWriter = null;
+		long recordCount = 0;
+		try {
+			filterOutputLogWriter = openCsv(new File(outputDirectory, "filters.csv"), FiltersCsvReader.CSV_HEADER_FILTER_OUTPUT_FILE);
+			stepsDataWriter = openCsv(new File(outputDirectory, "steps.csv"), CSV_HEADER_STEPS_FILE);
+			peakDetectionLogWriter = openCsv(new File(outputDirectory, "peaks.csv"), CSV_HEADER_PEAK_DETECTION_FILE);
+
+			float[] stepFlip = { -0.5F, -0.5F, -0.5F };
+			StringBuilder line = new StringBuilder();
+			while (reader.next()) {
+				long timeStampInMilis = reader.getSampleTime() - reader.getStartTime();
+
+				line.setLength(0);
+				line.append(timeStampInMilis);
+				for (int axis = 0; axis < 3; axis++) {
+					line.append(CSV_DELIM).append(reader.getSensorValue(axis))
+						.append(CSV_DELIM).append(reader.getSmoothedAcceleration(axis));
+				}
+				filterOutputLogWriter.println(line);
+
+				line.setLength(0);
+				line.append(timeStampInMilis);
+				for (int axis = 0; axis < 3; axis++) {
+					line.append(CSV_DELIM).append(reader.getSmoothedAcceleration(axis))
+						.append(CSV_DELIM).append(reader.getCurrentPeak2PeakValue(axis))
+						.append(CSV_DELIM).append(reader.getFixedPeak2PeakValue(axis));
+				}
+				peakDetectionLogWriter.println(line);
+
+				line.setLength(0);
+				line.append(timeStampInMilis);
+				for (int axis = 0; axis < 3; axis++) {
+					if (reader.hasCrossedThreshold(axis)) {
+						stepFlip[axis] *= -1;
+					}
+					line.append(CSV_DELIM).append(reader.getSmoothedAcceleration(axis))
+						.append(CSV_DELIM).append(reader.getThresholdValue(axis))
+						.append(CSV_DELIM).append(stepFlip[axis])
+						.append(CSV_DELIM).append(reader.getStepInterval(axis))
+						.append(CSV_DELIM).append(reader.getAvgStepInterval(axis))
+						.append(CSV_DELIM).append(reader.getStepIntervalVariance(axis))
+						.append(CSV_DELIM).append(reader.hasValidSteps(axis));
+				}
+				stepsDataWriter.println(line);
+
+				recordCount++;
+			}
+		} finally {
+			closeCsv(filterOutputLogWriter);
+			closeCsv(stepsDataWriter);
+			closeCsv(peakDetectionLogWriter);
+		}
+		return recordCount;
+	}
+
+	private static PrintWriter openCsv(File file, String header) throws IOException {
+		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		writer.println(header);
+		return writer;
+	}
+
+	private static void closeCsv(PrintWriter writer) throws IOException {
+		if (writer != null) {
+			writer.close();
+			if (writer.checkError()) {
+				throw new IOException("Error writing CSV file");
+			}
+		}
+	}
+
+	/**
+	 * Usage: RecordingCsvConverter recordingDir [outputDir]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: RecordingCsvConverter recordingDir [outputDir]");
+			System.exit(2);
+		}
+		File recordingDirectory = new File(args[0]);
+		File outputDirectory = args.length > 1 ? new File(args[1]) : recordingDirectory;
+		long recordCount = convert(recordingDirectory, outputDirectory);
+		System.err.println(recordCount + " records converted to " + outputDirectory);
+	}
+
+}
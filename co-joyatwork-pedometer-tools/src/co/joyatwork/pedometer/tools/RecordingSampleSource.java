@@ -0,0 +1,84 @@
+package co.joyatwork.pedometer.tools;
+
+import java.io.File;
+import java.io.IOException;
+
+import co.joyatwork.pedometer.RecordingReader;
+import co.joyatwork.pedometer.SampleSource;
+import co.joyatwork.pedometer.StepCounter;
+
+/**
+ * Feeds step counter by raw samples of a recording as fast as possible, in blocks.
+ * The recording is either filters.csv file or directory of binary recording segments.
+ */
+public class RecordingSampleSource implements SampleSource {
+
+	private static final int BLOCK_SIZE = 4096; // samples read and counted at once
+
+	private final File recording;
+	private final float[] xyzInterleaved = new float[BLOCK_SIZE * 3];
+	private final long[] timestamps = new long[BLOCK_SIZE];
+	private volatile boolean isStopped;
+	private long sampleCount;
+
+	public RecordingSampleSource(File recording) {
+		this.recording = recording;
+	}
+
+	@Override
+	public void start(StepCounter stepCounter) throws IOException {
+		isStopped = false;
+		if (recording.isDirectory()) {
+			replayBinaryRecording(stepCounter);
+		}
+		else {
+			replayCsvRecording(stepCounter);
+		}
+	}
+
+	@Override
+	public void stop() {
+		isStopped = true;
+	}
+
+	/**
+	 * Returns number of samples delivered since the source was created
+	 */
+	public long getSampleCount() {
+		return sampleCount;
+	}
+
+	private void replayCsvRecording(StepCounter stepCounter) throws IOException {
+		FiltersCsvReader reader = new FiltersCsvReader(recording);
+		try {
+			int count;
+			while (!isStopped && (count = reader.read(xyzInterleaved, timestamps)) > 0) {
+				stepCounter.countSteps(xyzInterleaved, timestamps, 0, count);
+				sampleCount += count;
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void replayBinaryRecording(StepCounter stepCounter) throws IOException {
+		RecordingReader reader = new RecordingReader(recording);
+		int count = 0;
+		while (!isStopped && reader.next()) {
+			timestamps[count] = reader.getSampleTime();
+			for (int axis = 0; axis < 3; axis++) {
+				xyzInterleaved[3 * count + axis] = reader.getSensorValue(axis);
+			}
+			if (++count == BLOCK_SIZE) {
+				stepCounter.countSteps(xyzInterleaved, timestamps, 0, count);
+				sampleCount += count;
+				count = 0;
+			}
+		}
+		if (count > 0) {
+			stepCounter.countSteps(xyzInterleaved, timestamps, 0, count);
+			sampleCount += count;
+		}
+	}
+
+}
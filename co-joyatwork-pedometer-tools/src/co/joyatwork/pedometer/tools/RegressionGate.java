@@ -0,0 +1,489 @@
+package co.joyatwork.pedometer.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import co.joyatwork.pedometer.StepCounter;
+
+/**
+ * Accuracy and throughput regression gate of {@link StepCounter} over a corpus of labeled recordings,
+ * to be run by every build with the baseline stored by the previous one.
+ *
+ * The corpus is a directory of filters.csv recordings with labels.csv in its root: lines of
+ * recording path relative to the root and the true step count, lines starting by # are comments.
+ * Seeded recordings of {@link SyntheticGaitGenerator} can be added, labeled by their ground truth.
+ *
+ * Recordings are loaded to memory first, so only counting is measured: the corpus is counted
+ * to warm up till WARM_UP_SAMPLE_COUNT samples, then the fastest of several rounds is taken, on a single thread for stable timing.
+ * Allocation is measured by HotSpot per thread allocation counter, the hot path is expected garbage free.
+ *
+ * The gate fails if step count error of a labeled recording exceeds the maximal error against its label,
+ * or compared to the baseline: the error grows more than the accuracy tolerance, step count of unlabeled
+ * recording changes more than the tolerance, total samples/s drop more than the throughput tolerance,
+ * allocation per sample grows or a recording of the baseline is missing from the run.
+ * Recordings not in the baseline are just reported.
+ *
+ * Updated baseline keeps throughput, allocation and step counts of unlabeled recordings of the baseline,
+ * so changes within the tolerances don't add up run by run and a lucky run does not raise the bar;
+ * accepted baseline takes the results as they are.
+ * Exit code is 0 if the gate passes, 1 if it fails, 2 on usage error.
+ */
+public class RegressionGate {
+
+	static final String LABELS_FILE_NAME = "labels.csv";
+	static final float DEFAULT_ACCURACY_TOLERANCE = 1.0F; // % of expected step count
+	static final float DEFAULT_MAX_ERROR = 5.0F; // % of expected step count
+	static final int MIN_ALLOWED_DIFFERENCE = 1; // steps
+	static final float DEFAULT_THROUGHPUT_TOLERANCE = 10.0F; // % of baseline samples/s
+	static final float ALLOCATION_TOLERANCE = 0.01F; // bytes/sample, e.g. a few objects per recording
+	static final int DEFAULT_ROUNDS = 5;
+	static final long WARM_UP_SAMPLE_COUNT = 5000000; // enough for JIT to compile the hot path
+	static final long SYNTHETIC_DURATION = 10 * 60 * 1000; // ms
+	static final int SYNTHETIC_SAMPLE_RATE = 50; // Hz
+	private static final String TOTAL = "TOTAL";
+	private static final String HEADER = "File,Expected-Steps,Steps,Error,Samples,Samples/s,Bytes/Sample";
+	private static final int BLOCK_SIZE = 4096; // samples counted at once
+
+	/**
+	 * Samples of a recording loaded to memory.
+	 */
+	static final class Recording {
+		final String name;
+		final int expectedStepCount; // -1 if not labeled
+		final float[] xyzInterleaved;
+		final long[] timestamps;
+
+		Recording(String name, int expectedStepCount, float[] xyzInterleaved, long[] timestamps) {
+			this.name = name;
+			this.expectedStepCount = expectedStepCount;
+			this.xyzInterleaved = xyzInterleaved;
+			this.timestamps = timestamps;
+		}
+	}
+
+	/**
+	 * Step count and measurements of a recording, or the total of the corpus.
+	 */
+	static final class Result {
+		final String name;
+		final int expectedStepCount; // -1 if not labeled
+		final int stepCount;
+		final long sampleCount;
+		final double samplesPerSecond;
+		final double bytesPerSample; // -1 if not measured
+
+		Result(String name, int expectedStepCount, int stepCount, long sampleCount,
+				double samplesPerSecond, double bytesPerSample) {
+			this.name = name;
+			this.expectedStepCount = expectedStepCount;
+			this.stepCount = stepCount;
+			this.sampleCount = sampleCount;
+			this.samplesPerSecond = samplesPerSecond;
+			this.bytesPerSample = bytesPerSample;
+		}
+
+		boolean isLabeled() {
+			return expectedStepCount >= 0;
+		}
+
+		int getError() {
+			return stepCount - expectedStepCount;
+		}
+	}
+
+	private final int detectorType;
+	private final int roundCount;
+	private final float accuracyTolerance;
+	private final float maxError;
+	private final float throughputTolerance;
+
+	/**
+	 * @param detectorType - see {@link StepCounter#StepCounter(StepCounter.StepCounterListener, int)}
+	 * @param roundCount - measured rounds, the fastest is taken
+	 * @param accuracyTolerance - in % of expected step count
+	 * @param maxError - in % of expected step count
+	 * @param throughputTolerance - in % of baseline samples/s
+	 */
+	public RegressionGate(int detectorType, int roundCount, float accuracyTolerance, float maxError,
+			float throughputTolerance) {
+		this.detectorType = detectorType;
+		this.roundCount = roundCount;
+		this.accuracyTolerance = accuracyTolerance;
+		this.maxError = maxError;
+		this.throughputTolerance = throughputTolerance;
+	}
+
+	/**
+	 * Counts steps of all recordings, the last result is the TOTAL of the corpus.
+	 */
+	List<Result> run(List<Recording> recordings) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		boolean isAllocationMeasured = threadBean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported();
+		long threadId = Thread.currentThread().getId();
+
+		long warmUpSampleCount = 0;
+		do {
+			for (Recording recording : recordings) {
+				count(recording, new StepCounter(null, detectorType));
+				warmUpSampleCount += recording.timestamps.length;
+			}
+		} while (warmUpSampleCount > 0 && warmUpSampleCount < WARM_UP_SAMPLE_COUNT);
+		List<Result> results = new ArrayList<Result>(recordings.size() + 1);
+		long totalSampleCount = 0;
+		long totalTime = 0;
+		long totalAllocatedBytes = 0;
+		for (Recording recording : recordings) {
+			long bestTime = Long.MAX_VALUE;
+			long allocatedBytes = 0;
+			int stepCount = 0;
+			for (int round = 0; round < roundCount; round++) {
+				StepCounter stepCounter = new StepCounter(null, detectorType); // not measured
+				long startBytes = isAllocationMeasured
+						? ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(threadId) : 0;
+				long startTime = System.nanoTime();
+				count(recording, stepCounter);
+				long time = System.nanoTime() - startTime;
+				if (isAllocationMeasured && round == roundCount - 1) {
+					allocatedBytes = ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(threadId)
+							- startBytes;
+				}
+				bestTime = Math.min(bestTime, time);
+				stepCount = stepCounter.getStepCount();
+			}
+			long sampleCount = recording.timestamps.length;
+			results.add(new Result(recording.name, recording.expectedStepCount, stepCount, sampleCount,
+					sampleCount * 1e9 / Math.max(1, bestTime),
+					isAllocationMeasured ? (double) allocatedBytes / Math.max(1, sampleCount) : -1));
+			totalSampleCount += sampleCount;
+			totalTime += bestTime;
+			totalAllocatedBytes += allocatedBytes;
+		}
+		results.add(new Result(TOTAL, -1, 0, totalSampleCount, totalSampleCount * 1e9 / Math.max(1, totalTime),
+				isAllocationMeasured ? (double) totalAllocatedBytes / Math.max(1, totalSampleCount) : -1));
+		return results;
+	}
+
+	private static void count(Recording recording, StepCounter stepCounter) {
+		int sampleCount = recording.timestamps.length;
+		for (int offset = 0; offset < sampleCount; offset += BLOCK_SIZE) {
+			stepCounter.countSteps(recording.xyzInterleaved, recording.timestamps, offset,
+					Math.min(BLOCK_SIZE, sampleCount - offset));
+		}
+	}
+
+	/**
+	 * Checks errors of labeled results and compares results to the baseline (may be empty),
+	 * prints regressions to given writer.
+	 * @return number of regressions
+	 */
+	int compare(List<Result> results, Map<String, Result> baseline, PrintWriter out) {
+		int regressionCount = 0;
+		Set<String> names = new HashSet<String>();
+		for (Result result : results) {
+			names.add(result.name);
+			if (result.isLabeled()
+					&& Math.abs(result.getError()) > Math.max(MIN_ALLOWED_DIFFERENCE,
+							(int) (result.expectedStepCount * maxError / 100))) {
+				out.println(result.name + ": error " + result.getError() + " of " + result.expectedStepCount
+						+ " steps exceeds " + maxError + "%");
+				regressionCount++;
+			}
+			Result base = baseline.get(result.name);
+			if (base == null) {
+				if (!baseline.isEmpty()) {
+					out.println(result.name + ": not in baseline");
+				}
+				continue;
+			}
+			if (TOTAL.equals(result.name)) {
+				double minSamplesPerSecond = base.samplesPerSecond * (1 - throughputTolerance / 100);
+				if (result.samplesPerSecond < minSamplesPerSecond) {
+					out.println("throughput dropped from " + Math.round(base.samplesPerSecond) + " to "
+							+ Math.round(result.samplesPerSecond) + " samples/s");
+					regressionCount++;
+				}
+				if (base.bytesPerSample >= 0 && result.bytesPerSample > base.bytesPerSample + ALLOCATION_TOLERANCE) {
+					out.println("allocation grew from " + base.bytesPerSample + " to "
+							+ result.bytesPerSample + " bytes/sample");
+					regressionCount++;
+				}
+			}
+			else if (result.isLabeled()) {
+				int allowedDifference = getAllowedDifference(result.expectedStepCount);
+				if (Math.abs(result.getError()) > Math.abs(base.stepCount - result.expectedStepCount) + allowedDifference) {
+					out.println(result.name + ": error grew from " + (base.stepCount - result.expectedStepCount)
+							+ " to " + result.getError() + " steps");
+					regressionCount++;
+				}
+			}
+			else if (Math.abs(result.stepCount - base.stepCount) > getAllowedDifference(base.stepCount)) {
+				out.println(result.name + ": step count changed from " + base.stepCount + " to " + result.stepCount);
+				regressionCount++;
+			}
+		}
+		for (String name : baseline.keySet()) {
+			if (!names.contains(name)) {
+				out.println(name + ": missing from the run");
+				regressionCount++;
+			}
+		}
+		return regressionCount;
+	}
+
+	/**
+	 * Returns new baseline of passed results: throughput, allocation and step counts of unlabeled recordings
+	 * are kept till accepted, labeled ones are bounded by their labels.
+	 */
+	static List<Result> updateBaseline(List<Result> results, Map<String, Result> baseline) {
+		List<Result> updated = new ArrayList<Result>(results.size());
+		for (Result result : results) {
+			Result base = baseline.get(result.name);
+			if (base == null) {
+				updated.add(result);
+			}
+			else if (TOTAL.equals(result.name)) {
+				updated.add(new Result(TOTAL, -1, 0, result.sampleCount, base.samplesPerSecond,
+						base.bytesPerSample < 0 ? result.bytesPerSample : base.bytesPerSample));
+			}
+			else if (result.isLabeled()) {
+				updated.add(result);
+			}
+			else {
+				updated.add(new Result(result.name, -1, base.stepCount, result.sampleCount,
+						result.samplesPerSecond, result.bytesPerSample));
+			}
+		}
+		return updated;
+	}
+
+	private int getAllowedDifference(int stepCount) {
+		return Math.max(MIN_ALLOWED_DIFFERENCE, (int) (stepCount * accuracyTolerance / 100));
+	}
+
+	static void writeResults(List<Result> results, PrintWriter out) {
+		out.println(HEADER);
+		for (Result result : results) {
+			out.println(result.name + ','
+					+ result.expectedStepCount + ','
+					+ result.stepCount + ','
+					+ (result.isLabeled() ? Integer.toString(result.getError()) : "") + ','
+					+ result.sampleCount + ','
+					+ Math.round(result.samplesPerSecond) + ','
+					+ result.bytesPerSample);
+		}
+		out.flush();
+	}
+
+	static Map<String, Result> readResults(File file) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line = reader.readLine();
+			if (!HEADER.equals(line)) {
+				throw new IOException(file + ": not a baseline");
+			}
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(",", -1);
+				if (fields.length != 7) {
+					throw new IOException(file + ": invalid line " + line);
+				}
+				try {
+					results.put(fields[0], new Result(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+							Long.parseLong(fields[4]), Double.parseDouble(fields[5]), Double.parseDouble(fields[6])));
+				} catch (NumberFormatException e) {
+					throw new IOException(file + ": invalid line " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Loads recordings of the corpus, labeled by labels.csv in its root if there is one.
+	 */
+	static void loadCorpus(File directory, List<Recording> recordings) throws IOException {
+		Map<String, Integer> labels = readLabels(new File(directory, LABELS_FILE_NAME));
+		List<File> files = new ArrayList<File>();
+		ReplayEngine.findRecordings(directory, files);
+		String root = directory.getPath() + File.separator;
+		for (File file : files) {
+			String name = file.getPath().substring(root.length()).replace(File.separatorChar, '/');
+			Integer label = labels.get(name);
+			recordings.add(loadRecording(file, name, label != null ? label : -1));
+		}
+	}
+
+	private static Map<String, Integer> readLabels(File file) throws IOException {
+		Map<String, Integer> labels = new LinkedHashMap<String, Integer>();
+		if (!file.exists()) {
+			return labels;
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				int comma = line.lastIndexOf(',');
+				try {
+					labels.put(line.substring(0, comma).trim(), Integer.parseInt(line.substring(comma + 1).trim()));
+				} catch (RuntimeException e) {
+					throw new IOException(file + ": invalid label " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return labels;
+	}
+
+	private static Recording loadRecording(File file, String name, int expectedStepCount) throws IOException {
+		float[] xyzInterleaved = new float[BLOCK_SIZE * 3];
+		long[] timestamps = new long[BLOCK_SIZE];
+		float[] xyzBlock = new float[BLOCK_SIZE * 3];
+		long[] timestampBlock = new long[BLOCK_SIZE];
+		int sampleCount = 0;
+		FiltersCsvReader reader = new FiltersCsvReader(file);
+		try {
+			int count;
+			while ((count = reader.read(xyzBlock, timestampBlock)) > 0) {
+				if (sampleCount + count > timestamps.length) {
+					timestamps = Arrays.copyOf(timestamps, 2 * (sampleCount + count));
+					xyzInterleaved = Arrays.copyOf(xyzInterleaved, timestamps.length * 3);
+				}
+				System.arraycopy(xyzBlock, 0, xyzInterleaved, sampleCount * 3, count * 3);
+				System.arraycopy(timestampBlock, 0, timestamps, sampleCount, count);
+				sampleCount += count;
+			}
+		} finally {
+			reader.close();
+		}
+		return new Recording(name, expectedStepCount, Arrays.copyOf(xyzInterleaved, sampleCount * 3),
+				Arrays.copyOf(timestamps, sampleCount));
+	}
+
+	/**
+	 * Generates seeded mixed activity recording labeled by its ground truth.
+	 */
+	static Recording generateRecording(long seed) {
+		SyntheticGaitGenerator generator = new SyntheticGaitGenerator(SYNTHETIC_SAMPLE_RATE, seed);
+		generator.addMixedActivity(SYNTHETIC_DURATION);
+		generator.setOrientationDrift(5);
+		int sampleCount = (int) (SYNTHETIC_DURATION * SYNTHETIC_SAMPLE_RATE / 1000);
+		float[] xyzInterleaved = new float[sampleCount * 3];
+		long[] timestamps = new long[sampleCount];
+		sampleCount = generator.generate(xyzInterleaved, timestamps, 0, sampleCount);
+		return new Recording("synthetic-" + seed, (int) generator.getGeneratedStepCount(),
+				Arrays.copyOf(xyzInterleaved, sampleCount * 3), Arrays.copyOf(timestamps, sampleCount));
+	}
+
+	/**
+	 * Usage: RegressionGate [-d detector-type] [-n rounds] [-a accuracy-tolerance%] [-e max-error%]
+	 * [-t throughput-tolerance%] [-g synthetic-count] [-b baseline.csv [-u | -U]] [corpus-dir...]
+	 * Prints per-file results as CSV, regressions to stderr. With -u the baseline is updated if the gate passed
+	 * (or there was no baseline yet), see {@link #updateBaseline(List, Map)}. With -U the results are accepted
+	 * as the new baseline even if the gate failed, e.g. after intended change of step counts or throughput.
+	 */
+	public static void main(String[] args) throws IOException {
+		int detectorType = StepCounter.TUMBLING_WINDOW_THRESHOLD;
+		int roundCount = DEFAULT_ROUNDS;
+		float accuracyTolerance = DEFAULT_ACCURACY_TOLERANCE;
+		float maxError = DEFAULT_MAX_ERROR;
+		float throughputTolerance = DEFAULT_THROUGHPUT_TOLERANCE;
+		int syntheticCount = 0;
+		File baselineFile = null;
+		boolean isUpdatingBaseline = false;
+		boolean isAcceptingBaseline = false;
+		List<File> corpusDirectories = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-d".equals(args[i]) && i + 1 < args.length) {
+				detectorType = Integer.parseInt(args[++i]);
+			}
+			else if ("-n".equals(args[i]) && i + 1 < args.length) {
+				roundCount = Integer.parseInt(args[++i]);
+			}
+			else if ("-a".equals(args[i]) && i + 1 < args.length) {
+				accuracyTolerance = Float.parseFloat(args[++i]);
+			}
+			else if ("-e".equals(args[i]) && i + 1 < args.length) {
+				maxError = Float.parseFloat(args[++i]);
+			}
+			else if ("-t".equals(args[i]) && i + 1 < args.length) {
+				throughputTolerance = Float.parseFloat(args[++i]);
+			}
+			else if ("-g".equals(args[i]) && i + 1 < args.length) {
+				syntheticCount = Integer.parseInt(args[++i]);
+			}
+			else if ("-b".equals(args[i]) && i + 1 < args.length) {
+				baselineFile = new File(args[++i]);
+			}
+			else if ("-u".equals(args[i])) {
+				isUpdatingBaseline = true;
+			}
+			else if ("-U".equals(args[i])) {
+				isAcceptingBaseline = true;
+			}
+			else {
+				corpusDirectories.add(new File(args[i]));
+			}
+		}
+		if ((corpusDirectories.isEmpty() && syntheticCount == 0) || roundCount < 1
+				|| ((isUpdatingBaseline || isAcceptingBaseline) && baselineFile == null)) {
+			System.err.println("Usage: RegressionGate [-d detector-type] [-n rounds] [-a accuracy-tolerance%]"
+					+ " [-e max-error%] [-t throughput-tolerance%] [-g synthetic-count] [-b baseline.csv [-u | -U]]"
+					+ " [corpus-dir...]");
+			System.exit(2);
+		}
+
+		List<Recording> recordings = new ArrayList<Recording>();
+		for (File directory : corpusDirectories) {
+			loadCorpus(directory, recordings);
+		}
+		for (int seed = 0; seed < syntheticCount; seed++) {
+			recordings.add(generateRecording(seed));
+		}
+		RegressionGate gate = new RegressionGate(detectorType, roundCount, accuracyTolerance, maxError,
+				throughputTolerance);
+		List<Result> results = gate.run(recordings);
+		writeResults(results, new PrintWriter(System.out));
+
+		boolean hasBaseline = baselineFile != null && baselineFile.exists();
+		Map<String, Result> baseline = hasBaseline ? readResults(baselineFile) : new HashMap<String, Result>();
+		PrintWriter err = new PrintWriter(System.err);
+		int regressionCount = gate.compare(results, baseline, err);
+		err.flush();
+		Result total = results.get(results.size() - 1);
+		System.err.println(recordings.size() + " recordings, " + regressionCount + " regressions, "
+				+ Math.round(total.samplesPerSecond) + " samples/s, " + total.bytesPerSample + " bytes/sample"
+				+ (hasBaseline ? "" : ", no baseline"));
+		if (isAcceptingBaseline || (isUpdatingBaseline && regressionCount == 0)) {
+			PrintWriter out = new PrintWriter(new FileWriter(baselineFile));
+			try {
+				writeResults(isAcceptingBaseline ? results : updateBaseline(results, baseline), out);
+			} finally {
+				out.close();
+			}
+		}
+		System.exit(regressionCount == 0 ? 0 : 1);
+	}
+
+}
@@ -0,0 +1,209 @@
+package co.joyatwork.pedometer.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import co.joyatwork.pedometer.StepCounter;
+
+/**
+ * Replays recorded filters.csv files through their own {@link StepCounter}s on a fork-join pool.
+ * Recordings are independent, so the throughput scales with the number of cores.
+ */
+public class ReplayEngine {
+
+	private static final String RECORDING_FILE_NAME = "filters.csv";
+	private static final int BLOCK_SIZE = 4096; // samples read and counted at once
+
+	private final ForkJoinPool pool;
+	private final int detectorType;
+
+	/**
+	 * @param detectorType - see {@link StepCounter#StepCounter(StepCounter.StepCounterListener, int)}
+	 */
+	public ReplayEngine(int parallelism, int detectorType) {
+		pool = new ForkJoinPool(parallelism);
+		this.detectorType = detectorType;
+	}
+
+	public ReplayEngine(int parallelism) {
+		this(parallelism, StepCounter.TUMBLING_WINDOW_THRESHOLD);
+	}
+
+	public ReplayEngine() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Replays all recordings, results are in the order of given files.
+	 * A recording that could not be read does not stop the others, its result has the error,
+	 * see {@link ReplayResult#getError()}.
+	 */
+	public List<ReplayResult> replay(List<File> recordings) {
+		ReplayResult[] results = new ReplayResult[recordings.size()];
+		List<ReplayTask> tasks = new ArrayList<ReplayTask>(recordings.size());
+		for (int i = 0; i < recordings.size(); i++) {
+			tasks.add(new ReplayTask(recordings.get(i), i, detectorType));
+		}
+		// start the longest recordings first to keep all workers busy till the end
+		Collections.sort(tasks, new Comparator<ReplayTask>() {
+			@Override
+			public int compare(ReplayTask a, ReplayTask b) {
+				long lengthA = a.recording.length();
+				long lengthB = b.recording.length();
+				return lengthA < lengthB ? 1 : (lengthA > lengthB ? -1 : 0);
+			}
+		});
+		for (ReplayTask task : tasks) {
+			pool.execute(task);
+		}
+		for (ReplayTask task : tasks) {
+			results[task.index] = task.join();
+		}
+		return Arrays.asList(results);
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Replays single recording on calling thread.
+	 */
+	public static ReplayResult replay(File recording) throws IOException {
+		return replay(recording, StepCounter.TUMBLING_WINDOW_THRESHOLD);
+	}
+
+	public static ReplayResult replay(File recording, int detectorType) throws IOException {
+		long startTime = System.nanoTime();
+		StepCounter stepCounter = new StepCounter(null, detectorType);
+		float[] xyzInterleaved = new float[BLOCK_SIZE * 3];
+		long[] timestamps = new long[BLOCK_SIZE];
+		long sampleCount = 0;
+		FiltersCsvReader reader = new FiltersCsvReader(recording);
+		try {
+			int count;
+			while ((count = reader.read(xyzInterleaved, timestamps)) > 0) {
+				stepCounter.countSteps(xyzInterleaved, timestamps, 0, count);
+				sampleCount += count;
+			}
+		} finally {
+			reader.close();
+		}
+		return new ReplayResult(recording, stepCounter, sampleCount, System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Collects all filters.csv files under given directory.
+	 */
+	public static void findRecordings(File directory, List<File> recordings) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isDirectory()) {
+				findRecordings(file, recordings);
+			}
+			else if (RECORDING_FILE_NAME.equals(file.getName())) {
+				recordings.add(file);
+			}
+		}
+	}
+
+	private static final class ReplayTask extends RecursiveTask<ReplayResult> {
+
+		private static final long serialVersionUID = 1L;
+		private final File recording;
+		private final int index;
+		private final int detectorType;
+
+		ReplayTask(File recording, int index, int detectorType) {
+			this.recording = recording;
+			this.index = index;
+			this.detectorType = detectorType;
+		}
+
+		@Override
+		protected ReplayResult compute() {
+			long startTime = System.nanoTime();
+			try {
+				return replay(recording, detectorType);
+			} catch (IOException e) {
+				return new ReplayResult(recording, e, System.nanoTime() - startTime);
+			} catch (RuntimeException e) {
+				return new ReplayResult(recording, e, System.nanoTime() - startTime);
+			}
+		}
+	}
+
+	/**
+	 * Usage: ReplayEngine [-j threads] dir|file...
+	 * Prints per-file step counts and timing as CSV.
+	 * Exit code is 0 if all recordings were replayed, 1 if any of them failed, 2 on usage error.
+	 */
+	public static void main(String[] args) {
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		List<File> recordings = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-j".equals(args[i]) && i + 1 < args.length) {
+				parallelism = Integer.parseInt(args[++i]);
+			}
+			else {
+				File file = new File(args[i]);
+				if (file.isDirectory()) {
+					findRecordings(file, recordings);
+				}
+				else {
+					recordings.add(file);
+				}
+			}
+		}
+		if (recordings.isEmpty()) {
+			System.err.println("Usage: ReplayEngine [-j threads] dir|file...");
+			System.exit(2);
+		}
+
+		ReplayEngine engine = new ReplayEngine(parallelism);
+		long startTime = System.nanoTime();
+		List<ReplayResult> results;
+		try {
+			results = engine.replay(recordings);
+		} finally {
+			engine.shutdown();
+		}
+		long elapsedTime = System.nanoTime() - startTime;
+
+		long totalSamples = 0;
+		int failedCount = 0;
+		System.out.println("File,Steps,X-Steps,Y-Steps,Z-Steps,Samples,Time-ms,Samples/s,Error");
+		for (ReplayResult result : results) {
+			if (result.isFailed()) {
+				failedCount++;
+				System.err.println(result.getFile().getPath() + ": " + result.getError());
+			}
+			System.out.println(result.getFile().getPath() + ','
+					+ result.getStepCount() + ','
+					+ result.getAxisStepCount(StepCounter.X_AXIS) + ','
+					+ result.getAxisStepCount(StepCounter.Y_AXIS) + ','
+					+ result.getAxisStepCount(StepCounter.Z_AXIS) + ','
+					+ result.getSampleCount() + ','
+					+ result.getElapsedTimeInNanos() / 1000000 + ','
+					+ Math.round(result.getSamplesPerSecond()) + ','
+					+ (result.isFailed() ? "FAILED" : ""));
+			totalSamples += result.getSampleCount();
+		}
+		System.err.println(results.size() + " recordings, " + failedCount + " failed, " + totalSamples + " samples in "
+				+ elapsedTime / 1000000 + " ms on " + parallelism + " threads ("
+				+ Math.round(totalSamples * 1e9 / elapsedTime) + " samples/s)");
+		System.exit(failedCount == 0 ? 0 : 1);
+	}
+
+}
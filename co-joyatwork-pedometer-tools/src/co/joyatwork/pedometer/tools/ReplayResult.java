@@ -0,0 +1,81 @@
+package co.joyatwork.pedometer.tools;
+
+import java.io.File;
+
+import co.joyatwork.pedometer.StepCounter;
+
+/**
+ * Step counts and timing of one replayed recording, or the error the recording failed with.
+ */
+public class ReplayResult {
+
+	private final File file;
+	private final int stepCount;
+	private final int[] axisStepCount;
+	private final long sampleCount;
+	private final long elapsedTimeInNanos;
+	private final Exception error;
+
+	ReplayResult(File file, StepCounter stepCounter, long sampleCount, long elapsedTimeInNanos) {
+		this.file = file;
+		this.stepCount = stepCounter.getStepCount();
+		this.axisStepCount = new int[3];
+		for (int axis = 0; axis < 3; axis++) {
+			axisStepCount[axis] = stepCounter.getAxisStepCount(axis);
+		}
+		this.sampleCount = sampleCount;
+		this.elapsedTimeInNanos = elapsedTimeInNanos;
+		this.error = null;
+	}
+
+	/**
+	 * Result of a recording that could not be replayed, step counts are 0.
+	 */
+	ReplayResult(File file, Exception error, long elapsedTimeInNanos) {
+		this.file = file;
+		this.stepCount = 0;
+		this.axisStepCount = new int[3];
+		this.sampleCount = 0;
+		this.elapsedTimeInNanos = elapsedTimeInNanos;
+		this.error = error;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getStepCount() {
+		return stepCount;
+	}
+
+	public int getAxisStepCount(int axis) {
+		return axisStepCount[axis];
+	}
+
+	public long getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * Returns time spent reading and counting the recording
+	 */
+	public long getElapsedTimeInNanos() {
+		return elapsedTimeInNanos;
+	}
+
+	/**
+	 * Returns the error the recording failed with, e.g. truncated or malformed file, null if it was replayed
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	public boolean isFailed() {
+		return error != null;
+	}
+
+	public double getSamplesPerSecond() {
+		return elapsedTimeInNanos > 0 ? sampleCount * 1e9 / elapsedTimeInNanos : 0;
+	}
+
+}
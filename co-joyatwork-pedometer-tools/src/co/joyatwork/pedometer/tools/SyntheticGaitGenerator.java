@@ -0,0 +1,395 @@
+package co.joyatwork.pedometer.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic generator of 3-axis accelerometer signal of walking and running with the ground truth step count,
+ * to drive step counter benchmarks, soak and load tests without a device. The same seed gives the same samples.
+ *
+ * The signal follows a schedule of segments added before generating: steps at given cadence and amplitude,
+ * or pauses. Every step is one period of vertical acceleration, with forward component shifted in phase
+ * and lateral sway of two steps period, in the body frame with gravity on the y axis. The body frame
+ * is rotated into the device frame by pitch and roll, optionally drifting as random walk.
+ * Step intervals vary randomly by cadence variability, change of cadence and amplitude between
+ * two step segments (e.g. walk to run) is smoothed over TRANSITION_TIME, a pause begins when the current step ends.
+ * Gaussian noise is added on all axes.
+ *
+ * Built for throughput: sine and gaussian noise are looked up in tables shared by all generators (so many of them,
+ * e.g. simulated devices of a load test, are cheap), random numbers come from seeded xorshift,
+ * orientation is updated every ORIENTATION_UPDATE_INTERVAL, no allocation while generating.
+ * Not thread safe.
+ */
+public class SyntheticGaitGenerator {
+
+	public static final float GRAVITY = 9.80665F;
+	public static final float DEFAULT_WALKING_CADENCE = 110; // steps/min
+	public static final float DEFAULT_RUNNING_CADENCE = 165; // steps/min
+	public static final float DEFAULT_WALKING_AMPLITUDE = 3.0F; // m/s^2
+	public static final float DEFAULT_RUNNING_AMPLITUDE = 8.0F; // m/s^2
+	public static final float DEFAULT_NOISE = 0.2F; // m/s^2
+	public static final float DEFAULT_CADENCE_VARIABILITY = 0.03F;
+	static final long TRANSITION_TIME = 1500; // ms
+	static final long ORIENTATION_UPDATE_INTERVAL = 100; // ms
+
+	private static final float FORWARD_RATIO = 0.6F;
+	private static final float FORWARD_PHASE = 0.8F / (float) (2 * Math.PI); // turns
+	private static final float LATERAL_RATIO = 0.4F;
+	private static final int SIN_TABLE_BITS = 12;
+	private static final int SIN_TABLE_SIZE = 1 << SIN_TABLE_BITS;
+	private static final int GAUSSIAN_TABLE_BITS = 16;
+	private static final int GAUSSIAN_TABLE_SIZE = 1 << GAUSSIAN_TABLE_BITS;
+	private static final long GAUSSIAN_TABLE_SEED = 42;
+	private static final float[] SIN_TABLE = new float[SIN_TABLE_SIZE + 1];
+	private static final float[] GAUSSIANS = new float[GAUSSIAN_TABLE_SIZE];
+
+	static {
+		for (int i = 0; i <= SIN_TABLE_SIZE; i++) {
+			SIN_TABLE[i] = (float) Math.sin(2 * Math.PI * i / SIN_TABLE_SIZE);
+		}
+		Random random = new Random(GAUSSIAN_TABLE_SEED);
+		for (int i = 0; i < GAUSSIAN_TABLE_SIZE; i++) {
+			GAUSSIANS[i] = (float) random.nextGaussian();
+		}
+	}
+
+	private static final class Segment {
+		final long durationInMilis;
+		final float cadence; // steps/min, 0 for pause
+		final float amplitude;
+
+		Segment(long durationInMilis, float cadence, float amplitude) {
+			this.durationInMilis = durationInMilis;
+			this.cadence = cadence;
+			this.amplitude = amplitude;
+		}
+	}
+
+	private final int sampleRateInHz;
+	private final long seed;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final int orientationUpdateSamples;
+	private final float samplePeriod; // ms
+	private final float transitionRatio; // per sample
+
+	// configuration
+	private float noise = DEFAULT_NOISE;
+	private float cadenceVariability = DEFAULT_CADENCE_VARIABILITY;
+	private float orientationDrift; // rad per sqrt(min)
+	private float initialPitch; // rad
+	private float initialRoll; // rad
+	private boolean isRepeating;
+	private long scheduleDuration;
+
+	// generating state
+	private long randomState;
+	private int orientationUpdateCountdown;
+	private long sampleCount;
+	private long stepCount;
+	private int segmentIndex;
+	private long segmentEndTime;
+	private boolean isFinished;
+	private boolean isStepping;
+	private float phase; // turns within the current step
+	private int stepParity;
+	private float cadence;
+	private float amplitude;
+	private float stepRatio; // random variability of the current step interval
+	private float pitch;
+	private float roll;
+	// rotation from body to device frame
+	private float r00, r01, r02, r10, r11, r12, r20, r21, r22;
+
+	public SyntheticGaitGenerator(int sampleRateInHz, long seed) {
+		this.sampleRateInHz = sampleRateInHz;
+		this.seed = seed;
+		samplePeriod = 1000F / sampleRateInHz;
+		transitionRatio = Math.min(1, samplePeriod / TRANSITION_TIME);
+		orientationUpdateSamples = (int) Math.max(1, ORIENTATION_UPDATE_INTERVAL * sampleRateInHz / 1000);
+		reset();
+	}
+
+	/**
+	 * Adds steps at given cadence to the schedule.
+	 * @param cadence - in steps/min
+	 * @param amplitude - of vertical acceleration of a step in m/s^2
+	 */
+	public void addSegment(long durationInMilis, float cadence, float amplitude) {
+		if (durationInMilis <= 0 || cadence < 0) {
+			throw new IllegalArgumentException("Invalid segment: " + durationInMilis + " ms, " + cadence + " steps/min");
+		}
+		segments.add(new Segment(durationInMilis, cadence, amplitude));
+		scheduleDuration += durationInMilis;
+		if (segments.size() == 1) {
+			reset();
+		}
+	}
+
+	public void addWalking(long durationInMilis) {
+		addSegment(durationInMilis, DEFAULT_WALKING_CADENCE, DEFAULT_WALKING_AMPLITUDE);
+	}
+
+	public void addRunning(long durationInMilis) {
+		addSegment(durationInMilis, DEFAULT_RUNNING_CADENCE, DEFAULT_RUNNING_AMPLITUDE);
+	}
+
+	public void addPause(long durationInMilis) {
+		addSegment(durationInMilis, 0, 0);
+	}
+
+	/**
+	 * Adds seeded random mix of walking, running and pauses of varying cadence and amplitude.
+	 */
+	public void addMixedActivity(long durationInMilis) {
+		Random random = new Random(seed + segments.size());
+		long remainingTime = durationInMilis;
+		while (remainingTime > 0) {
+			int activity = random.nextInt(10);
+			long duration;
+			if (activity < 2) {
+				duration = 3000 + random.nextInt(27000);
+				addSegment(Math.min(duration, remainingTime), 0, 0);
+			}
+			else if (activity < 4) {
+				duration = 20000 + random.nextInt(100000);
+				addSegment(Math.min(duration, remainingTime), 150 + random.nextInt(31), 6 + 4 * random.nextFloat());
+			}
+			else {
+				duration = 20000 + random.nextInt(160000);
+				addSegment(Math.min(duration, remainingTime), 95 + random.nextInt(31), 2.5F + 1.5F * random.nextFloat());
+			}
+			remainingTime -= duration;
+		}
+	}
+
+	/**
+	 * @param noise - standard deviation of gaussian noise in m/s^2
+	 */
+	public void setNoise(float noise) {
+		this.noise = noise;
+	}
+
+	/**
+	 * @param cadenceVariability - relative standard deviation of step interval, e.g. 0.03
+	 */
+	public void setCadenceVariability(float cadenceVariability) {
+		this.cadenceVariability = cadenceVariability;
+	}
+
+	/**
+	 * @param degreesPerMinute - standard deviation of pitch and roll change over a minute, 0 keeps orientation
+	 */
+	public void setOrientationDrift(float degreesPerMinute) {
+		this.orientationDrift = (float) Math.toRadians(degreesPerMinute);
+	}
+
+	/**
+	 * Sets orientation of the device at start, 0, 0 has gravity on y axis.
+	 */
+	public void setOrientation(float pitchInDegrees, float rollInDegrees) {
+		initialPitch = (float) Math.toRadians(pitchInDegrees);
+		initialRoll = (float) Math.toRadians(rollInDegrees);
+		if (sampleCount == 0) {
+			pitch = initialPitch;
+			roll = initialRoll;
+			updateRotation();
+		}
+	}
+
+	/**
+	 * @param isRepeating - true replays the schedule forever, time goes on
+	 */
+	public void setRepeating(boolean isRepeating) {
+		this.isRepeating = isRepeating;
+	}
+
+	/**
+	 * Restarts the schedule, the same samples are generated again.
+	 */
+	public void reset() {
+		randomState = seed ^ 0x9E3779B97F4A7C15L;
+		if (randomState == 0) {
+			randomState = 1;
+		}
+		orientationUpdateCountdown = orientationUpdateSamples;
+		sampleCount = 0;
+		stepCount = 0;
+		segmentIndex = 0;
+		segmentEndTime = segments.isEmpty() ? 0 : segments.get(0).durationInMilis;
+		isFinished = segments.isEmpty();
+		isStepping = false;
+		phase = 0;
+		stepParity = 0;
+		cadence = 0;
+		amplitude = 0;
+		stepRatio = 1;
+		pitch = initialPitch;
+		roll = initialRoll;
+		updateRotation();
+	}
+
+	/**
+	 * Generates next samples, stops at the end of the schedule.
+	 * @param xyzInterleaved - samples as x0,y0,z0,x1,y1,z1,... in m/s^2
+	 * @param timestamps - sample times in ms from the start of the schedule
+	 * @param offset - index of the first sample in the arrays
+	 * @return number of generated samples, less than count at the end of the schedule
+	 */
+	public int generate(float[] xyzInterleaved, long[] timestamps, int offset, int count) {
+		int valueIndex = offset * 3;
+		for (int i = 0; i < count; i++) {
+			long sampleTime = sampleCount * 1000 / sampleRateInHz;
+			if (sampleTime >= segmentEndTime && !nextSegment(sampleTime)) {
+				return i;
+			}
+			if (--orientationUpdateCountdown == 0) {
+				orientationUpdateCountdown = orientationUpdateSamples;
+				if (orientationDrift > 0) {
+					driftOrientation();
+				}
+			}
+			Segment segment = segments.get(segmentIndex);
+			float vertical = 0;
+			float forward = 0;
+			float lateral = 0;
+			if (isStepping) {
+				if (segment.cadence > 0) {
+					cadence += (segment.cadence - cadence) * transitionRatio;
+					amplitude += (segment.amplitude - amplitude) * transitionRatio;
+				}
+				vertical = amplitude * sin(phase);
+				forward = FORWARD_RATIO * amplitude * sin(phase + FORWARD_PHASE);
+				lateral = LATERAL_RATIO * amplitude * sin(0.5F * (stepParity + phase));
+				phase += samplePeriod * cadence / 60000 / stepRatio;
+				if (phase >= 1) {
+					phase -= 1;
+					stepCount++;
+					stepParity ^= 1;
+					if (segment.cadence > 0) {
+						stepRatio = nextStepRatio();
+					}
+					else {
+						isStepping = false; // the last step before the pause ended
+						phase = 0;
+					}
+				}
+			}
+			else if (segment.cadence > 0) {
+				isStepping = true; // the first step starts at full stride
+				cadence = segment.cadence;
+				amplitude = segment.amplitude;
+				stepRatio = nextStepRatio();
+			}
+			long random = nextRandom();
+			float bodyX = lateral + noise * GAUSSIANS[(int) random & (GAUSSIAN_TABLE_SIZE - 1)];
+			float bodyY = GRAVITY + vertical + noise * GAUSSIANS[(int) (random >>> 16) & (GAUSSIAN_TABLE_SIZE - 1)];
+			float bodyZ = forward + noise * GAUSSIANS[(int) (random >>> 32) & (GAUSSIAN_TABLE_SIZE - 1)];
+			xyzInterleaved[valueIndex++] = r00 * bodyX + r01 * bodyY + r02 * bodyZ;
+			xyzInterleaved[valueIndex++] = r10 * bodyX + r11 * bodyY + r12 * bodyZ;
+			xyzInterleaved[valueIndex++] = r20 * bodyX + r21 * bodyY + r22 * bodyZ;
+			timestamps[offset + i] = sampleTime;
+			sampleCount++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns number of steps completed by the samples generated so far, the ground truth
+	 */
+	public long getGeneratedStepCount() {
+		return stepCount;
+	}
+
+	/**
+	 * Returns number of samples generated so far
+	 */
+	public long getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * Returns duration of the schedule in ms
+	 */
+	public long getScheduleDuration() {
+		return scheduleDuration;
+	}
+
+	public boolean isFinished() {
+		return isFinished;
+	}
+
+	public int getSampleRate() {
+		return sampleRateInHz;
+	}
+
+	/**
+	 * Moves to the segment containing given time, false at the end of not repeating schedule.
+	 */
+	private boolean nextSegment(long sampleTime) {
+		while (sampleTime >= segmentEndTime) {
+			if (isFinished) {
+				return false;
+			}
+			segmentIndex++;
+			if (segmentIndex == segments.size()) {
+				if (!isRepeating) {
+					segmentIndex--;
+					isFinished = true;
+					return false;
+				}
+				segmentIndex = 0;
+			}
+			segmentEndTime += segments.get(segmentIndex).durationInMilis;
+		}
+		return true;
+	}
+
+	private float nextStepRatio() {
+		float ratio = 1 + cadenceVariability * GAUSSIANS[(int) nextRandom() & (GAUSSIAN_TABLE_SIZE - 1)];
+		return Math.max(0.5F, ratio);
+	}
+
+	private void driftOrientation() {
+		float drift = orientationDrift * (float) Math.sqrt(ORIENTATION_UPDATE_INTERVAL / 60000.0);
+		long random = nextRandom();
+		pitch += drift * GAUSSIANS[(int) random & (GAUSSIAN_TABLE_SIZE - 1)];
+		roll += drift * GAUSSIANS[(int) (random >>> 16) & (GAUSSIAN_TABLE_SIZE - 1)];
+		updateRotation();
+	}
+
+	/**
+	 * Rotation by pitch around x axis followed by roll around z axis.
+	 */
+	private void updateRotation() {
+		float sp = (float) Math.sin(pitch);
+		float cp = (float) Math.cos(pitch);
+		float sr = (float) Math.sin(roll);
+		float cr = (float) Math.cos(roll);
+		r00 = cr;	r01 = -sr * cp;	r02 = sr * sp;
+		r10 = sr;	r11 = cr * cp;	r12 = -cr * sp;
+		r20 = 0;	r21 = sp;		r22 = cp;
+	}
+
+	/**
+	 * xorshift64*
+	 */
+	private long nextRandom() {
+		randomState ^= randomState >>> 12;
+		randomState ^= randomState << 25;
+		randomState ^= randomState >>> 27;
+		return randomState * 0x2545F4914F6CDD1DL;
+	}
+
+	/**
+	 * Returns sine of angle given in turns, linear interpolation of the table.
+	 */
+	private static float sin(float turns) {
+		float index = (turns - (float) Math.floor(turns)) * SIN_TABLE_SIZE;
+		int i = (int) index;
+		float fraction = index - i;
+		i &= SIN_TABLE_SIZE - 1; // turns rounded up to 1
+		return SIN_TABLE[i] + (SIN_TABLE[i + 1] - SIN_TABLE[i]) * fraction;
+	}
+
+}
@@ -0,0 +1,74 @@
+package co.joyatwork.pedometer.tools;
+
+import co.joyatwork.pedometer.SampleSource;
+import co.joyatwork.pedometer.StepCounter;
+
+/**
+ * Feeds step counter by signal of {@link SyntheticGaitGenerator} as fast as possible, in blocks,
+ * till the end of its schedule or stop.
+ */
+public class SyntheticSampleSource implements SampleSource {
+
+	private static final int BLOCK_SIZE = 4096; // samples generated and counted at once
+
+	private final SyntheticGaitGenerator generator;
+	private final float[] xyzInterleaved = new float[BLOCK_SIZE * 3];
+	private final long[] timestamps = new long[BLOCK_SIZE];
+	private volatile boolean isStopped;
+
+	public SyntheticSampleSource(SyntheticGaitGenerator generator) {
+		this.generator = generator;
+	}
+
+	/**
+	 * Steady walking at fixed step interval.
+	 * @param amplitude - of vertical acceleration of a step in m/s^2
+	 * @param noise - standard deviation of the noise in m/s^2
+	 */
+	public SyntheticSampleSource(long durationInMilis, int sampleRateInHz, long stepIntervalInMilis,
+			float amplitude, float noise, long seed) {
+		this(createSteadyWalking(durationInMilis, sampleRateInHz, stepIntervalInMilis, amplitude, noise, seed));
+	}
+
+	private static SyntheticGaitGenerator createSteadyWalking(long durationInMilis, int sampleRateInHz,
+			long stepIntervalInMilis, float amplitude, float noise, long seed) {
+		SyntheticGaitGenerator generator = new SyntheticGaitGenerator(sampleRateInHz, seed);
+		generator.addSegment(durationInMilis, 60000F / stepIntervalInMilis, amplitude);
+		generator.setNoise(noise);
+		generator.setCadenceVariability(0);
+		return generator;
+	}
+
+	@Override
+	public void start(StepCounter stepCounter) {
+		isStopped = false;
+		int count;
+		while (!isStopped && (count = generator.generate(xyzInterleaved, timestamps, 0, BLOCK_SIZE)) > 0) {
+			stepCounter.countSteps(xyzInterleaved, timestamps, 0, count);
+		}
+	}
+
+	@Override
+	public void stop() {
+		isStopped = true;
+	}
+
+	/**
+	 * Returns number of samples delivered since the source was created
+	 */
+	public long getSampleCount() {
+		return generator.getSampleCount();
+	}
+
+	/**
+	 * Returns number of steps in the delivered signal
+	 */
+	public long getGeneratedStepCount() {
+		return generator.getGeneratedStepCount();
+	}
+
+	public SyntheticGaitGenerator getGenerator() {
+		return generator;
+	}
+
+}
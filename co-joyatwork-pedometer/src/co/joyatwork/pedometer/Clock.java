@@ -0,0 +1,14 @@
+package co.joyatwork.pedometer;
+
+/**
+ * Time source of the step counting pipeline, injectable so the pipeline runs with
+ * Android SystemClock on device and with a host clock on JVM.
+ */
+public interface Clock {
+
+	/**
+	 * Returns current time in ms, monotonic clock is preferred
+	 */
+	long getTimeInMilis();
+
+}
@@ -0,0 +1,52 @@
+package co.joyatwork.pedometer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Threshold of {@link StepDetector} following min/max of the smoothed acceleration,
+ * measured in tumbling windows by {@link Threshold} or in a sliding window by {@link SlidingWindowThreshold}.
+ *
+ * Fixed values are measured in the last complete window, current values since the last step
+ * (see {@link #setCurrentMinMax(float)}).
+ */
+public abstract class DynamicThreshold {
+
+	public abstract void pushSample(float newSample);
+
+	public abstract float getCurrentMinValue();
+
+	public abstract float getCurrentMaxValue();
+
+	public abstract float getFixedMinValue();
+
+	public abstract float getFixedMaxValue();
+
+	/**
+	 * Returns true if the last pushed sample completed measuring window
+	 */
+	public abstract boolean isWindowCompleted();
+
+	public abstract float getThresholdValue();
+
+	public abstract float getCurrentPeak2PeakValue();
+
+	public abstract float getFixedPeak2PeakValue();
+
+	public abstract void setCurrentMinMax(float value);
+
+	/**
+	 * Restarts measurement from given sample after samples were not pushed for a while,
+	 * fixed values are 0 until the next window is measured.
+	 */
+	public abstract void restart(float value);
+
+	/**
+	 * Writes threshold state for checkpoint, see {@link StepCounter#writeState(DataOutput)}.
+	 */
+	abstract void writeState(DataOutput out) throws IOException;
+
+	abstract void readState(DataInput in) throws IOException;
+
+}
@@ -0,0 +1,119 @@
+package co.joyatwork.pedometer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Integer version of {@link LinearAccelerationFilter}, samples are Q16 fixed point values
+ * (see {@link FixedPointStepDetector#toFixedPoint(float)}).
+ * Running sum of integers is exact, it does not need periodic recalculation.
+ */
+final class FixedPointFilter {
+
+	private final int oneMinusAlpha; // Q16
+	private final int[] window;
+	private final int windowSize;
+	private final long windowScale; // Q16 of 1 / windowSize
+
+	private int windowIndex;
+	private int windowSum;
+
+	private int gravity;
+	private int linearAcceleration;
+	private int smoothedAcceleration;
+
+	/**
+	 * @param alpha - constant of low pass filter estimating gravity
+	 * @param windowSize - number of samples of moving average
+	 */
+	FixedPointFilter(float alpha, int windowSize) {
+		this.oneMinusAlpha = FixedPointStepDetector.toFixedPoint(1 - alpha);
+		this.windowSize = windowSize;
+		this.windowScale = FixedPointStepDetector.toFixedPoint(1.0F / windowSize);
+		window = new int[windowSize];
+		windowIndex = 0;
+		windowSum = 0;
+		gravity = 0;
+		linearAcceleration = 0;
+		smoothedAcceleration = 0;
+	}
+
+	/**
+	 * Filters one Q16 sensor sample.
+	 * @return smoothed linear acceleration in Q16
+	 */
+	int filter(int acceleration) {
+		int linear = updateGravity(acceleration);
+
+		//Moving Average
+		int i = windowIndex;
+		int sum = windowSum - window[i] + linear;
+		window[i] = linear;
+		if (++i == windowSize) {
+			i = 0;
+		}
+		windowIndex = i;
+		windowSum = sum;
+		smoothedAcceleration = (int) ((sum * windowScale) >> FixedPointStepDetector.Q);
+		return smoothedAcceleration;
+	}
+
+	/**
+	 * Updates only gravity estimate, moving average is not advanced.
+	 * @return linear acceleration of the sample in Q16
+	 */
+	int updateGravity(int acceleration) {
+		//Low Pass, g = alpha * g + (1 - alpha) * a = g + (1 - alpha) * (a - g)
+		gravity += (int) (((long) (acceleration - gravity) * oneMinusAlpha) >> FixedPointStepDetector.Q);
+		//High Pass = Inverted Low Pass
+		linearAcceleration = acceleration - gravity;
+		return linearAcceleration;
+	}
+
+	/**
+	 * Same as LinearAccelerationFilter.restartMovingAverage()
+	 */
+	int restartMovingAverage() {
+		int linear = linearAcceleration;
+		for (int i = 0; i < windowSize; i++) {
+			window[i] = linear;
+		}
+		windowSum = linear * windowSize;
+		smoothedAcceleration = (int) ((windowSum * windowScale) >> FixedPointStepDetector.Q);
+		return smoothedAcceleration;
+	}
+
+	void writeState(DataOutput out) throws IOException {
+		out.writeInt(windowSize);
+		for (int i = 0; i < windowSize; i++) {
+			out.writeInt(window[i]);
+		}
+		out.writeInt(windowIndex);
+		out.writeInt(windowSum);
+		out.writeInt(gravity);
+		out.writeInt(linearAcceleration);
+		out.writeInt(smoothedAcceleration);
+	}
+
+	void readState(DataInput in) throws IOException {
+		StepCounter.checkState("moving average window", windowSize, in.readInt());
+		for (int i = 0; i < windowSize; i++) {
+			window[i] = in.readInt();
+		}
+		windowIndex = StepCounter.checkIndex(in.readInt(), windowSize);
+		windowSum = in.readInt();
+		gravity = in.readInt();
+		linearAcceleration = in.readInt();
+		smoothedAcceleration = in.readInt();
+	}
+
+	int getLinearAcceleration() {
+		return linearAcceleration;
+	}
+
+	int getSmoothedAcceleration() {
+		return smoothedAcceleration;
+	}
+
+}
@@ -0,0 +1,205 @@
+package co.joyatwork.pedometer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * {@link StepDetector} running the whole detection pipeline in integer arithmetic
+ * for targets where float math is costly (wearables, companion MCUs).
+ *
+ * Samples are Q16 fixed point values (16 fractional bits, LSB = 1/65536 m/s^2),
+ * filtering is done by {@link FixedPointFilter}, threshold by {@link FixedPointThreshold}
+ * and step interval variance is checked by multiply-compare of integer intervals,
+ * there is no division per step.
+ * Float getters convert the integer state for diagnostics only.
+ */
+class FixedPointStepDetector extends StepDetector {
+
+	static final int Q = 16;
+	static final int ONE = 1 << Q;
+
+	private static final int MIN_PEAK_VALUE_Q16 = toFixedPoint(MIN_PEAK_VALUE);
+	// variance range in percent, reference * 100 is compared to interval * percent
+	private static final int MIN_STEP_INTERVAL_VARIANCE_PERCENT = Math.round(MIN_STEP_INTERVAL_VARIANCE * 100);
+	private static final int MAX_STEP_INTERVAL_VARIANCE_PERCENT = Math.round(MAX_STEP_INERVAL_VARIANCE * 100);
+
+	private final FixedPointFilter filter;
+	private final FixedPointThreshold threshold;
+	private int lastSample;
+	private int thresholdValue;
+	private long varianceReference; // variance = reference / interval is evaluated only by getter
+	private long varianceInterval;
+
+	public FixedPointStepDetector(float alpha, int movingAvgWindowSize, int thresholdWindowSize) {
+		super(null, alpha, 1); // float filter is not used
+		filter = new FixedPointFilter(alpha, movingAvgWindowSize);
+		threshold = new FixedPointThreshold(thresholdWindowSize);
+		lastSample = 0;
+		thresholdValue = 0;
+		varianceReference = 0;
+		varianceInterval = 0;
+	}
+
+	public FixedPointStepDetector() {
+		this(ALPHA, MOVING_AVG_WINDOW_SIZE, THRESHOLD_WINDOW_SIZE);
+	}
+
+	static int toFixedPoint(float value) {
+		return Math.round(value * ONE);
+	}
+
+	static float toFloat(int value) {
+		return value / (float) ONE;
+	}
+
+	@Override
+	public void update(float newSample, long sampleTimeInMilis) {
+		update(toFixedPoint(newSample), sampleTimeInMilis);
+	}
+
+	/**
+	 * Same as StepDetector.update() with Q16 sample
+	 */
+	public void update(int newSample, long sampleTimeInMilis) {
+
+		if (getMetrics() != null) {
+			updateMeasured(newSample, sampleTimeInMilis);
+			return;
+		}
+
+		// digital filtering
+		int smoothedAcceleration = filter.filter(newSample);
+
+		// dynamic threshold
+		threshold.pushSample(smoothedAcceleration);
+		thresholdValue = threshold.getThresholdValue();
+
+		setHasValidSteps(false); // will be set by detecting strategy if steps validated
+		if (threshold.getCurrentMaxValue() > MIN_PEAK_VALUE_Q16
+				&& lastSample > thresholdValue && smoothedAcceleration < thresholdValue) {
+			detectStep(0 /* not used by strategies */, sampleTimeInMilis);
+			threshold.setCurrentMinMax(thresholdValue);
+		}
+		lastSample = smoothedAcceleration;
+	}
+
+	/**
+	 * Same as update() with time spent in stages counted by metrics.
+	 */
+	private void updateMeasured(int newSample, long sampleTimeInMilis) {
+
+		long startTime = System.nanoTime();
+		int smoothedAcceleration = filter.filter(newSample);
+		long filteredTime = System.nanoTime();
+		threshold.pushSample(smoothedAcceleration);
+		thresholdValue = threshold.getThresholdValue();
+		long thresholdTime = System.nanoTime();
+		setHasValidSteps(false);
+		if (threshold.getCurrentMaxValue() > MIN_PEAK_VALUE_Q16
+				&& lastSample > thresholdValue && smoothedAcceleration < thresholdValue) {
+			detectStep(0, sampleTimeInMilis);
+			threshold.setCurrentMinMax(thresholdValue);
+		}
+		lastSample = smoothedAcceleration;
+		addStageTimes(startTime, filteredTime, thresholdTime, System.nanoTime());
+	}
+
+	@Override
+	float updateGravity(float newSample) {
+		return toFloat(filter.updateGravity(toFixedPoint(newSample)));
+	}
+
+	@Override
+	void restartPipeline() {
+		lastSample = filter.restartMovingAverage();
+		threshold.restart(lastSample);
+		thresholdValue = threshold.getThresholdValue();
+	}
+
+	@Override
+	void writePipelineState(DataOutput out) throws IOException {
+		out.writeInt(lastSample);
+		out.writeInt(thresholdValue);
+		out.writeLong(varianceReference);
+		out.writeLong(varianceInterval);
+		filter.writeState(out);
+		threshold.writeState(out);
+	}
+
+	@Override
+	void readPipelineState(DataInput in) throws IOException {
+		lastSample = in.readInt();
+		thresholdValue = in.readInt();
+		varianceReference = in.readLong();
+		varianceInterval = in.readLong();
+		filter.readState(in);
+		threshold.readState(in);
+	}
+
+	@Override
+	void calculateStepIntervalVariance(long referenceValue, long interval) {
+		varianceReference = referenceValue;
+		varianceInterval = interval;
+	}
+
+	@Override
+	void resetStepIntervalVariance() {
+		varianceReference = 0;
+		varianceInterval = 0;
+	}
+
+	@Override
+	boolean isStepIntervalVarianceInRange() {
+		long reference = varianceReference * 100;
+		return varianceInterval != 0
+				&& reference >= varianceInterval * MIN_STEP_INTERVAL_VARIANCE_PERCENT
+				&& reference <= varianceInterval * MAX_STEP_INTERVAL_VARIANCE_PERCENT;
+	}
+
+	@Override
+	public float getStepIntervalVariance() {
+		return varianceInterval != 0 ? varianceReference / (float) varianceInterval : 0;
+	}
+
+	@Override
+	boolean isThresholdWindowCompleted() {
+		return threshold.isWindowCompleted();
+	}
+
+	@Override
+	public float getThresholdValue() {
+		return toFloat(thresholdValue);
+	}
+
+	@Override
+	public float getFixedPeak2PeakValue() {
+		return toFloat(threshold.getFixedPeak2PeakValue());
+	}
+
+	@Override
+	public float getCurrentPeak2PeakValue() {
+		return toFloat(threshold.getCurrentPeak2PeakValue());
+	}
+
+	@Override
+	public float getFixedMinValue() {
+		return toFloat(threshold.getFixedMinValue());
+	}
+
+	@Override
+	public float getFixedMaxValue() {
+		return toFloat(threshold.getFixedMaxValue());
+	}
+
+	@Override
+	float getLinearAcceleration() {
+		return toFloat(filter.getLinearAcceleration());
+	}
+
+	@Override
+	float getSmoothedAcceleration() {
+		return toFloat(filter.getSmoothedAcceleration());
+	}
+
+}
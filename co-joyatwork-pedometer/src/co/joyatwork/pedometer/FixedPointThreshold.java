@@ -0,0 +1,167 @@
+package co.joyatwork.pedometer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Integer version of {@link Threshold}, samples are Q16 fixed point values.
+ */
+final class FixedPointThreshold {
+
+	private final int windowSize;
+
+	private int measuredMinValue;
+	private int measuredMaxValue;
+	private int currentMinValue;
+	private int currentMaxValue;
+
+	private int sampleCount;
+	private int minValue;
+	private int maxValue;
+
+	private boolean isFirstSample;
+	private int firstSample;
+	private boolean isFirstWindow;
+	private boolean isWindowCompleted;
+
+	FixedPointThreshold(int numberOfSamples) {
+		this.windowSize = numberOfSamples;
+		this.measuredMinValue = 0;
+		this.measuredMaxValue = 0;
+		this.currentMaxValue = 0;
+		this.currentMinValue = 0;
+		this.sampleCount = 0;
+		this.minValue = 0;
+		this.maxValue = 0;
+		this.isFirstSample = true;
+		this.isFirstWindow = true;
+		this.isWindowCompleted = false;
+	}
+
+	/**
+	 * Same as Threshold.pushSample()
+	 */
+	void pushSample(int newSample) {
+
+		isWindowCompleted = false;
+		if (isFirstSample) {
+			isFirstSample = false;
+			firstSample = newSample;
+			setMinMaxValues(newSample);
+			return;
+		}
+		if (newSample < measuredMinValue) {
+			measuredMinValue = newSample;
+		}
+		else if (newSample > measuredMaxValue) {
+			measuredMaxValue = newSample;
+		}
+		if (newSample < currentMinValue) {
+			currentMinValue = newSample;
+		}
+		else if (newSample > currentMaxValue) {
+			currentMaxValue = newSample;
+		}
+		sampleCount++;
+		if (sampleCount == windowSize) {
+			sampleCount = 0;
+			isWindowCompleted = true;
+			if (isFirstWindow) {
+				isFirstWindow = false;
+				if ((firstSample == measuredMinValue) || (firstSample == measuredMaxValue)) {
+					setMinMaxValues(newSample);
+					return;
+				}
+			}
+			minValue = measuredMinValue;
+			maxValue = measuredMaxValue;
+			measuredMinValue = measuredMaxValue = newSample;
+		}
+	}
+
+	/**
+	 * Same as Threshold.restart()
+	 */
+	void restart(int value) {
+		isFirstSample = false;
+		isFirstWindow = false;
+		isWindowCompleted = false;
+		sampleCount = 0;
+		setMinMaxValues(value);
+		minValue = maxValue = 0;
+	}
+
+	private void setMinMaxValues(int value) {
+		measuredMinValue = measuredMaxValue = value;
+		currentMaxValue = measuredMaxValue;
+		currentMinValue = measuredMinValue;
+	}
+
+	void writeState(DataOutput out) throws IOException {
+		out.writeInt(windowSize);
+		out.writeInt(measuredMinValue);
+		out.writeInt(measuredMaxValue);
+		out.writeInt(currentMinValue);
+		out.writeInt(currentMaxValue);
+		out.writeInt(sampleCount);
+		out.writeInt(minValue);
+		out.writeInt(maxValue);
+		out.writeBoolean(isFirstSample);
+		out.writeInt(firstSample);
+		out.writeBoolean(isFirstWindow);
+		out.writeBoolean(isWindowCompleted);
+	}
+
+	void readState(DataInput in) throws IOException {
+		StepCounter.checkState("threshold window", windowSize, in.readInt());
+		measuredMinValue = in.readInt();
+		measuredMaxValue = in.readInt();
+		currentMinValue = in.readInt();
+		currentMaxValue = in.readInt();
+		sampleCount = StepCounter.checkIndex(in.readInt(), windowSize);
+		minValue = in.readInt();
+		maxValue = in.readInt();
+		isFirstSample = in.readBoolean();
+		firstSample = in.readInt();
+		isFirstWindow = in.readBoolean();
+		isWindowCompleted = in.readBoolean();
+	}
+
+	int getCurrentMinValue() {
+		return currentMinValue;
+	}
+
+	int getCurrentMaxValue() {
+		return currentMaxValue;
+	}
+
+	int getFixedMinValue() {
+		return minValue;
+	}
+
+	int getFixedMaxValue() {
+		return maxValue;
+	}
+
+	boolean isWindowCompleted() {
+		return isWindowCompleted;
+	}
+
+	int getThresholdValue() {
+		return (minValue + maxValue) >> 1;
+	}
+
+	int getCurrentPeak2PeakValue() {
+		return currentMaxValue - currentMinValue;
+	}
+
+	int getFixedPeak2PeakValue() {
+		return maxValue - minValue;
+	}
+
+	void setCurrentMinMax(int value) {
+		currentMaxValue = currentMinValue = value;
+	}
+
+}
@@ -0,0 +1,251 @@
+package co.joyatwork.pedometer;
+
+/**
+ * Streaming gait analytics on top of {@link StepCounter} step events: rolling cadence, speed and distance
+ * estimated by stride model, walking and running bouts. Set it by {@link StepCounter#setStepEventListener}.
+ * Every step is O(1) update of fixed size state, step history is not kept.
+ *
+ * Step length is estimated by linear model of step frequency f (steps/s) scaled by body height:
+ * stepLength = height * (STEP_LENGTH_INTERCEPT + STEP_LENGTH_SLOPE * f),
+ * e.g. 0.68 m at 1.8 steps/s (walking) and 1.0 m at 3 steps/s (running) for 1.75 m height.
+ *
+ * A bout is a sequence of steps of the same activity with gaps shorter than BOUT_END_GAP,
+ * the activity is running if rolling cadence is at least RUNNING_CADENCE. Activity of a bout
+ * with less than CADENCE_WINDOW_SIZE steps follows the cadence, later change of activity starts new bout.
+ * Not thread safe, all calls are expected on the thread counting steps.
+ */
+public class GaitAnalytics implements StepCounter.StepEventListener {
+
+	public interface BoutListener {
+		/**
+		 * @param distance - in m
+		 */
+		void onBoutEnded(long startTimeInMilis, long endTimeInMilis, int stepCount, float distance, boolean isRunning);
+	}
+
+	public static final float DEFAULT_HEIGHT = 1.75F; // m
+	public static final float RUNNING_CADENCE = 140; // steps/min
+	static final float STEP_LENGTH_INTERCEPT = 0.1F;
+	static final float STEP_LENGTH_SLOPE = 0.16F; // s
+	static final int CADENCE_WINDOW_SIZE = 10; // step intervals
+	static final long BOUT_END_GAP = 3000; // ms, longer pause ends bout
+
+	private final float height;
+	private final BoutListener boutListener;
+
+	// rolling cadence, ring of the last step intervals
+	private final int[] stepIntervals = new int[CADENCE_WINDOW_SIZE];
+	private int stepIntervalIndex;
+	private int stepIntervalCount;
+	private long stepIntervalSum;
+
+	private long lastStepTime;
+	private int stepCount;
+	private float distance;
+	private int boutCount;
+	private int walkingStepCount;
+	private int runningStepCount;
+	private long walkingTime;
+	private long runningTime;
+
+	// current bout
+	private boolean isInBout;
+	private boolean isBoutRunning;
+	private long boutStartTime;
+	private int boutStepCount;
+	private float boutDistance;
+
+	/**
+	 * @param height - body height in m the stride model is scaled by
+	 * @param boutListener - receives ended bouts, null if not needed
+	 */
+	public GaitAnalytics(float height, BoutListener boutListener) {
+		this.height = height;
+		this.boutListener = boutListener;
+		reset();
+	}
+
+	public GaitAnalytics() {
+		this(DEFAULT_HEIGHT, null);
+	}
+
+	public void reset() {
+		resetCadence();
+		lastStepTime = 0;
+		stepCount = 0;
+		distance = 0;
+		boutCount = 0;
+		walkingStepCount = runningStepCount = 0;
+		walkingTime = runningTime = 0;
+		isInBout = false;
+	}
+
+	@Override
+	public void onStep(long stepTimeInMilis, int axis, long stepInterval, long avgStepInterval,
+			float stepIntervalVariance, int stepCount) {
+		addSteps(stepTimeInMilis, 1, stepInterval);
+	}
+
+	@Override
+	public void onStepsValidated(long stepTimeInMilis, int axis, int deltaStepCount, long avgStepInterval,
+			int stepCount) {
+		addSteps(stepTimeInMilis, deltaStepCount, avgStepInterval);
+	}
+
+	/**
+	 * Ends the current bout if no step came for BOUT_END_GAP, to be called when steps stopped coming,
+	 * e.g. periodically or before reading results.
+	 */
+	public void flush(long timeInMilis) {
+		if (isInBout && timeInMilis - lastStepTime > BOUT_END_GAP) {
+			endBout();
+			resetCadence();
+		}
+	}
+
+	private void addSteps(long stepTimeInMilis, int deltaStepCount, long stepInterval) {
+		flush(stepTimeInMilis);
+		if (stepInterval >= StepDetector.MIN_STEP_INTERVAL && stepInterval <= StepDetector.MAX_STEP_INTERVAL) {
+			for (int i = 0; i < Math.min(deltaStepCount, CADENCE_WINDOW_SIZE); i++) {
+				pushStepInterval((int) stepInterval);
+			}
+		}
+		float cadence = getCadence();
+		boolean isRunning = cadence >= RUNNING_CADENCE;
+		if (isInBout && isRunning != isBoutRunning) {
+			if (boutStepCount < CADENCE_WINDOW_SIZE) {
+				isBoutRunning = isRunning; // cadence of young bout is not settled yet
+			}
+			else {
+				endBout(); // activity changed, the next bout continues from the last step
+				startBout(lastStepTime, isRunning);
+			}
+		}
+		else if (!isInBout) {
+			// credited steps were taken over the intervals before this step
+			startBout(stepTimeInMilis - (deltaStepCount - 1) * stepInterval, isRunning);
+		}
+		float stepsDistance = deltaStepCount * getStepLength(cadence);
+		distance += stepsDistance;
+		boutDistance += stepsDistance;
+		boutStepCount += deltaStepCount;
+		stepCount += deltaStepCount;
+		lastStepTime = stepTimeInMilis;
+	}
+
+	private void pushStepInterval(int stepInterval) {
+		stepIntervalSum += stepInterval - stepIntervals[stepIntervalIndex];
+		stepIntervals[stepIntervalIndex] = stepInterval;
+		if (++stepIntervalIndex == CADENCE_WINDOW_SIZE) {
+			stepIntervalIndex = 0;
+		}
+		if (stepIntervalCount < CADENCE_WINDOW_SIZE) {
+			stepIntervalCount++;
+		}
+	}
+
+	private void resetCadence() {
+		for (int i = 0; i < CADENCE_WINDOW_SIZE; i++) {
+			stepIntervals[i] = 0;
+		}
+		stepIntervalIndex = 0;
+		stepIntervalCount = 0;
+		stepIntervalSum = 0;
+	}
+
+	private void startBout(long startTime, boolean isRunning) {
+		isInBout = true;
+		isBoutRunning = isRunning;
+		boutStartTime = startTime;
+		boutStepCount = 0;
+		boutDistance = 0;
+	}
+
+	private void endBout() {
+		isInBout = false;
+		boutCount++;
+		long boutTime = lastStepTime - boutStartTime;
+		if (isBoutRunning) {
+			runningTime += boutTime;
+			runningStepCount += boutStepCount;
+		}
+		else {
+			walkingTime += boutTime;
+			walkingStepCount += boutStepCount;
+		}
+		if (boutListener != null) {
+			boutListener.onBoutEnded(boutStartTime, lastStepTime, boutStepCount, boutDistance, isBoutRunning);
+		}
+	}
+
+	/**
+	 * Returns step length in m estimated at given cadence
+	 */
+	public float getStepLength(float cadence) {
+		return height * (STEP_LENGTH_INTERCEPT + STEP_LENGTH_SLOPE * cadence / 60);
+	}
+
+	/**
+	 * Returns rolling cadence in steps/min over the last CADENCE_WINDOW_SIZE step intervals, 0 out of bout
+	 */
+	public float getCadence() {
+		return stepIntervalCount > 0 ? 60000F * stepIntervalCount / stepIntervalSum : 0;
+	}
+
+	/**
+	 * Returns current speed in m/s, 0 out of bout
+	 */
+	public float getSpeed() {
+		float cadence = getCadence();
+		return cadence / 60 * getStepLength(cadence);
+	}
+
+	/**
+	 * Returns total distance in m
+	 */
+	public float getDistance() {
+		return distance;
+	}
+
+	public int getStepCount() {
+		return stepCount;
+	}
+
+	public boolean isInBout() {
+		return isInBout;
+	}
+
+	public boolean isRunning() {
+		return isInBout && isBoutRunning;
+	}
+
+	/**
+	 * Returns number of ended bouts
+	 */
+	public int getBoutCount() {
+		return boutCount;
+	}
+
+	/**
+	 * Returns time in ms of walking bouts, including the current one
+	 */
+	public long getWalkingTime() {
+		return walkingTime + (isInBout && !isBoutRunning ? lastStepTime - boutStartTime : 0);
+	}
+
+	/**
+	 * Returns time in ms of running bouts, including the current one
+	 */
+	public long getRunningTime() {
+		return runningTime + (isInBout && isBoutRunning ? lastStepTime - boutStartTime : 0);
+	}
+
+	public int getWalkingStepCount() {
+		return walkingStepCount + (isInBout && !isBoutRunning ? boutStepCount : 0);
+	}
+
+	public int getRunningStepCount() {
+		return runningStepCount + (isInBout && isBoutRunning ? boutStepCount : 0);
+	}
+
+}
@@ -0,0 +1,207 @@
+package co.joyatwork.pedometer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Digital filtering front-end of {@link StepDetector} fused into one stage:
+ * gravity is removed by inverted low pass (high pass) and the linear acceleration
+ * is smoothed by moving average kept as a running sum over a primitive ring buffer.
+ *
+ * Running sum accumulates float rounding errors, so it is recomputed from the ring
+ * every SUM_RESYNC_INTERVAL samples to keep long sessions accurate.
+ */
+final class LinearAccelerationFilter {
+
+	static final int SUM_RESYNC_INTERVAL = 1024; // samples
+
+	private final float alpha;
+	private final float[] window;
+	private final int windowSize;
+	private final float windowScale;
+
+	private int windowIndex;
+	private float windowSum;
+	private int samplesToResync;
+
+	private float gravity;
+	private float linearAcceleration;
+	private float smoothedAcceleration;
+
+	/**
+	 * @param alpha - constant of low pass filter estimating gravity
+	 * @param windowSize - number of samples of moving average
+	 */
+	LinearAccelerationFilter(float alpha, int windowSize) {
+		this.alpha = alpha;
+		this.windowSize = windowSize;
+		this.windowScale = 1.0F / windowSize;
+		window = new float[windowSize];
+		reset();
+	}
+
+	void reset() {
+		for (int i = 0; i < windowSize; i++) {
+			window[i] = 0;
+		}
+		windowIndex = 0;
+		windowSum = 0;
+		samplesToResync = SUM_RESYNC_INTERVAL;
+		gravity = 0;
+		linearAcceleration = 0;
+		smoothedAcceleration = 0;
+	}
+
+	/**
+	 * Filters one sensor sample.
+	 * @return smoothed linear acceleration
+	 */
+	float filter(float acceleration) {
+		//Low Pass
+		float g = alpha * gravity + (1 - alpha) * acceleration;
+		gravity = g;
+		//High Pass = Inverted Low Pass
+		float linear = acceleration - g;
+		linearAcceleration = linear;
+
+		//Moving Average
+		int i = windowIndex;
+		float sum = windowSum - window[i] + linear;
+		window[i] = linear;
+		if (++i == windowSize) {
+			i = 0;
+		}
+		windowIndex = i;
+		if (--samplesToResync == 0) {
+			sum = resyncSum();
+		}
+		windowSum = sum;
+		float smoothed = sum * windowScale;
+		smoothedAcceleration = smoothed;
+		return smoothed;
+	}
+
+	/**
+	 * Filters block of samples of one axis, e.g. interleaved x,y,z samples with stride 3.
+	 * State is kept in locals during the loop and stored once at the end.
+	 * @param samples - sensor samples, sample i is at offset + i * stride
+	 * @param smoothedOut - smoothed linear acceleration, sample i is stored at outOffset + i
+	 */
+	void filter(float[] samples, int offset, int stride, int count, float[] smoothedOut, int outOffset) {
+		if (count <= 0) {
+			return;
+		}
+		float a = alpha;
+		float g = gravity;
+		float linear = linearAcceleration;
+		float sum = windowSum;
+		float smoothed = smoothedAcceleration;
+		int i = windowIndex;
+		int toResync = samplesToResync;
+		for (int n = 0; n < count; n++) {
+			float acceleration = samples[offset + n * stride];
+			g = a * g + (1 - a) * acceleration;
+			linear = acceleration - g;
+			sum = sum - window[i] + linear;
+			window[i] = linear;
+			if (++i == windowSize) {
+				i = 0;
+			}
+			if (--toResync == 0) {
+				windowIndex = i;
+				sum = resyncSum();
+				toResync = SUM_RESYNC_INTERVAL;
+			}
+			smoothed = sum * windowScale;
+			smoothedOut[outOffset + n] = smoothed;
+		}
+		gravity = g;
+		linearAcceleration = linear;
+		windowSum = sum;
+		smoothedAcceleration = smoothed;
+		windowIndex = i;
+		samplesToResync = toResync;
+	}
+
+	/**
+	 * Updates only gravity estimate, moving average is not advanced.
+	 * @return linear acceleration of the sample
+	 */
+	float updateGravity(float acceleration) {
+		gravity = alpha * gravity + (1 - alpha) * acceleration;
+		linearAcceleration = acceleration - gravity;
+		return linearAcceleration;
+	}
+
+	/**
+	 * Fills moving average with the current linear acceleration, e.g. after only gravity was updated for a while,
+	 * so the smoothing does not start from old history.
+	 * @return smoothed linear acceleration
+	 */
+	float restartMovingAverage() {
+		float linear = linearAcceleration;
+		for (int i = 0; i < windowSize; i++) {
+			window[i] = linear;
+		}
+		windowSum = linear * windowSize;
+		samplesToResync = SUM_RESYNC_INTERVAL;
+		smoothedAcceleration = linear;
+		return linear;
+	}
+
+	/**
+	 * Recomputes running sum from the values in the ring, oldest first.
+	 */
+	private float resyncSum() {
+		samplesToResync = SUM_RESYNC_INTERVAL;
+		float sum = 0;
+		for (int n = 0; n < windowSize; n++) {
+			int i = windowIndex + n;
+			sum += window[i < windowSize ? i : i - windowSize];
+		}
+		return sum;
+	}
+
+	/**
+	 * Writes filter state for checkpoint, see {@link StepCounter#writeState(DataOutput)}.
+	 */
+	void writeState(DataOutput out) throws IOException {
+		out.writeInt(windowSize);
+		for (int i = 0; i < windowSize; i++) {
+			out.writeFloat(window[i]);
+		}
+		out.writeInt(windowIndex);
+		out.writeFloat(windowSum);
+		out.writeInt(samplesToResync);
+		out.writeFloat(gravity);
+		out.writeFloat(linearAcceleration);
+		out.writeFloat(smoothedAcceleration);
+	}
+
+	void readState(DataInput in) throws IOException {
+		StepCounter.checkState("moving average window", windowSize, in.readInt());
+		for (int i = 0; i < windowSize; i++) {
+			window[i] = in.readFloat();
+		}
+		windowIndex = StepCounter.checkIndex(in.readInt(), windowSize);
+		windowSum = in.readFloat();
+		samplesToResync = StepCounter.checkIndex(in.readInt() - 1, SUM_RESYNC_INTERVAL) + 1;
+		gravity = in.readFloat();
+		linearAcceleration = in.readFloat();
+		smoothedAcceleration = in.readFloat();
+	}
+
+	float getGravity() {
+		return gravity;
+	}
+
+	float getLinearAcceleration() {
+		return linearAcceleration;
+	}
+
+	float getSmoothedAcceleration() {
+		return smoothedAcceleration;
+	}
+
+}
@@ -0,0 +1,107 @@
+package co.joyatwork.pedometer;
+
+import java.nio.ByteOrder;
+
+/**
+ * Layout of binary step counter recordings.
+ *
+ * A recording is a sequence of segment files recording-00000.seg, recording-00001.seg, ...
+ * Every segment starts with a header followed by sample records, fixed-width ones or packed ones
+ * if the recording is quantized.
+ *
+ * Header:
+ *  int magic, short version, short flags, int record size (0 for packed records), int record count,
+ *  long start time (ms, logging start, CSV times are relative to it),
+ *  long base time (ms, sample time the first time delta of the segment refers to)
+ *
+ * Record:
+ *  u16 time delta in ms to the previous record (TIME_RESET_DELTA if the next 8 bytes hold absolute time)
+ *  u8 flags (VALID_STEPS_FLAG and CROSSING_FLAG bits shifted by axis)
+ *  u8 padding
+ *  per axis: sensor value, smoothed acceleration, threshold, current peak2peak, fixed peak2peak,
+ *            step interval variance, step interval, avg step interval
+ *
+ * Without quantization acceleration values and variance are float32 and intervals int32 (saturated).
+ *
+ * Packed record (quantized recordings, PACKED_FLAG, since version 2):
+ *  u8 time delta in ms to the previous record (PACKED_TIME_RESET_DELTA if 8 bytes of absolute time follow)
+ *  u8 flags
+ *  per axis: sensor value, smoothed acceleration, u8 mask of the diagnostics changed since the previous record,
+ *            the changed diagnostics in the order: current peak2peak, threshold, fixed peak2peak,
+ *            step interval variance, step interval, avg step interval
+ *
+ * Packed values are int16 scaled by ACCELERATION_SCALE, VARIANCE_SCALE and intervals u16 (saturated).
+ * The diagnostics change at threshold windows and steps only, so a record is mostly 17 bytes.
+ * The first record of a segment has all diagnostics, so every segment can be read alone.
+ * Version 1 quantized recordings have fixed-width records of int16 values.
+ */
+final class RecordingFormat {
+
+	static final int MAGIC = 0x53545052; // "STPR"
+	static final short VERSION = 2;
+	static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	static final short QUANTIZED_FLAG = 1;
+	static final short PACKED_FLAG = 2;
+
+	static final int HEADER_SIZE = 32;
+	static final int RECORD_SIZE_OFFSET = 8;
+	static final int RECORD_COUNT_OFFSET = 12;
+	static final int START_TIME_OFFSET = 16;
+	static final int BASE_TIME_OFFSET = 24;
+
+	static final int TIME_RESET_DELTA = 0xFFFF;
+	static final int VALID_STEPS_FLAG = 0x01; // shifted left by axis
+	static final int CROSSING_FLAG = 0x08; // shifted left by axis, threshold crossed since previous record
+
+	static final int RECORD_HEADER_SIZE = 4;
+	static final int AXIS_SIZE = 5 * 4 + 4 + 2 * 4;
+	static final int QUANTIZED_AXIS_SIZE = 5 * 2 + 2 + 2 * 2;
+	static final int RECORD_SIZE = RECORD_HEADER_SIZE + 3 * AXIS_SIZE;
+	static final int QUANTIZED_RECORD_SIZE = RECORD_HEADER_SIZE + 3 * QUANTIZED_AXIS_SIZE; // version 1
+
+	static final int PACKED_TIME_RESET_DELTA = 0xFF;
+	static final int DIAGNOSTIC_COUNT = 6; // per axis
+	static final int MAX_PACKED_RECORD_SIZE = 1 + 8 + 1 + 3 * (2 * 2 + 1 + DIAGNOSTIC_COUNT * 2);
+
+	static final float ACCELERATION_SCALE = 256; // LSB = 1/256 m/s^2, range +-128 m/s^2
+	static final float VARIANCE_SCALE = 2048;     // LSB = 1/2048, range +-16
+
+	static final String SEGMENT_FILE_PREFIX = "recording-";
+	static final String SEGMENT_FILE_SUFFIX = ".seg";
+
+	private RecordingFormat() {
+	}
+
+	static String segmentFileName(int segmentIndex) {
+		String index = Integer.toString(segmentIndex);
+		StringBuilder name = new StringBuilder(SEGMENT_FILE_PREFIX);
+		for (int i = index.length(); i < 5; i++) {
+			name.append('0');
+		}
+		return name.append(index).append(SEGMENT_FILE_SUFFIX).toString();
+	}
+
+	static short quantize(float value, float scale) {
+		float scaled = value * scale;
+		if (scaled >= Short.MAX_VALUE) {
+			return Short.MAX_VALUE;
+		}
+		if (scaled <= Short.MIN_VALUE) {
+			return Short.MIN_VALUE;
+		}
+		return (short) Math.round(scaled);
+	}
+
+	static short quantizeInterval(long interval) {
+		if (interval < 0) {
+			return 0;
+		}
+		return (short) (interval > 0xFFFF ? 0xFFFF : interval);
+	}
+
+	static int clampInterval(long interval) {
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, interval));
+	}
+
+}
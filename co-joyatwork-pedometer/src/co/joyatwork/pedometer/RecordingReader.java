@@ -0,0 +1,242 @@
+package co.joyatwork.pedometer;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads binary recording written by {@link RecordingWriter}.
+ * Works as a cursor, {@link #next()} moves to the next sample record and the getters return its values.
+ */
+public class RecordingReader {
+
+	private final File[] segmentFiles;
+	private int segmentIndex;
+	private MappedByteBuffer segment;
+	private int recordSize;
+	private int remainingRecords;
+	private boolean quantized;
+	private boolean packed;
+	private long startTime;
+
+	private long sampleTime;
+	private int flags;
+	private final float[] sensorValue = new float[3];
+	private final float[] smoothedAcceleration = new float[3];
+	private final float[] thresholdValue = new float[3];
+	private final float[] currentPeak2PeakValue = new float[3];
+	private final float[] fixedPeak2PeakValue = new float[3];
+	private final float[] stepIntervalVariance = new float[3];
+	private final long[] stepInterval = new long[3];
+	private final long[] avgStepInterval = new long[3];
+
+	public RecordingReader(File directory) throws IOException {
+		segmentFiles = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(RecordingFormat.SEGMENT_FILE_PREFIX)
+						&& name.endsWith(RecordingFormat.SEGMENT_FILE_SUFFIX);
+			}
+		});
+		if (segmentFiles == null || segmentFiles.length == 0) {
+			throw new IOException(directory + ": no recording segments");
+		}
+		Arrays.sort(segmentFiles);
+		segmentIndex = -1;
+		openNextSegment();
+	}
+
+	/**
+	 * Moves to the next sample record.
+	 * @return false at the end of recording
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			while (remainingRecords == 0) {
+				if (segmentIndex + 1 >= segmentFiles.length) {
+					return false;
+				}
+				openNextSegment();
+			}
+			remainingRecords--;
+			if (packed) {
+				try {
+					readPackedRecord();
+				} catch (BufferUnderflowException e) {
+					throw new IOException(segmentFiles[segmentIndex] + ": truncated record");
+				}
+				return true;
+			}
+			int recordStart = segment.position();
+			int timeDelta = segment.getShort() & 0xFFFF;
+			if (timeDelta == RecordingFormat.TIME_RESET_DELTA) {
+				segment.getShort();
+				sampleTime = segment.getLong();
+				segment.position(recordStart + recordSize);
+				continue;
+			}
+			sampleTime += timeDelta;
+			flags = segment.get() & 0xFF;
+			segment.get();
+			for (int axis = 0; axis < 3; axis++) {
+				if (quantized) {
+					sensorValue[axis] = segment.getShort() / RecordingFormat.ACCELERATION_SCALE;
+					smoothedAcceleration[axis] = segment.getShort() / RecordingFormat.ACCELERATION_SCALE;
+					thresholdValue[axis] = segment.getShort() / RecordingFormat.ACCELERATION_SCALE;
+					currentPeak2PeakValue[axis] = segment.getShort() / RecordingFormat.ACCELERATION_SCALE;
+					fixedPeak2PeakValue[axis] = segment.getShort() / RecordingFormat.ACCELERATION_SCALE;
+					stepIntervalVariance[axis] = segment.getShort() / RecordingFormat.VARIANCE_SCALE;
+					stepInterval[axis] = segment.getShort() & 0xFFFF;
+					avgStepInterval[axis] = segment.getShort() & 0xFFFF;
+				}
+				else {
+					sensorValue[axis] = segment.getFloat();
+					smoothedAcceleration[axis] = segment.getFloat();
+					thresholdValue[axis] = segment.getFloat();
+					currentPeak2PeakValue[axis] = segment.getFloat();
+					fixedPeak2PeakValue[axis] = segment.getFloat();
+					stepIntervalVariance[axis] = segment.getFloat();
+					stepInterval[axis] = segment.getInt();
+					avgStepInterval[axis] = segment.getInt();
+				}
+			}
+			segment.position(recordStart + recordSize);
+			return true;
+		}
+	}
+
+	private void readPackedRecord() {
+		int timeDelta = segment.get() & 0xFF;
+		if (timeDelta == RecordingFormat.PACKED_TIME_RESET_DELTA) {
+			sampleTime = segment.getLong();
+		}
+		else {
+			sampleTime += timeDelta;
+		}
+		flags = segment.get() & 0xFF;
+		for (int axis = 0; axis < 3; axis++) {
+			sensorValue[axis] = segment.getShort() / RecordingFormat.ACCELERATION_SCALE;
+			smoothedAcceleration[axis] = segment.getShort() / RecordingFormat.ACCELERATION_SCALE;
+			int mask = segment.get(); // diagnostics not in the record keep values of the previous one
+			if ((mask & 0x01) != 0) {
+				currentPeak2PeakValue[axis] = segment.getShort() / RecordingFormat.ACCELERATION_SCALE;
+			}
+			if ((mask & 0x02) != 0) {
+				thresholdValue[axis] = segment.getShort() / RecordingFormat.ACCELERATION_SCALE;
+			}
+			if ((mask & 0x04) != 0) {
+				fixedPeak2PeakValue[axis] = segment.getShort() / RecordingFormat.ACCELERATION_SCALE;
+			}
+			if ((mask & 0x08) != 0) {
+				stepIntervalVariance[axis] = segment.getShort() / RecordingFormat.VARIANCE_SCALE;
+			}
+			if ((mask & 0x10) != 0) {
+				stepInterval[axis] = segment.getShort() & 0xFFFF;
+			}
+			if ((mask & 0x20) != 0) {
+				avgStepInterval[axis] = segment.getShort() & 0xFFFF;
+			}
+		}
+	}
+
+	/**
+	 * Returns time in ms the recording was started, sample times are logged relative to it
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public boolean isQuantized() {
+		return quantized;
+	}
+
+	public long getSampleTime() {
+		return sampleTime;
+	}
+
+	public float getSensorValue(int axis) {
+		return sensorValue[axis];
+	}
+
+	public float getSmoothedAcceleration(int axis) {
+		return smoothedAcceleration[axis];
+	}
+
+	public float getThresholdValue(int axis) {
+		return thresholdValue[axis];
+	}
+
+	public float getCurrentPeak2PeakValue(int axis) {
+		return currentPeak2PeakValue[axis];
+	}
+
+	public float getFixedPeak2PeakValue(int axis) {
+		return fixedPeak2PeakValue[axis];
+	}
+
+	public float getStepIntervalVariance(int axis) {
+		return stepIntervalVariance[axis];
+	}
+
+	public long getStepInterval(int axis) {
+		return stepInterval[axis];
+	}
+
+	public long getAvgStepInterval(int axis) {
+		return avgStepInterval[axis];
+	}
+
+	public boolean hasValidSteps(int axis) {
+		return (flags & (RecordingFormat.VALID_STEPS_FLAG << axis)) != 0;
+	}
+
+	/**
+	 * Returns true if the axis crossed threshold since the previous record
+	 */
+	public boolean hasCrossedThreshold(int axis) {
+		return (flags & (RecordingFormat.CROSSING_FLAG << axis)) != 0;
+	}
+
+	private void openNextSegment() throws IOException {
+		segmentIndex++;
+		File file = segmentFiles[segmentIndex];
+		RandomAccessFile segmentFile = new RandomAccessFile(file, "r");
+		try {
+			segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segmentFile.length());
+		} finally {
+			segmentFile.close(); // mapping stays valid
+		}
+		segment.order(RecordingFormat.BYTE_ORDER);
+		if (segment.limit() < RecordingFormat.HEADER_SIZE || segment.getInt() != RecordingFormat.MAGIC) {
+			throw new IOException(file + ": not a recording segment");
+		}
+		short version = segment.getShort();
+		if (version < 1 || version > RecordingFormat.VERSION) {
+			throw new IOException(file + ": unsupported version " + version);
+		}
+		short formatFlags = segment.getShort();
+		quantized = (formatFlags & RecordingFormat.QUANTIZED_FLAG) != 0;
+		packed = (formatFlags & RecordingFormat.PACKED_FLAG) != 0;
+		recordSize = segment.getInt();
+		remainingRecords = segment.getInt();
+		startTime = segment.getLong();
+		sampleTime = segment.getLong(); // base time
+		if (!packed) {
+			if (recordSize <= 0) {
+				throw new IOException(file + ": invalid record size " + recordSize);
+			}
+			long available = (segment.limit() - RecordingFormat.HEADER_SIZE) / recordSize;
+			if (remainingRecords > available) {
+				remainingRecords = (int) available; // segment of a killed process was not truncated
+			}
+		}
+		// record count of packed segments is written after every record, so it is valid even if not truncated
+		segment.position(RecordingFormat.HEADER_SIZE);
+	}
+
+}
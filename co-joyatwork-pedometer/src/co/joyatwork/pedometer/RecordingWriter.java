@@ -0,0 +1,253 @@
+package co.joyatwork.pedometer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes binary sample records (see {@link RecordingFormat}) into memory-mapped segment files.
+ * Writing a record is a handful of buffer puts, there is no text formatting and no write call per sample,
+ * the OS flushes the mapped pages in background.
+ * Not thread safe, after construction all calls are expected on the writer thread draining {@link SnapshotRing}
+ * (LogWriterThread of LoggingPedometerService), never on the thread counting steps.
+ */
+public class RecordingWriter {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	private final File directory;
+	private final boolean quantized;
+	private final long startTime;
+	private final int segmentSize;
+	private final int recordSize;
+
+	private int segmentIndex;
+	private RandomAccessFile segmentFile;
+	private MappedByteBuffer segment;
+	private int recordCount; // in current segment
+	private long totalRecordCount;
+	private long previousSampleTime;
+	private final int[] oldCrossingThresholdCounts = new int[3];
+	private final short[] previousDiagnostics = new short[3 * RecordingFormat.DIAGNOSTIC_COUNT]; // packed records
+	private boolean isSegmentStart;
+
+	/**
+	 * Starts new recording in given directory, segments of a previous recording are deleted.
+	 * @param quantized - store values as int16 packed records instead of fixed-width float32 records
+	 * @param startTime - time in ms the sample times are logged relative to
+	 */
+	public RecordingWriter(File directory, boolean quantized, long startTime) throws IOException {
+		this(directory, quantized, startTime, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public RecordingWriter(File directory, boolean quantized, long startTime, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.quantized = quantized;
+		this.startTime = startTime;
+		this.recordSize = quantized ? 0 : RecordingFormat.RECORD_SIZE;
+		if (segmentSize < RecordingFormat.HEADER_SIZE + 2 * Math.max(recordSize, RecordingFormat.MAX_PACKED_RECORD_SIZE)) {
+			throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+		}
+		this.segmentSize = segmentSize;
+		deleteSegments(directory);
+		segmentIndex = -1;
+		totalRecordCount = 0;
+		for (int i = 0; i < 3; i++) {
+			oldCrossingThresholdCounts[i] = 0;
+		}
+		openNextSegment(startTime);
+	}
+
+	/**
+	 * Appends one sample record.
+	 * @param sensorValues - raw sensor samples x,y,z
+	 * @param snapshot - step counter state after the sample was counted
+	 */
+	public void write(long sampleTimeInMilis, float[] sensorValues, StepCounterSnapshot snapshot) throws IOException {
+
+		int flags = 0;
+		for (int axis = 0; axis < 3; axis++) {
+			if (snapshot.validSteps[axis]) {
+				flags |= RecordingFormat.VALID_STEPS_FLAG << axis;
+			}
+			if (snapshot.crossingThresholdCount[axis] != oldCrossingThresholdCounts[axis]) {
+				flags |= RecordingFormat.CROSSING_FLAG << axis;
+				oldCrossingThresholdCounts[axis] = snapshot.crossingThresholdCount[axis];
+			}
+		}
+		if (quantized) {
+			writePacked(sampleTimeInMilis, flags, sensorValues, snapshot);
+		}
+		else {
+			writeFixed(sampleTimeInMilis, flags, sensorValues, snapshot);
+		}
+		recordWritten();
+	}
+
+	/**
+	 * Appends one sample record with sample time and raw sensor values taken from the snapshot.
+	 */
+	public void write(StepCounterSnapshot snapshot) throws IOException {
+		write(snapshot.sampleTimeInMilis, snapshot.sensorValue, snapshot);
+	}
+
+	public long getRecordCount() {
+		return totalRecordCount;
+	}
+
+	/**
+	 * Truncates the last segment to the written records and closes it.
+	 */
+	public void close() throws IOException {
+		if (segmentFile != null) {
+			finishSegment();
+		}
+	}
+
+	private void writeFixed(long sampleTimeInMilis, int flags, float[] sensorValues, StepCounterSnapshot snapshot)
+			throws IOException {
+
+		long timeDelta = sampleTimeInMilis - previousSampleTime;
+		boolean isTimeReset = timeDelta < 0 || timeDelta >= RecordingFormat.TIME_RESET_DELTA;
+		if (segment.remaining() < (isTimeReset ? 2 : 1) * recordSize) {
+			finishSegment();
+			openNextSegment(sampleTimeInMilis); // base time of the new segment is this sample, delta = 0
+			timeDelta = 0;
+			isTimeReset = false;
+		}
+		if (isTimeReset) {
+			writeTimeReset(sampleTimeInMilis);
+			timeDelta = 0;
+		}
+		previousSampleTime = sampleTimeInMilis;
+
+		int recordStart = segment.position();
+		segment.putShort((short) timeDelta);
+		segment.put((byte) flags);
+		segment.put((byte) 0);
+		for (int axis = 0; axis < 3; axis++) {
+			segment.putFloat(sensorValues[axis]);
+			segment.putFloat(snapshot.smoothedAcceleration[axis]);
+			segment.putFloat(snapshot.thresholdValue[axis]);
+			segment.putFloat(snapshot.currentPeak2PeakValue[axis]);
+			segment.putFloat(snapshot.fixedPeak2PeakValue[axis]);
+			segment.putFloat(snapshot.stepIntervalVariance[axis]);
+			segment.putInt(RecordingFormat.clampInterval(snapshot.stepInterval[axis]));
+			segment.putInt(RecordingFormat.clampInterval(snapshot.avgStepInterval[axis]));
+		}
+		segment.position(recordStart + recordSize);
+	}
+
+	private void writePacked(long sampleTimeInMilis, int flags, float[] sensorValues, StepCounterSnapshot snapshot)
+			throws IOException {
+
+		if (segment.remaining() < RecordingFormat.MAX_PACKED_RECORD_SIZE) {
+			finishSegment();
+			openNextSegment(sampleTimeInMilis);
+		}
+		long timeDelta = sampleTimeInMilis - previousSampleTime;
+		if (timeDelta < 0 || timeDelta >= RecordingFormat.PACKED_TIME_RESET_DELTA) {
+			segment.put((byte) RecordingFormat.PACKED_TIME_RESET_DELTA);
+			segment.putLong(sampleTimeInMilis);
+		}
+		else {
+			segment.put((byte) timeDelta);
+		}
+		previousSampleTime = sampleTimeInMilis;
+
+		segment.put((byte) flags);
+		for (int axis = 0; axis < 3; axis++) {
+			segment.putShort(RecordingFormat.quantize(sensorValues[axis], RecordingFormat.ACCELERATION_SCALE));
+			segment.putShort(RecordingFormat.quantize(snapshot.smoothedAcceleration[axis], RecordingFormat.ACCELERATION_SCALE));
+			int maskPosition = segment.position();
+			segment.put((byte) 0);
+			int index = axis * RecordingFormat.DIAGNOSTIC_COUNT;
+			int mask = putIfChanged(index,
+					RecordingFormat.quantize(snapshot.currentPeak2PeakValue[axis], RecordingFormat.ACCELERATION_SCALE));
+			mask |= putIfChanged(index + 1,
+					RecordingFormat.quantize(snapshot.thresholdValue[axis], RecordingFormat.ACCELERATION_SCALE));
+			mask |= putIfChanged(index + 2,
+					RecordingFormat.quantize(snapshot.fixedPeak2PeakValue[axis], RecordingFormat.ACCELERATION_SCALE));
+			mask |= putIfChanged(index + 3,
+					RecordingFormat.quantize(snapshot.stepIntervalVariance[axis], RecordingFormat.VARIANCE_SCALE));
+			mask |= putIfChanged(index + 4, RecordingFormat.quantizeInterval(snapshot.stepInterval[axis]));
+			mask |= putIfChanged(index + 5, RecordingFormat.quantizeInterval(snapshot.avgStepInterval[axis]));
+			segment.put(maskPosition, (byte) mask);
+		}
+		isSegmentStart = false;
+	}
+
+	/**
+	 * Puts the diagnostic value if it changed since the previous record of the segment.
+	 * @return mask bit of the diagnostic if it was put, 0 otherwise
+	 */
+	private int putIfChanged(int index, short value) {
+		if (!isSegmentStart && previousDiagnostics[index] == value) {
+			return 0;
+		}
+		previousDiagnostics[index] = value;
+		segment.putShort(value);
+		return 1 << (index % RecordingFormat.DIAGNOSTIC_COUNT);
+	}
+
+	private void writeTimeReset(long sampleTimeInMilis) {
+		int recordStart = segment.position();
+		segment.putShort((short) RecordingFormat.TIME_RESET_DELTA);
+		segment.putShort((short) 0);
+		segment.putLong(sampleTimeInMilis);
+		segment.position(recordStart + recordSize);
+		recordWritten();
+	}
+
+	private void recordWritten() {
+		recordCount++;
+		totalRecordCount++;
+		// keep the count in the header up to date, the segment stays readable if the process gets killed
+		segment.putInt(RecordingFormat.RECORD_COUNT_OFFSET, recordCount);
+	}
+
+	private void openNextSegment(long baseTime) throws IOException {
+		segmentIndex++;
+		File file = new File(directory, RecordingFormat.segmentFileName(segmentIndex));
+		segmentFile = new RandomAccessFile(file, "rw");
+		segmentFile.setLength(segmentSize);
+		segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		segment.order(RecordingFormat.BYTE_ORDER);
+		segment.putInt(RecordingFormat.MAGIC);
+		segment.putShort(RecordingFormat.VERSION);
+		segment.putShort(quantized ? (short) (RecordingFormat.QUANTIZED_FLAG | RecordingFormat.PACKED_FLAG) : 0);
+		segment.putInt(recordSize);
+		segment.putInt(0); // record count
+		segment.putLong(startTime);
+		segment.putLong(baseTime);
+		recordCount = 0;
+		previousSampleTime = baseTime;
+		isSegmentStart = true;
+	}
+
+	private void finishSegment() throws IOException {
+		try {
+			segment.force();
+			segmentFile.setLength(segment.position());
+		} finally {
+			segmentFile.close();
+			segmentFile = null;
+		}
+	}
+
+	private static void deleteSegments(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(RecordingFormat.SEGMENT_FILE_PREFIX) && name.endsWith(RecordingFormat.SEGMENT_FILE_SUFFIX)) {
+				file.delete();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package co.joyatwork.pedometer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Resamples 3-axis acceleration to a fixed sample rate by linear interpolation,
+ * so step detection runs at the rate its windows were derived from even if the sensor
+ * delivers samples faster or with jitter.
+ * Every pushed sample yields 0 or more output samples, they are valid until the next push.
+ */
+public class Resampler {
+
+	static final int MAX_OUTPUT_COUNT = 16; // longer gaps between samples are not interpolated, resampling restarts
+
+	private final int sampleRateInHz;
+	private final long periodInMicros;
+	private long nextOutputTime; // us
+	private boolean hasPreviousSample;
+	private long previousTime; // us
+	private float previousX;
+	private float previousY;
+	private float previousZ;
+
+	private final float[] outputX = new float[MAX_OUTPUT_COUNT];
+	private final float[] outputY = new float[MAX_OUTPUT_COUNT];
+	private final float[] outputZ = new float[MAX_OUTPUT_COUNT];
+	private final long[] outputTime = new long[MAX_OUTPUT_COUNT];
+
+	public Resampler(int sampleRateInHz) {
+		if (sampleRateInHz < 1) {
+			throw new IllegalArgumentException("Invalid sample rate: " + sampleRateInHz);
+		}
+		this.sampleRateInHz = sampleRateInHz;
+		this.periodInMicros = 1000000L / sampleRateInHz;
+		hasPreviousSample = false;
+	}
+
+	/**
+	 * Pushes input sample.
+	 * @return number of output samples available by getters
+	 */
+	public int push(float x, float y, float z, long sampleTimeInMilis) {
+		long time = sampleTimeInMilis * 1000;
+		int count = 0;
+		if (!hasPreviousSample || time < previousTime || time - previousTime > MAX_OUTPUT_COUNT * periodInMicros) {
+			// start or restart at this sample
+			hasPreviousSample = true;
+			setOutput(0, x, y, z, time);
+			count = 1;
+			nextOutputTime = time + periodInMicros;
+		}
+		else {
+			long interval = time - previousTime;
+			while (nextOutputTime <= time && count < MAX_OUTPUT_COUNT) {
+				float fraction = interval > 0 ? (float) (nextOutputTime - previousTime) / interval : 1;
+				setOutput(count,
+						previousX + fraction * (x - previousX),
+						previousY + fraction * (y - previousY),
+						previousZ + fraction * (z - previousZ),
+						nextOutputTime);
+				count++;
+				nextOutputTime += periodInMicros;
+			}
+		}
+		previousTime = time;
+		previousX = x;
+		previousY = y;
+		previousZ = z;
+		return count;
+	}
+
+	/**
+	 * Writes interpolation state for checkpoint, see {@link StepCounter#writeState(DataOutput)}.
+	 */
+	void writeState(DataOutput out) throws IOException {
+		out.writeBoolean(hasPreviousSample);
+		out.writeLong(nextOutputTime);
+		out.writeLong(previousTime);
+		out.writeFloat(previousX);
+		out.writeFloat(previousY);
+		out.writeFloat(previousZ);
+	}
+
+	void readState(DataInput in) throws IOException {
+		hasPreviousSample = in.readBoolean();
+		nextOutputTime = in.readLong();
+		previousTime = in.readLong();
+		previousX = in.readFloat();
+		previousY = in.readFloat();
+		previousZ = in.readFloat();
+	}
+
+	public int getSampleRate() {
+		return sampleRateInHz;
+	}
+
+	public float getX(int index) {
+		return outputX[index];
+	}
+
+	public float getY(int index) {
+		return outputY[index];
+	}
+
+	public float getZ(int index) {
+		return outputZ[index];
+	}
+
+	/**
+	 * Returns time of output sample in ms
+	 */
+	public long getSampleTime(int index) {
+		return outputTime[index];
+	}
+
+	private void setOutput(int index, float x, float y, float z, long timeInMicros) {
+		outputX[index] = x;
+		outputY[index] = y;
+		outputZ[index] = z;
+		outputTime[index] = timeInMicros / 1000;
+	}
+
+}
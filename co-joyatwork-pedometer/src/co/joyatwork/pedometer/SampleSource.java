@@ -0,0 +1,23 @@
+package co.joyatwork.pedometer;
+
+import java.io.IOException;
+
+/**
+ * Source of accelerometer samples feeding a {@link StepCounter}, e.g. Android sensor,
+ * recording file or synthetic signal generator.
+ * Sensor sources deliver samples asynchronously on their own thread after {@link #start(StepCounter)} returned,
+ * file and generator sources deliver all samples synchronously within the start() call.
+ */
+public interface SampleSource {
+
+	/**
+	 * Starts delivering samples to countSteps() methods of the step counter.
+	 */
+	void start(StepCounter stepCounter) throws IOException;
+
+	/**
+	 * Stops delivering samples, the source can be started again.
+	 */
+	void stop();
+
+}
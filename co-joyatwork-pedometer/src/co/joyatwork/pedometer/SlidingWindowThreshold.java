@@ -0,0 +1,253 @@
+package co.joyatwork.pedometer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Threshold measuring min/max over a sliding window of the last windowSize samples,
+ * instead of the tumbling windows of {@link Threshold}, so the threshold follows the signal
+ * with every sample and does not jump at window ends.
+ *
+ * Window min/max are kept in monotonic deques (primitive ring buffers), 
+ * every sample is pushed and popped at most once, i.e. amortized O(1) per sample without allocation.
+ *
+ * The first window is not measured at all, it only lets the DC filter of the detector settle,
+ * so no special handling of the first sample is needed. Fixed values are 0 until the first
+ * measured window is full and then valid for every sample.
+ */
+public class SlidingWindowThreshold extends DynamicThreshold {
+
+	private final int windowSize;
+
+	private float currentMinValue; // since the last step, see setCurrentMinMax()
+	private float currentMaxValue;
+	private float minValue; // in the sliding window
+	private float maxValue;
+	private boolean isWindowCompleted;
+
+	// monotonic deques: values increasing from head in min deque, decreasing in max deque
+	private final float[] minDequeValues;
+	private final long[] minDequeIndexes;
+	private int minDequeHead;
+	private int minDequeSize;
+	private final float[] maxDequeValues;
+	private final long[] maxDequeIndexes;
+	private int maxDequeHead;
+	private int maxDequeSize;
+
+	private long sampleIndex; // index of the last sample
+	private int windowSampleCount; // counts samples to report window completion
+	private boolean isFirstSample;
+
+	public SlidingWindowThreshold(int numberOfSamples) {
+		windowSize = numberOfSamples;
+		minDequeValues = new float[numberOfSamples];
+		minDequeIndexes = new long[numberOfSamples];
+		maxDequeValues = new float[numberOfSamples];
+		maxDequeIndexes = new long[numberOfSamples];
+		minDequeHead = minDequeSize = 0;
+		maxDequeHead = maxDequeSize = 0;
+		sampleIndex = -1;
+		windowSampleCount = 0;
+		isFirstSample = true;
+		currentMinValue = currentMaxValue = 0;
+		minValue = maxValue = 0;
+		isWindowCompleted = false;
+	}
+
+	@Override
+	public void pushSample(float newSample) {
+
+		sampleIndex++;
+		// for consumers synchronized to windows 
+		isWindowCompleted = ++windowSampleCount == windowSize;
+		if (isWindowCompleted) {
+			windowSampleCount = 0;
+		}
+
+		if (isFirstSample) {
+			isFirstSample = false;
+			currentMinValue = currentMaxValue = newSample;
+		}
+		else if (newSample < currentMinValue) {
+			currentMinValue = newSample;
+		}
+		else if (newSample > currentMaxValue) {
+			currentMaxValue = newSample;
+		}
+
+		if (sampleIndex < windowSize) {
+			return; // DC filter settling
+		}
+
+		pushMin(newSample);
+		pushMax(newSample);
+		if (sampleIndex >= 2 * windowSize - 1) { // the 1st measured window is full
+			minValue = minDequeValues[minDequeHead];
+			maxValue = maxDequeValues[maxDequeHead];
+		}
+	}
+
+	@Override
+	public float getCurrentMinValue() {
+		return currentMinValue;
+	}
+
+	@Override
+	public float getCurrentMaxValue() {
+		return currentMaxValue;
+	}
+
+	@Override
+	public float getFixedMinValue() {
+		return minValue;
+	}
+
+	@Override
+	public float getFixedMaxValue() {
+		return maxValue;
+	}
+
+	/**
+	 * Returns true every windowSize samples, for consumers synchronized to windows
+	 */
+	@Override
+	public boolean isWindowCompleted() {
+		return isWindowCompleted;
+	}
+
+	@Override
+	public float getThresholdValue() {
+		return (minValue + maxValue) / 2;
+	}
+
+	@Override
+	public float getCurrentPeak2PeakValue() {
+		return currentMaxValue - currentMinValue;
+	}
+
+	@Override
+	public float getFixedPeak2PeakValue() {
+		return maxValue - minValue;
+	}
+
+	@Override
+	public void setCurrentMinMax(float value) {
+		currentMaxValue = currentMinValue = value;
+	}
+
+	/**
+	 * Deques are emptied, the DC filter is settled, so the next window is measured.
+	 */
+	@Override
+	public void restart(float value) {
+		minDequeHead = minDequeSize = 0;
+		maxDequeHead = maxDequeSize = 0;
+		sampleIndex = windowSize - 1; // as after DC filter settling
+		windowSampleCount = 0;
+		isWindowCompleted = false;
+		isFirstSample = false;
+		currentMinValue = currentMaxValue = value;
+		minValue = maxValue = 0;
+	}
+
+	/**
+	 * Writes only values held by deques, oldest first.
+	 */
+	@Override
+	void writeState(DataOutput out) throws IOException {
+		out.writeInt(windowSize);
+		out.writeFloat(currentMinValue);
+		out.writeFloat(currentMaxValue);
+		out.writeFloat(minValue);
+		out.writeFloat(maxValue);
+		out.writeBoolean(isWindowCompleted);
+		out.writeLong(sampleIndex);
+		out.writeInt(windowSampleCount);
+		out.writeBoolean(isFirstSample);
+		out.writeInt(minDequeSize);
+		for (int n = 0; n < minDequeSize; n++) {
+			int i = wrap(minDequeHead + n);
+			out.writeFloat(minDequeValues[i]);
+			out.writeLong(minDequeIndexes[i]);
+		}
+		out.writeInt(maxDequeSize);
+		for (int n = 0; n < maxDequeSize; n++) {
+			int i = wrap(maxDequeHead + n);
+			out.writeFloat(maxDequeValues[i]);
+			out.writeLong(maxDequeIndexes[i]);
+		}
+	}
+
+	@Override
+	void readState(DataInput in) throws IOException {
+		StepCounter.checkState("threshold window", windowSize, in.readInt());
+		currentMinValue = in.readFloat();
+		currentMaxValue = in.readFloat();
+		minValue = in.readFloat();
+		maxValue = in.readFloat();
+		isWindowCompleted = in.readBoolean();
+		sampleIndex = in.readLong();
+		windowSampleCount = StepCounter.checkIndex(in.readInt(), windowSize);
+		isFirstSample = in.readBoolean();
+		minDequeHead = 0;
+		minDequeSize = StepCounter.checkIndex(in.readInt(), windowSize + 1);
+		for (int i = 0; i < minDequeSize; i++) {
+			minDequeValues[i] = in.readFloat();
+			minDequeIndexes[i] = in.readLong();
+		}
+		maxDequeHead = 0;
+		maxDequeSize = StepCounter.checkIndex(in.readInt(), windowSize + 1);
+		for (int i = 0; i < maxDequeSize; i++) {
+			maxDequeValues[i] = in.readFloat();
+			maxDequeIndexes[i] = in.readLong();
+		}
+	}
+
+	private void pushMin(float newSample) {
+		// drop values which can't be the min anymore
+		while (minDequeSize > 0 && minDequeValues[minDequeTail()] >= newSample) {
+			minDequeSize--;
+		}
+		// drop the value which slid out of window
+		if (minDequeSize > 0 && sampleIndex - minDequeIndexes[minDequeHead] >= windowSize) {
+			minDequeHead = wrap(minDequeHead + 1);
+			minDequeSize--;
+		}
+		int tail = wrap(minDequeHead + minDequeSize);
+		minDequeValues[tail] = newSample;
+		minDequeIndexes[tail] = sampleIndex;
+		minDequeSize++;
+	}
+
+	private void pushMax(float newSample) {
+		while (maxDequeSize > 0 && maxDequeValues[maxDequeTail()] <= newSample) {
+			maxDequeSize--;
+		}
+		if (maxDequeSize > 0 && sampleIndex - maxDequeIndexes[maxDequeHead] >= windowSize) {
+			maxDequeHead = wrap(maxDequeHead + 1);
+			maxDequeSize--;
+		}
+		int tail = wrap(maxDequeHead + maxDequeSize);
+		maxDequeValues[tail] = newSample;
+		maxDequeIndexes[tail] = sampleIndex;
+		maxDequeSize++;
+	}
+
+	private int minDequeTail() {
+		return wrap(minDequeHead + minDequeSize - 1);
+	}
+
+	private int maxDequeTail() {
+		return wrap(maxDequeHead + maxDequeSize - 1);
+	}
+
+	/**
+	 * Ring buffer index, positions never exceed 2 * windowSize - 1, so no division is needed
+	 */
+	private int wrap(int position) {
+		return position < windowSize ? position : position - windowSize;
+	}
+
+}
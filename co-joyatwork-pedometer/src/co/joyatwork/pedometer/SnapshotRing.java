@@ -0,0 +1,92 @@
+package co.joyatwork.pedometer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free single-producer/single-consumer ring of pre-allocated {@link StepCounterSnapshot}s.
+ * The producer (thread counting steps) claims a free slot, fills it and publishes it,
+ * the consumer (e.g. log writer thread) drains published slots in batches.
+ * When the ring is full the record is dropped and counted, the producer never blocks.
+ */
+public final class SnapshotRing {
+
+	public interface SnapshotHandler {
+		void onSnapshot(StepCounterSnapshot snapshot);
+	}
+
+	private final StepCounterSnapshot[] slots;
+	private final int mask;
+
+	private final AtomicLong tail = new AtomicLong(); // next slot to publish, written by producer only
+	private final AtomicLong head = new AtomicLong(); // next slot to drain, written by consumer only
+	private long cachedHead; // producer's view of head, avoids volatile read per claim
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	/**
+	 * @param capacity - number of slots, rounded up to power of 2
+	 */
+	public SnapshotRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		slots = new StepCounterSnapshot[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new StepCounterSnapshot();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Called by producer, returns slot to be filled and then published by {@link #publish()}.
+	 * @return free slot or null if the ring is full (the record is counted as dropped)
+	 */
+	public StepCounterSnapshot claim() {
+		long currentTail = tail.get();
+		if (currentTail - cachedHead >= slots.length) {
+			cachedHead = head.get();
+			if (currentTail - cachedHead >= slots.length) {
+				droppedCount.incrementAndGet();
+				return null;
+			}
+		}
+		return slots[(int) currentTail & mask];
+	}
+
+	/**
+	 * Called by producer, makes the slot returned by the last {@link #claim()} visible to consumer.
+	 */
+	public void publish() {
+		tail.lazySet(tail.get() + 1);
+	}
+
+	/**
+	 * Called by consumer, passes up to maxCount published snapshots to the handler.
+	 * Slots are released after the whole batch was handled.
+	 * @return number of handled snapshots
+	 */
+	public int drain(SnapshotHandler handler, int maxCount) {
+		long currentHead = head.get();
+		int count = (int) Math.min(tail.get() - currentHead, maxCount);
+		for (int i = 0; i < count; i++) {
+			handler.onSnapshot(slots[(int) (currentHead + i) & mask]);
+		}
+		if (count > 0) {
+			head.lazySet(currentHead + count);
+		}
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Returns number of records dropped because the ring was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+}
@@ -0,0 +1,101 @@
+package co.joyatwork.pedometer;
+
+/**
+ * Publishes step count to UI or other consumers at limited rate.
+ * Updates coming faster than the minimal publish interval are coalesced, only the latest count is published
+ * when the interval elapses (the subclass is asked to call {@link #flush(long)} later).
+ * Crossing a milestone (every milestoneInterval steps) is published immediately.
+ * Not thread safe, all calls are expected on the thread counting steps.
+ */
+public abstract class StepCountPublisher {
+
+	public static final long DEFAULT_MIN_PUBLISH_INTERVAL = 250; // ms, 4 Hz is enough for UI
+	public static final int DEFAULT_MILESTONE_INTERVAL = 1000; // steps
+
+	private final long minPublishInterval;
+	private final int milestoneInterval;
+
+	private boolean hasPublished;
+	private int publishedStepCount;
+	private long lastPublishTime;
+	private boolean hasPendingStepCount;
+	private int pendingStepCount;
+	private boolean isFlushRequested;
+
+	/**
+	 * @param minPublishInterval - minimal time between two published counts in ms, 0 publishes every update
+	 * @param milestoneInterval - counts crossing a multiple of this are published immediately, 0 disables milestones
+	 */
+	public StepCountPublisher(long minPublishInterval, int milestoneInterval) {
+		this.minPublishInterval = minPublishInterval;
+		this.milestoneInterval = milestoneInterval;
+		hasPublished = false;
+		publishedStepCount = 0;
+		lastPublishTime = 0;
+		hasPendingStepCount = false;
+		pendingStepCount = 0;
+		isFlushRequested = false;
+	}
+
+	public StepCountPublisher() {
+		this(DEFAULT_MIN_PUBLISH_INTERVAL, DEFAULT_MILESTONE_INTERVAL);
+	}
+
+	/**
+	 * Updates step count, it is published now or coalesced with next updates.
+	 * @param timeInMilis - current time, monotonic clock is preferred
+	 */
+	public void update(int stepCount, long timeInMilis) {
+		pendingStepCount = stepCount;
+		hasPendingStepCount = true;
+		long elapsedTime = timeInMilis - lastPublishTime;
+		if (!hasPublished || elapsedTime >= minPublishInterval || isMilestoneCrossed(stepCount)) {
+			publishPending(timeInMilis);
+		}
+		else if (!isFlushRequested) {
+			isFlushRequested = true;
+			requestFlush(minPublishInterval - elapsedTime);
+		}
+	}
+
+	/**
+	 * Publishes coalesced step count if any, to be called when the delay given to {@link #requestFlush(long)} elapsed.
+	 */
+	public void flush(long timeInMilis) {
+		isFlushRequested = false;
+		if (hasPendingStepCount) {
+			publishPending(timeInMilis);
+		}
+	}
+
+	/**
+	 * Returns the last published step count
+	 */
+	public int getPublishedStepCount() {
+		return publishedStepCount;
+	}
+
+	/**
+	 * Delivers step count to consumers.
+	 */
+	protected abstract void publish(int stepCount);
+
+	/**
+	 * Asks to call {@link #flush(long)} on the thread counting steps after given delay,
+	 * the request is not repeated until the flush is called.
+	 */
+	protected abstract void requestFlush(long delayInMilis);
+
+	private boolean isMilestoneCrossed(int stepCount) {
+		return milestoneInterval > 0 && stepCount / milestoneInterval != publishedStepCount / milestoneInterval;
+	}
+
+	private void publishPending(long timeInMilis) {
+		hasPendingStepCount = false;
+		hasPublished = true;
+		publishedStepCount = pendingStepCount;
+		lastPublishTime = timeInMilis;
+		publish(pendingStepCount);
+	}
+
+}
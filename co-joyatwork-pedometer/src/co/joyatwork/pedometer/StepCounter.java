@@ -1,5 +1,9 @@
 package co.joyatwork.pedometer;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 public class StepCounter {
 	
 	public interface StepCounterListener {
@@ -8,35 +12,671 @@ public class StepCounter {
 
 	}
 
+	/**
+	 * Receives every counted step with its detector state as primitives, nothing is allocated per event.
+	 * Called on the thread counting steps for every sample adding steps, also inside block countSteps().
+	 */
+	public interface StepEventListener {
+
+		/**
+		 * One step counted by the detector of given axis.
+		 * @param stepTimeInMilis - time of the sample crossing threshold
+		 * @param axis - X_AXIS, Y_AXIS, Z_AXIS or MAGNITUDE_AXIS
+		 * @param stepInterval - ms from the previous step
+		 * @param avgStepInterval - ms, average interval of validated steps
+		 * @param stepIntervalVariance - avgStepInterval / stepInterval
+		 * @param stepCount - step count including this step
+		 */
+		void onStep(long stepTimeInMilis, int axis, long stepInterval, long avgStepInterval, 
+				float stepIntervalVariance, int stepCount);
+
+		/**
+		 * Several steps credited at once, i.e. steps validated when detector switched from searching
+		 * to counting, or steps of axis which got dominant since the last step.
+		 * @param deltaStepCount - number of credited steps
+		 * @param stepCount - step count including credited steps
+		 */
+		void onStepsValidated(long stepTimeInMilis, int axis, int deltaStepCount, long avgStepInterval, 
+				int stepCount);
+
+	}
+
 	public static final int X_AXIS = 0;
 	public static final int Y_AXIS = 1;
 	public static final int Z_AXIS = 2;
+	/**
+	 * Pseudo axis of acceleration vector magnitude, valid for per-axis getters in magnitude modes
+	 */
+	public static final int MAGNITUDE_AXIS = 3;
+
+	/**
+	 * Steps are detected on each axis separately and counted from the axis with max peak
+	 */
+	public static final int AXIS_MODE = 0;
+	/**
+	 * Steps are detected on magnitude |a| = sqrt(x*x + y*y + z*z), independent of phone orientation
+	 */
+	public static final int MAGNITUDE_MODE = 1;
+	/**
+	 * Same as MAGNITUDE_MODE without sqrt, detects on |a|^2 / 2g which varies as |a| around gravity 
+	 */
+	public static final int SQUARED_MAGNITUDE_MODE = 2;
+	
+	/**
+	 * Threshold measured in consecutive windows, see {@link Threshold}
+	 */
+	public static final int TUMBLING_WINDOW_THRESHOLD = 0;
+	/**
+	 * Threshold measured in sliding window updated by every sample, see {@link SlidingWindowThreshold}
+	 */
+	public static final int SLIDING_WINDOW_THRESHOLD = 1;
+	/**
+	 * Threshold measured in consecutive windows, whole detection pipeline in integer arithmetic,
+	 * see {@link FixedPointStepDetector}
+	 */
+	public static final int FIXED_POINT_DETECTOR = 2;
+	
+	/**
+	 * Sample rate is observed during SAMPLE_RATE_OBSERVATION_TIME from the first sample,
+	 * then the detector windows are derived from it
+	 */
+	public static final int OBSERVED_SAMPLE_RATE = 0;
+	static final int SAMPLE_RATE_OBSERVATION_TIME = 1000; //ms
+	
+	// motion gate, energy is sum of squared linear accelerations of all axes in (m/s^2)^2
+	static final float STILL_ENERGY = 0.01F; // smoothed energy below is stillness, about 0.1 m/s^2 RMS
+	static final float MOTION_ENERGY = 0.1F; // a single sample above resumes detection, about 0.3 m/s^2
+	static final float MOTION_ENERGY_SMOOTHING = 0.1F; // coefficient of exponential moving average
+	static final int MIN_STILL_TIME = 2000; //ms, at least 2 threshold windows are quiet before gating
+	
+	private static final short STATE_VERSION = 2;
+	
+	private static final float GRAVITY = 9.80665F;
+	private static final float SQUARED_MAGNITUDE_SCALE = 1 / (2 * GRAVITY);
 
-	private StepDetector[] stepDetector = { new StepDetector(),
-			new StepDetector(),
-			new StepDetector()
-	};
+	private final StepDetector[] stepDetector = new StepDetector[4]; // X, Y, Z and MAGNITUDE_AXIS
 
-	private int[] lastStepCount = new int[3];
+	private int[] lastStepCount = new int[4];
 	private int stepCounter;
 	private int detectedAxis; // holds accelerometer axis from which the last step count was updated  
+	private long lastSampleTimeInMilis;
+	private final float[] lastSensorValues = new float[3];
+	
+	// dominant axis lock-in mode
+	private boolean isDominantAxisLockInEnabled = false;
+	private int lockedAxis = -1; // axis whose detector is the only one updated, -1 if not locked
+	private final float[] lockedMinValues = new float[3]; // linear acceleration min/max of all axes 
+	private final float[] lockedMaxValues = new float[3]; // in the current threshold window of locked axis
 	private StepCounterListener listener;
+	private StepEventListener stepEventListener; // null if not set
+	private int detectionMode = AXIS_MODE;
 	
-	public StepCounter(StepCounterListener listener) {
+	// time based detector windows
+	private final int detectorType;
+	private int sampleRateInHz = 0; // rate the detector windows are derived from, 0 for the fixed sizes
+	private boolean isObservingSampleRate = false;
+	private long observationStartTime;
+	private int observedSampleCount;
+	private Resampler resampler; // null if samples are not resampled
+	
+	// motion gate
+	private boolean isMotionGateEnabled = false;
+	private boolean isMotionGated;
+	private boolean isStill;
+	private long stillStartTime;
+	private float motionEnergy; // smoothed
+	private long motionGatedTime; //ms
+	private long motionGatedSampleCount;
+	
+	private StepCounterMetrics metrics; // null if disabled
+	private boolean isResumingState; // state was restored, the next sample may follow a gap
+	
+	/**
+	 * Detector windows have fixed sizes in samples, they fit 50 Hz sample rate (SENSOR_DELAY_GAME).
+	 * @param detectorType - TUMBLING_WINDOW_THRESHOLD, SLIDING_WINDOW_THRESHOLD or FIXED_POINT_DETECTOR
+	 */
+	public StepCounter(StepCounterListener listener, int detectorType) {
 		this.listener = listener;
-		for (int i = 0; i < 3; i++) {
+		this.detectorType = detectorType;
+		for (int i = 0; i < stepDetector.length; i++) {
+			stepDetector[i] = createStepDetector(detectorType);
+		}
+		for (int i = 0; i < lastStepCount.length; i++) {
 			lastStepCount[i] = 0;
 		}
 		stepCounter = 0;
 		detectedAxis = -1;
 	}
+	/**
+	 * Detector windows are defined in time and derived from the sample rate,
+	 * so steps can be detected at lower rates, e.g. 15-25 Hz.
+	 * @param detectorType - TUMBLING_WINDOW_THRESHOLD, SLIDING_WINDOW_THRESHOLD or FIXED_POINT_DETECTOR
+	 * @param sampleRateInHz - sample rate of the sensor or OBSERVED_SAMPLE_RATE
+	 */
+	public StepCounter(StepCounterListener listener, int detectorType, int sampleRateInHz) {
+		this(listener, detectorType);
+		if (sampleRateInHz == OBSERVED_SAMPLE_RATE) {
+			isObservingSampleRate = true;
+			observedSampleCount = 0;
+		}
+		else {
+			setSampleRate(sampleRateInHz);
+		}
+	}
+	public StepCounter(StepCounterListener listener) {
+		this(listener, TUMBLING_WINDOW_THRESHOLD);
+	}
 	public StepCounter() {
 		this(null);
 	}
 	
+	/**
+	 * Selects AXIS_MODE (default), MAGNITUDE_MODE or SQUARED_MAGNITUDE_MODE.
+	 * Magnitude modes run single step detector instead of three, so they need about 1/3 of filtering
+	 * and threshold work, and the count does not stall when the phone rotates and the dominant axis changes.
+	 */
+	public void setDetectionMode(int mode) {
+		if (mode != AXIS_MODE && mode != MAGNITUDE_MODE && mode != SQUARED_MAGNITUDE_MODE) {
+			throw new IllegalArgumentException("Unknown detection mode: " + mode);
+		}
+		detectionMode = mode;
+		lockedAxis = -1;
+	}
+	
+	public int getDetectionMode() {
+		return detectionMode;
+	}
+	
+	/**
+	 * In dominant axis lock-in mode, once the axis with max peak is counting steps,
+	 * only its detector gets updated, other axes just track gravity and linear acceleration range.
+	 * At the end of each threshold window of the locked axis the ranges are compared
+	 * and the lock is released if another axis got dominant; it is also released 
+	 * when the locked axis drops back to searching. Released detectors restart filtering, threshold
+	 * and step search, their state frozen while locked is not used.
+	 * The steady state cost of counting is then roughly 1/3 of updating all axes. 
+	 */
+	public void setDominantAxisLockIn(boolean enabled) {
+		isDominantAxisLockInEnabled = enabled;
+		if (!enabled && lockedAxis >= 0) {
+			releaseLockedAxis();
+		}
+	}
+	
+	public boolean isDominantAxisLockInEnabled() {
+		return isDominantAxisLockInEnabled;
+	}
+	
+	/**
+	 * Returns axis the counter is locked on in lock-in mode, -1 if not locked
+	 */
+	public int getLockedAxis() {
+		return lockedAxis;
+	}
+	
+	/**
+	 * Resamples input samples to given rate before step detection and derives detector windows from it,
+	 * e.g. to run detection at 20 Hz while the sensor delivers faster or irregularly.
+	 * Step detection restarts, already counted steps are kept. 
+	 * @param sampleRateInHz - resampling rate, 0 disables resampling
+	 */
+	public void setResampling(int sampleRateInHz) {
+		if (sampleRateInHz == 0) {
+			resampler = null;
+			return;
+		}
+		resampler = new Resampler(sampleRateInHz);
+		isObservingSampleRate = false;
+		setSampleRate(sampleRateInHz);
+	}
+	
+	/**
+	 * Returns resampling rate, 0 if samples are not resampled
+	 */
+	public int getResamplingRate() {
+		return resampler != null ? resampler.getSampleRate() : 0;
+	}
+	
+	/**
+	 * Returns sample rate the detector windows are derived from,
+	 * 0 if they have fixed sizes or the rate is still being observed
+	 */
+	public int getSampleRate() {
+		return sampleRateInHz;
+	}
+	
+	/**
+	 * With motion gate enabled, the counter detects stillness (e.g. phone lying on a desk) from running
+	 * energy of linear acceleration. After MIN_STILL_TIME of stillness the step detection pipelines
+	 * are bypassed and only gravity estimates are updated. The first sample with motion energy
+	 * above MOTION_ENERGY resumes detection; the pipelines hold the quiet state they had when
+	 * gated and gravity is current, so no warm-up is needed.
+	 */
+	public void setMotionGate(boolean enabled) {
+		isMotionGateEnabled = enabled;
+		isMotionGated = false;
+		isStill = false;
+		motionEnergy = 0;
+	}
+	
+	public boolean isMotionGateEnabled() {
+		return isMotionGateEnabled;
+	}
+	
+	/**
+	 * Returns true if the step detection is bypassed because the device is still
+	 */
+	public boolean isMotionGated() {
+		return isMotionGated;
+	}
+	
+	/**
+	 * Returns time in ms the step detection was bypassed by motion gate
+	 */
+	public long getMotionGatedTime() {
+		return motionGatedTime;
+	}
+	
+	/**
+	 * Returns number of samples the step detection was bypassed for by motion gate
+	 */
+	public long getMotionGatedSampleCount() {
+		return motionGatedSampleCount;
+	}
+	
+	/**
+	 * Returns time in ms of the last counted sample, in the time base of the samples and step events
+	 */
+	public long getLastSampleTime() {
+		return lastSampleTimeInMilis;
+	}
+	
+	/**
+	 * Sets listener of step events, null removes it.
+	 */
+	public void setStepEventListener(StepEventListener listener) {
+		stepEventListener = listener;
+	}
+	
+	/**
+	 * Enables hot path metrics, null disables them. Metrics are written by the thread counting steps,
+	 * any thread can read them by {@link StepCounterMetrics#snapshot(StepCounterMetrics.Snapshot)}.
+	 * Disabled metrics cost one null check per sample and detector.
+	 */
+	public void setMetrics(StepCounterMetrics metrics) {
+		this.metrics = metrics;
+		for (int i = 0; i < stepDetector.length; i++) {
+			stepDetector[i].setMetrics(metrics, i);
+		}
+	}
+	
+	public StepCounterMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Writes full state of step detection (counts, detecting strategies, filters, threshold windows, 
+	 * motion gate and resampler) together with the configuration it is valid for, about 1 KB.
+	 * Listeners and metrics are not part of the state.
+	 * @see StepCounterCheckpoint
+	 */
+	public void writeState(DataOutput out) throws IOException {
+		out.writeShort(STATE_VERSION);
+		// configuration
+		out.writeInt(detectorType);
+		out.writeInt(detectionMode);
+		out.writeInt(sampleRateInHz);
+		out.writeInt(getResamplingRate());
+		out.writeBoolean(isDominantAxisLockInEnabled);
+		out.writeBoolean(isMotionGateEnabled);
+		// state
+		out.writeInt(stepCounter);
+		out.writeInt(detectedAxis);
+		out.writeLong(lastSampleTimeInMilis);
+		for (int i = 0; i < 3; i++) {
+			out.writeFloat(lastSensorValues[i]);
+			out.writeFloat(lockedMinValues[i]);
+			out.writeFloat(lockedMaxValues[i]);
+		}
+		out.writeInt(lockedAxis);
+		out.writeBoolean(isObservingSampleRate);
+		out.writeLong(observationStartTime);
+		out.writeInt(observedSampleCount);
+		out.writeBoolean(isMotionGated);
+		out.writeBoolean(isStill);
+		out.writeLong(stillStartTime);
+		out.writeFloat(motionEnergy);
+		out.writeLong(motionGatedTime);
+		out.writeLong(motionGatedSampleCount);
+		if (resampler != null) {
+			resampler.writeState(out);
+		}
+		for (int i = 0; i < stepDetector.length; i++) {
+			out.writeInt(lastStepCount[i]);
+			stepDetector[i].writeState(out);
+		}
+	}
+	
+	/**
+	 * Restores state written by {@link #writeState(DataOutput)}, step detection continues where it was saved.
+	 * The counter must be configured the same way (detector type, detection mode, sample rate, resampling,
+	 * lock-in and motion gate), counter observing sample rate takes the saved rate.
+	 * Configuration is checked before any state is changed, 
+	 * if IOException is thrown later (corrupted data) the counter state is undefined.
+	 * @throws IOException if the state does not match the configuration or can't be read
+	 */
+	public void readState(DataInput in) throws IOException {
+		checkState("state version", STATE_VERSION, in.readShort());
+		checkState("detector type", detectorType, in.readInt());
+		checkState("detection mode", detectionMode, in.readInt());
+		int savedSampleRate = in.readInt();
+		if (savedSampleRate != sampleRateInHz && !(isObservingSampleRate && savedSampleRate > 0)) {
+			checkState("sample rate", sampleRateInHz, savedSampleRate);
+		}
+		checkState("resampling rate", getResamplingRate(), in.readInt());
+		checkState("dominant axis lock-in", isDominantAxisLockInEnabled ? 1 : 0, in.readBoolean() ? 1 : 0);
+		checkState("motion gate", isMotionGateEnabled ? 1 : 0, in.readBoolean() ? 1 : 0);
+		if (savedSampleRate != sampleRateInHz) {
+			setSampleRate(savedSampleRate); // observed before checkpoint
+		}
+		
+		stepCounter = in.readInt();
+		detectedAxis = checkIndex(in.readInt() + 1, stepDetector.length + 1) - 1;
+		lastSampleTimeInMilis = in.readLong();
+		for (int i = 0; i < 3; i++) {
+			lastSensorValues[i] = in.readFloat();
+			lockedMinValues[i] = in.readFloat();
+			lockedMaxValues[i] = in.readFloat();
+		}
+		lockedAxis = checkIndex(in.readInt() + 1, 3 + 1) - 1;
+		isObservingSampleRate = in.readBoolean();
+		observationStartTime = in.readLong();
+		observedSampleCount = in.readInt();
+		isMotionGated = in.readBoolean();
+		isStill = in.readBoolean();
+		stillStartTime = in.readLong();
+		motionEnergy = in.readFloat();
+		motionGatedTime = in.readLong();
+		motionGatedSampleCount = in.readLong();
+		if (resampler != null) {
+			resampler.readState(in);
+		}
+		for (int i = 0; i < stepDetector.length; i++) {
+			lastStepCount[i] = in.readInt();
+			stepDetector[i].readState(in);
+		}
+		isResumingState = true;
+	}
+	
+	/**
+	 * Throws IOException if value of restored state does not match the expected one
+	 */
+	static void checkState(String name, int expected, int value) throws IOException {
+		if (value != expected) {
+			throw new IOException("State mismatch of " + name + ": " + value + ", expected " + expected);
+		}
+	}
+	
+	/**
+	 * Returns index of restored state, throws IOException if it is out of [0, size)
+	 */
+	static int checkIndex(int index, int size) throws IOException {
+		if (index < 0 || index >= size) {
+			throw new IOException("State index out of range: " + index + ", size " + size);
+		}
+		return index;
+	}
+	
 	public void countSteps(float[] accelerationSamples, long sampleTimeInMilis) {
 
-		updateStepDetectors(accelerationSamples, sampleTimeInMilis);
+		int deltaStepCount = countSample(accelerationSamples[X_AXIS], 
+				accelerationSamples[Y_AXIS], 
+				accelerationSamples[Z_AXIS], 
+				sampleTimeInMilis);
+		
+		if (deltaStepCount > 0 && listener != null) {
+			listener.onStepsCounted(deltaStepCount);
+		}
+
+	}
+
+	/**
+	 * Counts steps over a block of samples, e.g. a sensor burst or a replayed recording.
+	 * Yields the same step count as calling {@link #countSteps(float[], long)} for every sample,
+	 * but the listener is notified only once per block with the sum of step count deltas.
+	 * @param xyzInterleaved - acceleration samples stored as x0,y0,z0,x1,y1,z1,...
+	 * @param timestamps - sample times in ms, one per 3-axis sample
+	 * @param offset - index of the first sample in the block (not the array index of x value)
+	 * @param count - number of 3-axis samples in the block
+	 */
+	public void countSteps(float[] xyzInterleaved, long[] timestamps, int offset, int count) {
+		
+		int deltaStepCount = 0;
+		int valueIndex = offset * 3;
+		for (int i = offset; i < offset + count; i++) {
+			deltaStepCount += countSample(xyzInterleaved[valueIndex], 
+					xyzInterleaved[valueIndex + 1], 
+					xyzInterleaved[valueIndex + 2], 
+					timestamps[i]);
+			valueIndex += 3;
+		}
+		
+		if (deltaStepCount > 0 && listener != null) {
+			listener.onStepsCounted(deltaStepCount);
+		}
+		
+	}
+
+	private static StepDetector createStepDetector(int detectorType) {
+		switch (detectorType) {
+		case TUMBLING_WINDOW_THRESHOLD:
+			return new StepDetector(new Threshold(StepDetector.THRESHOLD_WINDOW_SIZE));
+		case SLIDING_WINDOW_THRESHOLD:
+			return new StepDetector(new SlidingWindowThreshold(StepDetector.THRESHOLD_WINDOW_SIZE));
+		case FIXED_POINT_DETECTOR:
+			return new FixedPointStepDetector();
+		default:
+			throw new IllegalArgumentException("Unknown detector type: " + detectorType);
+		}
+	}
+
+	private static StepDetector createStepDetector(int detectorType, int sampleRateInHz) {
+		float alpha = StepDetector.alpha(sampleRateInHz);
+		int movingAvgWindowSize = StepDetector.windowSize(StepDetector.MOVING_AVG_WINDOW_TIME, sampleRateInHz);
+		int thresholdWindowSize = StepDetector.windowSize(StepDetector.THRESHOLD_WINDOW_TIME, sampleRateInHz);
+		switch (detectorType) {
+		case TUMBLING_WINDOW_THRESHOLD:
+			return new StepDetector(new Threshold(thresholdWindowSize), alpha, movingAvgWindowSize);
+		case SLIDING_WINDOW_THRESHOLD:
+			return new StepDetector(new SlidingWindowThreshold(thresholdWindowSize), alpha, movingAvgWindowSize);
+		case FIXED_POINT_DETECTOR:
+			return new FixedPointStepDetector(alpha, movingAvgWindowSize, thresholdWindowSize);
+		default:
+			throw new IllegalArgumentException("Unknown detector type: " + detectorType);
+		}
+	}
+
+	/**
+	 * Replaces step detectors by detectors with windows derived from given rate, step detection restarts.
+	 */
+	private void setSampleRate(int sampleRateInHz) {
+		if (sampleRateInHz < 1) {
+			throw new IllegalArgumentException("Invalid sample rate: " + sampleRateInHz);
+		}
+		this.sampleRateInHz = sampleRateInHz;
+		for (int i = 0; i < stepDetector.length; i++) {
+			stepDetector[i] = createStepDetector(detectorType, sampleRateInHz);
+			stepDetector[i].setMetrics(metrics, i);
+			lastStepCount[i] = 0;
+		}
+		lockedAxis = -1;
+	}
+
+	/**
+	 * Passes one 3-axis sample to step detectors, directly or through resampler.
+	 * @return step count delta, 0 if no steps were counted
+	 */
+	private int countSample(float x, float y, float z, long sampleTimeInMilis) {
+		if (resampler == null) {
+			if (isObservingSampleRate) {
+				observeSampleRate(sampleTimeInMilis);
+			}
+			return metrics == null 
+					? updateStepCount(x, y, z, sampleTimeInMilis) 
+					: updateMeasuredStepCount(x, y, z, sampleTimeInMilis);
+		}
+		int deltaStepCount = 0;
+		int count = resampler.push(x, y, z, sampleTimeInMilis);
+		for (int i = 0; i < count; i++) {
+			deltaStepCount += metrics == null
+					? updateStepCount(resampler.getX(i), resampler.getY(i), resampler.getZ(i), 
+							resampler.getSampleTime(i))
+					: updateMeasuredStepCount(resampler.getX(i), resampler.getY(i), resampler.getZ(i), 
+							resampler.getSampleTime(i));
+		}
+		return deltaStepCount;
+	}
+
+	/**
+	 * Same as updateStepCount(), all metrics of the sample are published at once.
+	 */
+	private int updateMeasuredStepCount(float x, float y, float z, long sampleTimeInMilis) {
+		metrics.beginUpdate();
+		boolean isGated = isMotionGated; // gated samples bypass detectors
+		int deltaStepCount = updateStepCount(x, y, z, sampleTimeInMilis);
+		metrics.endUpdate(isGated);
+		return deltaStepCount;
+	}
+
+	private void observeSampleRate(long sampleTimeInMilis) {
+		if (observedSampleCount++ == 0) {
+			observationStartTime = sampleTimeInMilis;
+			return;
+		}
+		long observationTime = sampleTimeInMilis - observationStartTime;
+		if (observationTime >= SAMPLE_RATE_OBSERVATION_TIME) {
+			isObservingSampleRate = false;
+			setSampleRate(Math.max(1, Math.round((observedSampleCount - 1) * 1000F / observationTime)));
+		}
+	}
+
+	/**
+	 * Updates step detectors with one 3-axis sample and the step count from the axis with max peak.
+	 * @return step count delta, 0 if no steps were counted
+	 */
+	private int updateStepCount(float x, float y, float z, long sampleTimeInMilis) {
+		
+		long previousSampleTime = lastSampleTimeInMilis;
+		lastSampleTimeInMilis = sampleTimeInMilis;
+		lastSensorValues[X_AXIS] = x;
+		lastSensorValues[Y_AXIS] = y;
+		lastSensorValues[Z_AXIS] = z;
+		
+		if (isResumingState) {
+			isResumingState = false;
+			for (int i = 0; i < stepDetector.length; i++) {
+				stepDetector[i].resume(sampleTimeInMilis - previousSampleTime);
+			}
+		}
+		if (isMotionGated) {
+			updateGatedGravity(sampleTimeInMilis - previousSampleTime);
+			return 0;
+		}
+		
+		int deltaStepCount;
+		if (detectionMode != AXIS_MODE) {
+			deltaStepCount = updateMagnitudeStepCount(x, y, z, sampleTimeInMilis);
+		}
+		else if (lockedAxis >= 0) {
+			deltaStepCount = updateLockedStepCount(sampleTimeInMilis);
+		}
+		else {
+			deltaStepCount = updateDominantAxisStepCount(x, y, z, sampleTimeInMilis);
+		}
+		if (deltaStepCount > 0 && stepEventListener != null) {
+			notifyStepEvent(deltaStepCount, sampleTimeInMilis);
+		}
+		if (isMotionGateEnabled) {
+			updateMotionGate(sampleTimeInMilis);
+		}
+		return deltaStepCount;
+	}
+	
+	private void notifyStepEvent(int deltaStepCount, long sampleTimeInMilis) {
+		StepDetector detector = stepDetector[detectedAxis];
+		if (deltaStepCount == 1 && !detector.hasValidatedSteps()) {
+			stepEventListener.onStep(sampleTimeInMilis, detectedAxis, 
+					detector.getStepInterval(), detector.getAvgStepInterval(), detector.getStepIntervalVariance(), 
+					stepCounter);
+		}
+		else {
+			stepEventListener.onStepsValidated(sampleTimeInMilis, detectedAxis, 
+					deltaStepCount, detector.getAvgStepInterval(), stepCounter);
+		}
+	}
+	
+	/**
+	 * Updates gravity estimates only, detection resumes when motion energy of the sample exceeds MOTION_ENERGY. 
+	 */
+	private void updateGatedGravity(long sampleInterval) {
+		float energy = 0;
+		if (detectionMode != AXIS_MODE) {
+			float linearAcceleration = stepDetector[MAGNITUDE_AXIS].updateGravity(magnitudeOf(lastSensorValues));
+			energy = linearAcceleration * linearAcceleration;
+		}
+		else {
+			for (int i = 0; i < 3; i++) {
+				float linearAcceleration = stepDetector[i].updateGravity(lastSensorValues[i]);
+				energy += linearAcceleration * linearAcceleration;
+			}
+		}
+		if (sampleInterval > 0) {
+			motionGatedTime += sampleInterval;
+		}
+		motionGatedSampleCount++;
+		if (energy > MOTION_ENERGY) { // next sample goes through detection pipeline
+			isMotionGated = false;
+			isStill = false;
+			motionEnergy = energy;
+		}
+	}
+	
+	/**
+	 * Tracks smoothed motion energy of the detected sample and gates detection after MIN_STILL_TIME of stillness.
+	 */
+	private void updateMotionGate(long sampleTimeInMilis) {
+		float energy = 0;
+		if (detectionMode != AXIS_MODE) {
+			float linearAcceleration = stepDetector[MAGNITUDE_AXIS].getLinearAcceleration();
+			energy = linearAcceleration * linearAcceleration;
+		}
+		else {
+			for (int i = 0; i < 3; i++) {
+				float linearAcceleration = stepDetector[i].getLinearAcceleration();
+				energy += linearAcceleration * linearAcceleration;
+			}
+		}
+		motionEnergy += (energy - motionEnergy) * MOTION_ENERGY_SMOOTHING;
+		if (motionEnergy >= STILL_ENERGY) {
+			isStill = false;
+		}
+		else if (!isStill) {
+			isStill = true;
+			stillStartTime = sampleTimeInMilis;
+		}
+		else if (sampleTimeInMilis - stillStartTime >= MIN_STILL_TIME) {
+			isMotionGated = true;
+			lockedAxis = -1;
+			detectedAxis = -1;
+		}
+	}
+
+	/**
+	 * Updates all axis detectors and the step count from the axis with max peak.
+	 */
+	private int updateDominantAxisStepCount(float x, float y, float z, long sampleTimeInMilis) {
+		
+		updateStepDetectors(x, y, z, sampleTimeInMilis);
 		
 		int maxPeakAxis = -1;
 		float maxPeak2PeakValue = 0;
@@ -48,9 +688,10 @@ public class StepCounter {
 			}
 		}
 		
+		int deltaStepCount = 0;
 		if (maxPeakAxis >= 0) {
 			if (stepDetector[maxPeakAxis].hasValidSteps()) {
-				int deltaStepCount = stepDetector[maxPeakAxis].getStepCount() - lastStepCount[maxPeakAxis];
+				deltaStepCount = stepDetector[maxPeakAxis].getStepCount() - lastStepCount[maxPeakAxis];
 				stepCounter += deltaStepCount; // add delta
 				
 				// store counts for next delta calculation
@@ -59,21 +700,131 @@ public class StepCounter {
 				}
 				
 				detectedAxis = maxPeakAxis;
-				if (listener != null) {
-					listener.onStepsCounted(deltaStepCount);
+				if (isDominantAxisLockInEnabled && stepDetector[maxPeakAxis].isCounting()) {
+					lockAxis(maxPeakAxis);
 				}
 			}
 			else {
 				detectedAxis = -1;
 			}
 		} 
+		return deltaStepCount;
 
 	}
 
-	private void updateStepDetectors(float[] accelerationSamples, long sampleTimeInMilis) {
-		for(int i = 0; i < 3; i++) {
-			stepDetector[i].update(accelerationSamples[i], sampleTimeInMilis);
+	private int updateMagnitudeStepCount(float x, float y, float z, long sampleTimeInMilis) {
+		
+		StepDetector magnitudeDetector = stepDetector[MAGNITUDE_AXIS];
+		magnitudeDetector.update(magnitudeOf(lastSensorValues), sampleTimeInMilis);
+		
+		int deltaStepCount = 0;
+		if (magnitudeDetector.hasValidSteps()) {
+			deltaStepCount = magnitudeDetector.getStepCount() - lastStepCount[MAGNITUDE_AXIS];
+			stepCounter += deltaStepCount; // add delta
+			lastStepCount[MAGNITUDE_AXIS] = magnitudeDetector.getStepCount();
+			detectedAxis = MAGNITUDE_AXIS;
+		}
+		else {
+			detectedAxis = -1;
+		}
+		return deltaStepCount;
+	}
+
+	/**
+	 * Returns value detected in magnitude modes
+	 */
+	private float magnitudeOf(float[] values) {
+		float squaredMagnitude = values[X_AXIS] * values[X_AXIS] 
+				+ values[Y_AXIS] * values[Y_AXIS] 
+				+ values[Z_AXIS] * values[Z_AXIS];
+		return (detectionMode == MAGNITUDE_MODE) 
+				? (float) Math.sqrt(squaredMagnitude)
+				: squaredMagnitude * SQUARED_MAGNITUDE_SCALE;
+	}
+
+	private void lockAxis(int axis) {
+		lockedAxis = axis;
+		for (int i = 0; i < 3; i++) {
+			lockedMinValues[i] = lockedMaxValues[i] = stepDetector[i].getLinearAcceleration();
+		}
+	}
+
+	/**
+	 * Updates full pipeline of locked axis only, the other axes track gravity and linear acceleration range.
+	 */
+	private int updateLockedStepCount(long sampleTimeInMilis) {
+		
+		StepDetector lockedDetector = stepDetector[lockedAxis];
+		for (int i = 0; i < 3; i++) {
+			float linearAcceleration;
+			if (i == lockedAxis) {
+				lockedDetector.update(lastSensorValues[i], sampleTimeInMilis);
+				linearAcceleration = lockedDetector.getLinearAcceleration();
+			}
+			else {
+				linearAcceleration = stepDetector[i].updateGravity(lastSensorValues[i]);
+			}
+			if (linearAcceleration < lockedMinValues[i]) {
+				lockedMinValues[i] = linearAcceleration;
+			}
+			else if (linearAcceleration > lockedMaxValues[i]) {
+				lockedMaxValues[i] = linearAcceleration;
+			}
+		}
+		
+		int deltaStepCount = 0;
+		if (lockedDetector.hasValidSteps()) {
+			deltaStepCount = lockedDetector.getStepCount() - lastStepCount[lockedAxis];
+			stepCounter += deltaStepCount; // add delta
+			lastStepCount[lockedAxis] = lockedDetector.getStepCount();
+			detectedAxis = lockedAxis;
+		}
+		else {
+			detectedAxis = -1;
+		}
+		
+		if (!lockedDetector.isCounting()) {
+			releaseLockedAxis(); // dropped back to searching, all axes compete again
+		}
+		else if (lockedDetector.isThresholdWindowCompleted()) {
+			checkLockedAxisDominance();
 		}
+		return deltaStepCount;
+	}
+
+	private void checkLockedAxisDominance() {
+		float lockedPeak2PeakValue = lockedMaxValues[lockedAxis] - lockedMinValues[lockedAxis];
+		int dominantAxis = lockedAxis;
+		for (int i = 0; i < 3; i++) {
+			if (lockedMaxValues[i] - lockedMinValues[i] > lockedPeak2PeakValue) {
+				dominantAxis = i;
+			}
+		}
+		if (dominantAxis != lockedAxis) {
+			releaseLockedAxis(); // another axis got dominant, all axes compete again
+		}
+		else {
+			lockAxis(lockedAxis); // start measuring ranges for next window
+		}
+	}
+
+	/**
+	 * Detectors of the other axes are restarted, so they compete with fresh threshold and smoothing
+	 * instead of the state frozen when the lock started.
+	 */
+	private void releaseLockedAxis() {
+		for (int i = 0; i < 3; i++) {
+			if (i != lockedAxis) {
+				stepDetector[i].restart();
+			}
+		}
+		lockedAxis = -1;
+	}
+
+	private void updateStepDetectors(float x, float y, float z, long sampleTimeInMilis) {
+		stepDetector[X_AXIS].update(x, sampleTimeInMilis);
+		stepDetector[Y_AXIS].update(y, sampleTimeInMilis);
+		stepDetector[Z_AXIS].update(z, sampleTimeInMilis);
 	}
 
 	public int getStepCount() {
@@ -91,6 +842,9 @@ public class StepCounter {
 		else if (detectedAxis == 2) {
 			return "Z";
 		}
+		else if (detectedAxis == MAGNITUDE_AXIS) {
+			return "M";
+		}
 		else {
 			return "?";
 		}
@@ -105,7 +859,14 @@ public class StepCounter {
 	}
 
 	public float[] getLinearAccelerationValues() {
-		float[] linearAccelerationVector = new float[3];
+		return getLinearAccelerationValues(new float[3]);
+	}
+	
+	/**
+	 * Fills linear acceleration of all axes into given array, no allocation.
+	 * @return the destination array
+	 */
+	public float[] getLinearAccelerationValues(float[] linearAccelerationVector) {
 		for (int axis = 0; axis < 3; axis++) {
 			linearAccelerationVector[axis] = stepDetector[axis].getLinearAcceleration();
 		}
@@ -113,7 +874,14 @@ public class StepCounter {
 	}
 	
 	public float[] getSmoothedAccelerationValues() {
-		float[] smoothedAccelerationVector = new float[3];
+		return getSmoothedAccelerationValues(new float[3]);
+	}
+	
+	/**
+	 * Fills smoothed acceleration of all axes into given array, no allocation.
+	 * @return the destination array
+	 */
+	public float[] getSmoothedAccelerationValues(float[] smoothedAccelerationVector) {
 		for (int axis = 0; axis < 3; axis++) {
 			smoothedAccelerationVector[axis] = stepDetector[axis].getSmoothedAcceleration();
 		}
@@ -121,12 +889,47 @@ public class StepCounter {
 	}
 	
 	public float[] getThresholdValues() {
-		float[] thresholdValues = new float[3];
+		return getThresholdValues(new float[3]);
+	}
+	
+	/**
+	 * Fills threshold values of all axes into given array, no allocation.
+	 * @return the destination array
+	 */
+	public float[] getThresholdValues(float[] thresholdValues) {
 		for(int i = 0; i < 3; i++) {
 			thresholdValues[i] = stepDetector[i].getThresholdValue();
 		}
 		return thresholdValues;
 	}
+	
+	/**
+	 * Fills all per-axis values as updated by the last sample into the reusable snapshot.
+	 * @return the snapshot passed in
+	 */
+	public StepCounterSnapshot fillSnapshot(StepCounterSnapshot snapshot) {
+		snapshot.sampleTimeInMilis = lastSampleTimeInMilis;
+		snapshot.stepCount = stepCounter;
+		snapshot.detectedAxis = detectedAxis;
+		for (int axis = 0; axis < 3; axis++) {
+			StepDetector detector = stepDetector[axis];
+			snapshot.sensorValue[axis] = lastSensorValues[axis];
+			snapshot.linearAcceleration[axis] = detector.getLinearAcceleration();
+			snapshot.smoothedAcceleration[axis] = detector.getSmoothedAcceleration();
+			snapshot.thresholdValue[axis] = detector.getThresholdValue();
+			snapshot.currentPeak2PeakValue[axis] = detector.getCurrentPeak2PeakValue();
+			snapshot.fixedPeak2PeakValue[axis] = detector.getFixedPeak2PeakValue();
+			snapshot.fixedMinValue[axis] = detector.getFixedMinValue();
+			snapshot.fixedMaxValue[axis] = detector.getFixedMaxValue();
+			snapshot.stepInterval[axis] = detector.getStepInterval();
+			snapshot.avgStepInterval[axis] = detector.getAvgStepInterval();
+			snapshot.stepIntervalVariance[axis] = detector.getStepIntervalVariance();
+			snapshot.validSteps[axis] = detector.hasValidSteps();
+			snapshot.crossingThresholdCount[axis] = detector.getCrossingThresholdCount();
+			snapshot.axisStepCount[axis] = detector.getStepCount();
+		}
+		return snapshot;
+	}
     
 	public float getLinearAcceleration(int axis) {
 		return stepDetector[axis].getLinearAcceleration();
@@ -0,0 +1,429 @@
+package co.joyatwork.pedometer;
+
+/**
+ * Step counters of many users kept in primitive arrays (structure of arrays).
+ *
+ * Every user has 3 axis detectors, detector index is user * 3 + axis.
+ * The algorithm is the same as in {@link StepCounter}, {@link StepDetector} and {@link Threshold},
+ * so each user gets the same step count as a separate StepCounter fed with the same samples,
+ * but the state of all users is packed into a few flat arrays and advanced in one loop per tick.
+ */
+public class StepCounterBank {
+
+	private static final float ALPHA = StepDetector.ALPHA;
+	private static final int THRESHOLD_WINDOW_SIZE = StepDetector.THRESHOLD_WINDOW_SIZE;
+	private static final int MOVING_AVG_WINDOW_SIZE = StepDetector.MOVING_AVG_WINDOW_SIZE;
+	private static final float MOVING_AVG_SCALE = 1.0F / MOVING_AVG_WINDOW_SIZE;
+	private static final int VALID_STEPS_COUNT = StepDetector.SearchingDetector.VALID_STEPS_COUNT;
+
+	private final int userCount;
+
+	// per user
+	private final int[] stepCounter;
+	private final int[] detectedAxis;
+
+	// per detector - digital filtering
+	private final float[] gravity;
+	private final float[] linearAcceleration;
+	private final float[] smoothedAcceleration;
+	private final float[] movingAvgValues; // MOVING_AVG_WINDOW_SIZE ring per detector
+	private final int[] movingAvgIndex;
+	private final float[] movingAvgSum;
+	private final int[] movingAvgSamplesToResync;
+
+	// per detector - threshold
+	private final float[] measuredMinValue;
+	private final float[] measuredMaxValue;
+	private final float[] currentMinValue;
+	private final float[] currentMaxValue;
+	private final float[] minValue;
+	private final float[] maxValue;
+	private final int[] thresholdSampleCount;
+	private final float[] firstSample;
+	private final boolean[] isFirstSample;
+	private final boolean[] isFirstWindow;
+
+	// per detector - step detection
+	private final float[] lastSample;
+	private final float[] thresholdValue;
+	private final int[] stepCount;
+	private final int[] lastStepCount;
+	private final boolean[] hasValidSteps;
+	private final boolean[] isCounting; // detecting strategy, false for searching
+	private final long[] previousStepTime;
+	private final long[] stepInterval;
+	private final long[] previousStepInterval;
+	private final long[] avgStepInterval;
+	private final long[] avgStepIntervalSum;
+	private final float[] stepIntervalVariance;
+	private final int[] validStepsCount;
+
+	public StepCounterBank(int userCount) {
+		this.userCount = userCount;
+		int detectorCount = userCount * 3;
+
+		stepCounter = new int[userCount];
+		detectedAxis = new int[userCount];
+
+		gravity = new float[detectorCount];
+		linearAcceleration = new float[detectorCount];
+		smoothedAcceleration = new float[detectorCount];
+		movingAvgValues = new float[detectorCount * MOVING_AVG_WINDOW_SIZE];
+		movingAvgIndex = new int[detectorCount];
+		movingAvgSum = new float[detectorCount];
+		movingAvgSamplesToResync = new int[detectorCount];
+
+		measuredMinValue = new float[detectorCount];
+		measuredMaxValue = new float[detectorCount];
+		currentMinValue = new float[detectorCount];
+		currentMaxValue = new float[detectorCount];
+		minValue = new float[detectorCount];
+		maxValue = new float[detectorCount];
+		thresholdSampleCount = new int[detectorCount];
+		firstSample = new float[detectorCount];
+		isFirstSample = new boolean[detectorCount];
+		isFirstWindow = new boolean[detectorCount];
+
+		lastSample = new float[detectorCount];
+		thresholdValue = new float[detectorCount];
+		stepCount = new int[detectorCount];
+		lastStepCount = new int[detectorCount];
+		hasValidSteps = new boolean[detectorCount];
+		isCounting = new boolean[detectorCount];
+		previousStepTime = new long[detectorCount];
+		stepInterval = new long[detectorCount];
+		previousStepInterval = new long[detectorCount];
+		avgStepInterval = new long[detectorCount];
+		avgStepIntervalSum = new long[detectorCount];
+		stepIntervalVariance = new float[detectorCount];
+		validStepsCount = new int[detectorCount];
+
+		for (int user = 0; user < userCount; user++) {
+			reset(user);
+		}
+	}
+
+	/**
+	 * Restarts step counting of the user, e.g. when the slot is reused for another device.
+	 */
+	public void reset(int user) {
+		stepCounter[user] = 0;
+		detectedAxis[user] = -1;
+		for (int d = user * 3; d < user * 3 + 3; d++) {
+			gravity[d] = 0;
+			linearAcceleration[d] = 0;
+			smoothedAcceleration[d] = 0;
+			for (int i = d * MOVING_AVG_WINDOW_SIZE; i < (d + 1) * MOVING_AVG_WINDOW_SIZE; i++) {
+				movingAvgValues[i] = 0;
+			}
+			movingAvgIndex[d] = 0;
+			movingAvgSum[d] = 0;
+			movingAvgSamplesToResync[d] = LinearAccelerationFilter.SUM_RESYNC_INTERVAL;
+
+			measuredMinValue[d] = measuredMaxValue[d] = 0;
+			currentMinValue[d] = currentMaxValue[d] = 0;
+			minValue[d] = maxValue[d] = 0;
+			thresholdSampleCount[d] = 0;
+			firstSample[d] = 0;
+			isFirstSample[d] = true;
+			isFirstWindow[d] = true;
+
+			lastSample[d] = 0;
+			thresholdValue[d] = 0;
+			stepCount[d] = 0;
+			lastStepCount[d] = 0;
+			hasValidSteps[d] = false;
+			isCounting[d] = false;
+			previousStepTime[d] = 0;
+			stepInterval[d] = 0;
+			previousStepInterval[d] = 0;
+			avgStepInterval[d] = 0;
+			avgStepIntervalSum[d] = 0;
+			stepIntervalVariance[d] = 0;
+			validStepsCount[d] = 1; //anticipate the 1st step is ok, next steps will be validated
+		}
+	}
+
+	public int size() {
+		return userCount;
+	}
+
+	/**
+	 * Advances all users by one sample.
+	 * @param xyzInterleaved - one 3-axis sample per user stored as x0,y0,z0,x1,y1,z1,...
+	 * @param timestamps - sample time in ms per user
+	 * @param deltaStepCounts - receives step count delta per user, can be null
+	 */
+	public void countSteps(float[] xyzInterleaved, long[] timestamps, int[] deltaStepCounts) {
+		for (int user = 0; user < userCount; user++) {
+			long sampleTimeInMilis = timestamps[user];
+			int d = user * 3;
+			updateDetector(d, xyzInterleaved[d], sampleTimeInMilis);
+			updateDetector(d + 1, xyzInterleaved[d + 1], sampleTimeInMilis);
+			updateDetector(d + 2, xyzInterleaved[d + 2], sampleTimeInMilis);
+			int deltaStepCount = updateStepCount(user);
+			if (deltaStepCounts != null) {
+				deltaStepCounts[user] = deltaStepCount;
+			}
+		}
+	}
+
+	/**
+	 * Advances single user by one sample.
+	 * @return step count delta, 0 if no steps were counted
+	 */
+	public int countSteps(int user, float x, float y, float z, long sampleTimeInMilis) {
+		int d = user * 3;
+		updateDetector(d, x, sampleTimeInMilis);
+		updateDetector(d + 1, y, sampleTimeInMilis);
+		updateDetector(d + 2, z, sampleTimeInMilis);
+		return updateStepCount(user);
+	}
+
+	public int getStepCount(int user) {
+		return stepCounter[user];
+	}
+
+	public int getAxisStepCount(int user, int axis) {
+		return stepCount[user * 3 + axis];
+	}
+
+	/**
+	 * Returns axis from which the user's step count was updated by the last sample, -1 if none
+	 */
+	public int getDetectedAxis(int user) {
+		return detectedAxis[user];
+	}
+
+	public float getThresholdValue(int user, int axis) {
+		return thresholdValue[user * 3 + axis];
+	}
+
+	public float getSmoothedAcceleration(int user, int axis) {
+		return smoothedAcceleration[user * 3 + axis];
+	}
+
+	public float getFixedPeak2PeakValue(int user, int axis) {
+		int d = user * 3 + axis;
+		return maxValue[d] - minValue[d];
+	}
+
+	/**
+	 * Same as StepCounter.countSteps() after the detectors were updated
+	 */
+	private int updateStepCount(int user) {
+		int d = user * 3;
+		int maxPeakAxis = -1;
+		float maxPeak2PeakValue = 0;
+		for (int i = 0; i < 3; i++) {
+			float peak2peakValue = maxValue[d + i] - minValue[d + i];
+			if (peak2peakValue > maxPeak2PeakValue) {
+				maxPeakAxis = i;
+				maxPeak2PeakValue = peak2peakValue;
+			}
+		}
+
+		int deltaStepCount = 0;
+		if (maxPeakAxis >= 0) {
+			if (hasValidSteps[d + maxPeakAxis]) {
+				deltaStepCount = stepCount[d + maxPeakAxis] - lastStepCount[d + maxPeakAxis];
+				stepCounter[user] += deltaStepCount;
+				lastStepCount[d] = stepCount[d];
+				lastStepCount[d + 1] = stepCount[d + 1];
+				lastStepCount[d + 2] = stepCount[d + 2];
+				detectedAxis[user] = maxPeakAxis;
+			}
+			else {
+				detectedAxis[user] = -1;
+			}
+		}
+		return deltaStepCount;
+	}
+
+	/**
+	 * Same as StepDetector.update()
+	 */
+	private void updateDetector(int d, float newSample, long sampleTimeInMilis) {
+		// digital filtering
+		float g = ALPHA * gravity[d] + (1 - ALPHA) * newSample;
+		gravity[d] = g;
+		float linear = newSample - g;
+		linearAcceleration[d] = linear;
+		float smoothed = pushMovingAverage(d, linear);
+		smoothedAcceleration[d] = smoothed;
+
+		// dynamic threshold
+		pushThresholdSample(d, smoothed);
+		float threshold = (minValue[d] + maxValue[d]) / 2;
+		thresholdValue[d] = threshold;
+
+		hasValidSteps[d] = false;
+		if (currentMaxValue[d] > StepDetector.MIN_PEAK_VALUE
+				&& lastSample[d] > threshold && smoothed < threshold) {
+			if (isCounting[d]) {
+				updateCounting(d, sampleTimeInMilis);
+			}
+			else {
+				updateSearching(d, sampleTimeInMilis);
+			}
+			currentMaxValue[d] = currentMinValue[d] = threshold;
+		}
+		lastSample[d] = smoothed;
+	}
+
+	/**
+	 * Same as moving average of LinearAccelerationFilter.filter()
+	 */
+	private float pushMovingAverage(int d, float value) {
+		int ringStart = d * MOVING_AVG_WINDOW_SIZE;
+		int index = movingAvgIndex[d];
+		float sum = movingAvgSum[d] - movingAvgValues[ringStart + index] + value;
+		movingAvgValues[ringStart + index] = value;
+		if (++index == MOVING_AVG_WINDOW_SIZE) {
+			index = 0;
+		}
+		movingAvgIndex[d] = index;
+		if (--movingAvgSamplesToResync[d] == 0) {
+			movingAvgSamplesToResync[d] = LinearAccelerationFilter.SUM_RESYNC_INTERVAL;
+			sum = 0;
+			for (int n = 0; n < MOVING_AVG_WINDOW_SIZE; n++) {
+				int i = index + n;
+				sum += movingAvgValues[ringStart + (i < MOVING_AVG_WINDOW_SIZE ? i : i - MOVING_AVG_WINDOW_SIZE)];
+			}
+		}
+		movingAvgSum[d] = sum;
+		return sum * MOVING_AVG_SCALE;
+	}
+
+	/**
+	 * Same as Threshold.pushSample()
+	 */
+	private void pushThresholdSample(int d, float newSample) {
+		if (isFirstSample[d]) {
+			isFirstSample[d] = false;
+			firstSample[d] = newSample;
+			setMinMaxValues(d, newSample);
+			return;
+		}
+		if (newSample < measuredMinValue[d]) {
+			measuredMinValue[d] = newSample;
+		}
+		else if (newSample > measuredMaxValue[d]) {
+			measuredMaxValue[d] = newSample;
+		}
+		if (newSample < currentMinValue[d]) {
+			currentMinValue[d] = newSample;
+		}
+		else if (newSample > currentMaxValue[d]) {
+			currentMaxValue[d] = newSample;
+		}
+		if (++thresholdSampleCount[d] == THRESHOLD_WINDOW_SIZE) {
+			thresholdSampleCount[d] = 0;
+			if (isFirstWindow[d]) {
+				isFirstWindow[d] = false;
+				if (firstSample[d] == measuredMinValue[d] || firstSample[d] == measuredMaxValue[d]) {
+					setMinMaxValues(d, newSample);
+					return;
+				}
+			}
+			minValue[d] = measuredMinValue[d];
+			maxValue[d] = measuredMaxValue[d];
+			measuredMinValue[d] = measuredMaxValue[d] = newSample;
+		}
+	}
+
+	private void setMinMaxValues(int d, float value) {
+		measuredMinValue[d] = measuredMaxValue[d] = value;
+		currentMinValue[d] = currentMaxValue[d] = value;
+	}
+
+	/**
+	 * Same as StepDetector.SearchingDetector.update()
+	 */
+	private void updateSearching(int d, long sampleTimeInMilis) {
+		long interval = calculateStepInterval(d, sampleTimeInMilis);
+		if (isStepIntervalInRange(interval)) {
+
+			avgStepIntervalSum[d] += interval;
+
+			if (validStepsCount[d] < 2) { // 2 intervals for variance calculation not measured yet
+				previousStepInterval[d] = interval;
+				validStepsCount[d]++;
+				hasValidSteps[d] = false;
+				return;
+			}
+
+			if (!isStepIntervalVarianceInRange(calculateStepIntervalVarianceFor(d, previousStepInterval[d]))) {
+				avgStepIntervalSum[d] = 0;
+				stepIntervalVariance[d] = 0;
+				validStepsCount[d] = 1;
+				hasValidSteps[d] = false;
+				return;
+			}
+
+			validStepsCount[d]++;
+			if (validStepsCount[d] >= VALID_STEPS_COUNT) {
+				stepCount[d] += validStepsCount[d];
+				avgStepInterval[d] = avgStepIntervalSum[d] / (validStepsCount[d] - 1);
+				hasValidSteps[d] = true;
+				isCounting[d] = true; // steps validated, switch to counting
+			}
+		}
+		else { // step interval out of range
+			avgStepIntervalSum[d] = 0;
+			validStepsCount[d] = 1;
+			previousStepInterval[d] = interval;
+			hasValidSteps[d] = false;
+		}
+	}
+
+	/**
+	 * Same as StepDetector.CountingDetector.update()
+	 */
+	private void updateCounting(int d, long sampleTimeInMilis) {
+		long tmpPreviousStepTime = previousStepTime[d];
+		long tmpPreviousStepInterval = previousStepInterval[d];
+
+		long interval = calculateStepInterval(d, sampleTimeInMilis);
+		if (isStepIntervalInRange(interval)
+				&& isStepIntervalVarianceInRange(calculateStepIntervalVarianceFor(d, avgStepInterval[d]))) {
+			stepCount[d]++;
+			hasValidSteps[d] = true;
+		}
+		else { // switch to searching
+			isCounting[d] = false;
+			previousStepTime[d] = tmpPreviousStepTime;
+			previousStepInterval[d] = tmpPreviousStepInterval;
+			validStepsCount[d] = 1;
+			avgStepIntervalSum[d] = 0;
+			avgStepInterval[d] = 0;
+			stepIntervalVariance[d] = 0;
+			hasValidSteps[d] = false;
+			updateSearching(d, sampleTimeInMilis);
+		}
+	}
+
+	private long calculateStepInterval(int d, long sampleTimeInMilis) {
+		long interval = sampleTimeInMilis - previousStepTime[d];
+		stepInterval[d] = interval;
+		previousStepTime[d] = sampleTimeInMilis;
+		return interval;
+	}
+
+	private float calculateStepIntervalVarianceFor(int d, long referenceValue) {
+		long interval = stepInterval[d];
+		float variance = interval != 0 ? referenceValue / ((float) interval) : 0;
+		stepIntervalVariance[d] = variance;
+		previousStepInterval[d] = interval;
+		return variance;
+	}
+
+	private static boolean isStepIntervalInRange(long interval) {
+		return interval >= StepDetector.MIN_STEP_INTERVAL && interval <= StepDetector.MAX_STEP_INTERVAL;
+	}
+
+	private static boolean isStepIntervalVarianceInRange(float variance) {
+		return variance >= StepDetector.MIN_STEP_INTERVAL_VARIANCE && variance <= StepDetector.MAX_STEP_INERVAL_VARIANCE;
+	}
+
+}
@@ -0,0 +1,161 @@
+package co.joyatwork.pedometer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoint file of {@link StepCounter} state, so a restarted host (e.g. service killed and restarted
+ * by the system) resumes step detection without the warm-up of filters, threshold windows and step validation.
+ *
+ * The state is written to a temporary file renamed over the checkpoint, a torn or corrupted checkpoint
+ * is detected by CRC and ignored. Saved time tells if the checkpoint is recent enough to be restored;
+ * the state is still valid after short gaps: if the gap is longer than MAX_STEP_INTERVAL the detector
+ * just drops back to searching, with filters and thresholds already settled.
+ *
+ * Checkpoint layout: int magic, short version, short reserved, long saved time, int state size,
+ * state written by {@link StepCounter#writeState(java.io.DataOutput)}, int CRC32 of the state.
+ *
+ * Not thread safe, save and restore are expected on the thread counting steps (or before it started).
+ */
+public class StepCounterCheckpoint {
+
+	public static final long DEFAULT_MAX_AGE = 60 * 1000; // ms
+
+	private static final int MAGIC = 0x5354434B; // "STCK"
+	private static final short VERSION = 1;
+	private static final int HEADER_SIZE = 20;
+	private static final int MAX_STATE_SIZE = 64 * 1024;
+
+	private final File file;
+	private final File tempFile;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(2048); // reused by save()
+	private final CRC32 crc = new CRC32();
+
+	public StepCounterCheckpoint(File file) {
+		this.file = file;
+		this.tempFile = new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * Writes state of the step counter to the checkpoint file.
+	 * @param timeInMilis - current time, monotonic clock is preferred
+	 */
+	public void save(StepCounter stepCounter, long timeInMilis) throws IOException {
+		buffer.reset();
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(0);
+		out.writeLong(timeInMilis);
+		out.writeInt(0); // state size, patched below
+		stepCounter.writeState(out);
+		out.flush();
+		byte[] bytes = buffer.toByteArray();
+		int stateSize = bytes.length - HEADER_SIZE;
+		crc.reset();
+		crc.update(bytes, HEADER_SIZE, stateSize);
+		int checksum = (int) crc.getValue();
+		out.writeInt(checksum);
+		out.flush();
+		bytes = buffer.toByteArray();
+		putInt(bytes, HEADER_SIZE - 4, stateSize);
+
+		FileOutputStream fileOut = new FileOutputStream(tempFile);
+		try {
+			fileOut.write(bytes);
+		} finally {
+			fileOut.close();
+		}
+		if (!tempFile.renameTo(file)) {
+			throw new IOException(tempFile + ": could not be renamed to " + file);
+		}
+	}
+
+	/**
+	 * Restores the step counter from the checkpoint file if it was saved at most maxAge ago.
+	 * @param timeInMilis - current time of the clock used by {@link #save(StepCounter, long)}
+	 * @return true if restored, false if there is no valid checkpoint or it is too old
+	 * @throws IOException if the checkpoint does not match configuration of the step counter
+	 * or can't be read, see {@link StepCounter#readState(java.io.DataInput)}
+	 */
+	public boolean restore(StepCounter stepCounter, long timeInMilis, long maxAge) throws IOException {
+		byte[] bytes = readFile();
+		if (bytes == null || bytes.length < HEADER_SIZE + 4) {
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+			return false;
+		}
+		in.readShort();
+		long savedTime = in.readLong();
+		int stateSize = in.readInt();
+		if (stateSize != bytes.length - HEADER_SIZE - 4) {
+			return false;
+		}
+		crc.reset();
+		crc.update(bytes, HEADER_SIZE, stateSize);
+		if ((int) crc.getValue() != getInt(bytes, HEADER_SIZE + stateSize)) {
+			return false;
+		}
+		long age = timeInMilis - savedTime;
+		if (age < 0 || age > maxAge) { // clock restarted (e.g. reboot) or too old
+			return false;
+		}
+		stepCounter.readState(in);
+		return true;
+	}
+
+	public boolean restore(StepCounter stepCounter, long timeInMilis) throws IOException {
+		return restore(stepCounter, timeInMilis, DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * Deletes the checkpoint, e.g. when counting is stopped on purpose.
+	 */
+	public void delete() {
+		file.delete();
+		tempFile.delete();
+	}
+
+	private byte[] readFile() throws IOException {
+		RandomAccessFile in;
+		try {
+			in = new RandomAccessFile(file, "r");
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			long size = in.length();
+			if (size > HEADER_SIZE + MAX_STATE_SIZE) {
+				return null;
+			}
+			byte[] bytes = new byte[(int) size];
+			in.readFully(bytes);
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	private static int getInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+				| ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+
+}
@@ -0,0 +1,176 @@
+package co.joyatwork.pedometer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opt-in hot path metrics of {@link StepCounter}, see {@link StepCounter#setMetrics(StepCounterMetrics)}.
+ * Counts processed samples, nanoseconds spent in filtering, threshold and detection stages,
+ * transitions of detecting strategies and steps rejected by interval or variance range, per axis.
+ *
+ * Written by the thread counting steps only, any thread can take a consistent snapshot without lock:
+ * the writer makes sequence odd while it updates counters of a sample (seqlock),
+ * the reader retries copying while the sequence is odd or changed.
+ * Opening odd sequence is a volatile store so no counter store is seen before it,
+ * counters and closing even sequence are ordered (lazy) stores, i.e. one fence per sample.
+ */
+public final class StepCounterMetrics {
+
+	public static final int AXIS_COUNT = 4; // X, Y, Z and MAGNITUDE_AXIS of StepCounter
+
+	// per axis counters
+	static final int PROCESSED_SAMPLES = 0;
+	static final int FILTERING_TIME = 1;
+	static final int THRESHOLD_TIME = 2;
+	static final int DETECTION_TIME = 3;
+	static final int SEARCHING_TO_COUNTING = 4;
+	static final int COUNTING_TO_SEARCHING = 5;
+	static final int INTERVAL_REJECTS = 6;
+	static final int VARIANCE_REJECTS = 7;
+	private static final int AXIS_COUNTER_COUNT = 8;
+	// step counter counters follow per axis counters
+	private static final int SAMPLES = AXIS_COUNT * AXIS_COUNTER_COUNT;
+	private static final int GATED_SAMPLES = SAMPLES + 1;
+	private static final int COUNTER_COUNT = GATED_SAMPLES + 1;
+
+	/**
+	 * Consistent copy of all counters, reusable.
+	 */
+	public static final class Snapshot {
+
+		private final long[] counters = new long[COUNTER_COUNT];
+
+		/**
+		 * Returns number of samples passed to step detectors, including motion gated samples
+		 */
+		public long getSampleCount() {
+			return counters[SAMPLES];
+		}
+
+		/**
+		 * Returns number of samples bypassing step detectors by motion gate
+		 */
+		public long getGatedSampleCount() {
+			return counters[GATED_SAMPLES];
+		}
+
+		/**
+		 * Returns number of samples which went through the detection pipeline of given axis
+		 */
+		public long getProcessedSampleCount(int axis) {
+			return counters[index(axis, PROCESSED_SAMPLES)];
+		}
+
+		/**
+		 * Returns ns spent removing gravity and smoothing samples of given axis
+		 */
+		public long getFilteringTime(int axis) {
+			return counters[index(axis, FILTERING_TIME)];
+		}
+
+		/**
+		 * Returns ns spent calculating threshold of given axis
+		 */
+		public long getThresholdTime(int axis) {
+			return counters[index(axis, THRESHOLD_TIME)];
+		}
+
+		/**
+		 * Returns ns spent detecting threshold crossings and validating steps of given axis
+		 */
+		public long getDetectionTime(int axis) {
+			return counters[index(axis, DETECTION_TIME)];
+		}
+
+		/**
+		 * Returns number of times steps were validated and detector switched to counting
+		 */
+		public long getSearchingToCountingCount(int axis) {
+			return counters[index(axis, SEARCHING_TO_COUNTING)];
+		}
+
+		/**
+		 * Returns number of times counting detector dropped back to searching
+		 */
+		public long getCountingToSearchingCount(int axis) {
+			return counters[index(axis, COUNTING_TO_SEARCHING)];
+		}
+
+		/**
+		 * Returns number of steps rejected because step interval was out of range
+		 */
+		public long getIntervalRejectCount(int axis) {
+			return counters[index(axis, INTERVAL_REJECTS)];
+		}
+
+		/**
+		 * Returns number of steps rejected because step interval variance was out of range
+		 */
+		public long getVarianceRejectCount(int axis) {
+			return counters[index(axis, VARIANCE_REJECTS)];
+		}
+
+	}
+
+	private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+	private final AtomicLong sequence = new AtomicLong(); // odd while writer updates counters
+
+	private static int index(int axis, int counter) {
+		return axis * AXIS_COUNTER_COUNT + counter;
+	}
+
+	/**
+	 * Copies all counters into the snapshot, retries while the writer is updating them.
+	 * @return the snapshot passed in
+	 */
+	public Snapshot snapshot(Snapshot snapshot) {
+		long[] copy = snapshot.counters;
+		long startSequence;
+		do {
+			startSequence = sequence.get();
+			while ((startSequence & 1) != 0) {
+				Thread.yield();
+				startSequence = sequence.get();
+			}
+			for (int i = 0; i < COUNTER_COUNT; i++) {
+				copy[i] = counters.get(i);
+			}
+		} while (sequence.get() != startSequence);
+		return snapshot;
+	}
+
+	public Snapshot snapshot() {
+		return snapshot(new Snapshot());
+	}
+
+	// writer side, called by the thread counting steps only
+
+	void beginUpdate() {
+		sequence.set(sequence.get() + 1);
+	}
+
+	void endUpdate(boolean isGated) {
+		add(SAMPLES, 1);
+		if (isGated) {
+			add(GATED_SAMPLES, 1);
+		}
+		sequence.lazySet(sequence.get() + 1);
+	}
+
+	void addStageTimes(int axis, long filteringTime, long thresholdTime, long detectionTime) {
+		int i = index(axis, 0);
+		add(i + PROCESSED_SAMPLES, 1);
+		add(i + FILTERING_TIME, filteringTime);
+		add(i + THRESHOLD_TIME, thresholdTime);
+		add(i + DETECTION_TIME, detectionTime);
+	}
+
+	void increment(int axis, int counter) {
+		add(index(axis, counter), 1);
+	}
+
+	private void add(int i, long delta) {
+		counters.lazySet(i, counters.get(i) + delta);
+	}
+
+}
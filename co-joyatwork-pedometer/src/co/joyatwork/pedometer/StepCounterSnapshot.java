@@ -0,0 +1,103 @@
+package co.joyatwork.pedometer;
+
+/**
+ * Mutable holder of all per-axis values of {@link StepCounter} at the time of the last sample.
+ * It is meant to be allocated once and refilled by {@link StepCounter#fillSnapshot(StepCounterSnapshot)}
+ * for every sample, so diagnostics can read one object without generating garbage.
+ */
+public final class StepCounterSnapshot {
+
+	long sampleTimeInMilis;
+	int stepCount;
+	int detectedAxis;
+
+	final float[] sensorValue = new float[3];
+	final float[] linearAcceleration = new float[3];
+	final float[] smoothedAcceleration = new float[3];
+	final float[] thresholdValue = new float[3];
+	final float[] currentPeak2PeakValue = new float[3];
+	final float[] fixedPeak2PeakValue = new float[3];
+	final float[] fixedMinValue = new float[3];
+	final float[] fixedMaxValue = new float[3];
+	final long[] stepInterval = new long[3];
+	final long[] avgStepInterval = new long[3];
+	final float[] stepIntervalVariance = new float[3];
+	final boolean[] validSteps = new boolean[3];
+	final int[] crossingThresholdCount = new int[3];
+	final int[] axisStepCount = new int[3];
+
+	public long getSampleTime() {
+		return sampleTimeInMilis;
+	}
+
+	public int getStepCount() {
+		return stepCount;
+	}
+
+	/**
+	 * Returns axis from which the step count was updated by the last sample, -1 if none 
+	 */
+	public int getDetectedAxis() {
+		return detectedAxis;
+	}
+
+	/**
+	 * Returns raw acceleration sample as passed to the step counter 
+	 */
+	public float getSensorValue(int axis) {
+		return sensorValue[axis];
+	}
+
+	public float getLinearAcceleration(int axis) {
+		return linearAcceleration[axis];
+	}
+
+	public float getSmoothedAcceleration(int axis) {
+		return smoothedAcceleration[axis];
+	}
+
+	public float getThresholdValue(int axis) {
+		return thresholdValue[axis];
+	}
+
+	public float getCurrentPeak2PeakValue(int axis) {
+		return currentPeak2PeakValue[axis];
+	}
+
+	public float getFixedPeak2PeakValue(int axis) {
+		return fixedPeak2PeakValue[axis];
+	}
+
+	public float getFixedMinValue(int axis) {
+		return fixedMinValue[axis];
+	}
+
+	public float getFixedMaxValue(int axis) {
+		return fixedMaxValue[axis];
+	}
+
+	public long getStepInterval(int axis) {
+		return stepInterval[axis];
+	}
+
+	public long getAvgStepInterval(int axis) {
+		return avgStepInterval[axis];
+	}
+
+	public float getStepIntervalVariance(int axis) {
+		return stepIntervalVariance[axis];
+	}
+
+	public boolean hasValidSteps(int axis) {
+		return validSteps[axis];
+	}
+
+	public int getCrossingThresholdCount(int axis) {
+		return crossingThresholdCount[axis];
+	}
+
+	public int getAxisStepCount(int axis) {
+		return axisStepCount[axis];
+	}
+
+}
@@ -0,0 +1,114 @@
+package co.joyatwork.pedometer;
+
+import java.io.IOException;
+
+/**
+ * Handles step counts of a {@link StepCounter}: keeps the total, persists it by {@link StepJournal},
+ * adds it to per minute history of {@link StepTimeSeries} and publishes it by {@link StepCountPublisher}.
+ * All are optional.
+ * It has no platform dependency, so the same pipeline runs in the Android service and headless on JVM.
+ * The step counter and its {@link SampleSource} are created by the host, the pipeline is the listener:
+ * <pre>
+ * StepCountingPipeline pipeline = new StepCountingPipeline(journal, publisher, clock);
+ * sampleSource.start(new StepCounter(pipeline));
+ * </pre>
+ * All calls except {@link #getStepCount()} are expected on the thread counting steps.
+ */
+public class StepCountingPipeline implements StepCounter.StepCounterListener {
+
+	private final StepJournal stepJournal;
+	private final StepCountPublisher stepCountPublisher;
+	private final StepTimeSeries stepTimeSeries;
+	private final Clock clock;
+	private volatile int stepCount; // read by other threads, e.g. UI
+
+	/**
+	 * @param stepJournal - persistence of step count, null if not persisted
+	 * @param stepCountPublisher - publisher of step count, null if not published
+	 * @param stepTimeSeries - step history, appended with its own wall clock, null if not kept
+	 */
+	public StepCountingPipeline(StepJournal stepJournal, StepCountPublisher stepCountPublisher,
+			StepTimeSeries stepTimeSeries, Clock clock) {
+		this.stepJournal = stepJournal;
+		this.stepCountPublisher = stepCountPublisher;
+		this.stepTimeSeries = stepTimeSeries;
+		this.clock = clock;
+		// steps of the journal not yet stored in persistent state are replayed after crash or restart
+		stepCount = stepJournal != null ? stepJournal.getTotal() : 0;
+	}
+
+	public StepCountingPipeline(StepJournal stepJournal, StepCountPublisher stepCountPublisher, Clock clock) {
+		this(stepJournal, stepCountPublisher, null, clock);
+	}
+
+	@Override
+	public void onStepsCounted(int deltaStepCount) {
+		int newStepCount = stepCount + deltaStepCount;
+		stepCount = newStepCount;
+		long now = clock.getTimeInMilis();
+		// no I/O per step, journal is coalesced into persistent state few times per minute
+		if (stepJournal != null) {
+			stepJournal.append(deltaStepCount, now);
+		}
+		if (stepTimeSeries != null) {
+			stepTimeSeries.append(deltaStepCount);
+		}
+		if (stepCountPublisher != null) {
+			stepCountPublisher.update(newStepCount, now);
+		}
+	}
+
+	/**
+	 * Returns total step count, can be called on any thread
+	 */
+	public int getStepCount() {
+		return stepCount;
+	}
+
+	/**
+	 * Returns step history, null if not kept. Its queries can be called on any thread
+	 */
+	public StepTimeSeries getStepTimeSeries() {
+		return stepTimeSeries;
+	}
+
+	/**
+	 * Stores the step count, e.g. before the host exits.
+	 */
+	public void flush() {
+		long now = clock.getTimeInMilis();
+		if (stepJournal != null) {
+			stepJournal.compact(now);
+		}
+		if (stepCountPublisher != null) {
+			stepCountPublisher.flush(now);
+		}
+	}
+
+	/**
+	 * Resets step count to 0, also the persisted one. Step history is kept.
+	 */
+	public void reset() {
+		stepCount = 0;
+		if (stepJournal != null) {
+			stepJournal.reset(clock.getTimeInMilis());
+		}
+	}
+
+	/**
+	 * Stores the step count and closes the journal and step history, the pipeline must not be used anymore.
+	 */
+	public void close() throws IOException {
+		flush();
+		try {
+			if (stepJournal != null) {
+				stepJournal.close(clock.getTimeInMilis());
+			}
+		} finally {
+			if (stepTimeSeries != null) {
+				stepTimeSeries.close();
+			}
+		}
+	}
+
+}
@@ -1,6 +1,8 @@
 package co.joyatwork.pedometer;
 
-import co.joyatwork.filters.MovingAverage;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 class StepDetector {
 	
@@ -13,7 +15,7 @@ class StepDetector {
 		 * Step count is valid if 4 intervals between 5 consecutive steps
 		 * are all in the range, and all interval variances are in range.
 		 */
-		private static final int VALID_STEPS_COUNT = 5;
+		static final int VALID_STEPS_COUNT = 5;
 		private int validStepsCount = 1; //anticipate the 1st step is ok, next steps will be validated
 		private long avgStepIntervalSum = 0; 
 
@@ -38,8 +40,9 @@ class StepDetector {
 					/*  if any one out of the step no. 3,4,5 has variance out of range,
 					 *  the step counting is restarted!
 					 */
+					countMetric(StepCounterMetrics.VARIANCE_REJECTS);
 					avgStepIntervalSum = 0;
-					stepIntervalVariance = 0;
+					resetStepIntervalVariance();
 					validStepsCount = 1; // reset and quit
 					setHasValidSteps(false);
 					return;
@@ -50,10 +53,13 @@ class StepDetector {
 					stepCount += validStepsCount;
 					avgStepInterval = avgStepIntervalSum / (validStepsCount - 1);
 					setHasValidSteps(true);
+					hasValidatedSteps = true;
+					countMetric(StepCounterMetrics.SEARCHING_TO_COUNTING);
 					detectingStrategy = countingDetector; // steps validated, switch to counting
 				}
 			}
 			else { // step interval out of range
+				countMetric(StepCounterMetrics.INTERVAL_REJECTS);
 				avgStepIntervalSum = 0;
 				validStepsCount = 1; //reset to 1 - the 1st step is added
 				previousStepInterval = stepInterval;
@@ -68,7 +74,7 @@ class StepDetector {
 			validStepsCount = 1;
 			avgStepIntervalSum = 0;
 			avgStepInterval = 0;
-			stepIntervalVariance = 0;
+			resetStepIntervalVariance();
 			setHasValidSteps(false);
 		}
 	
@@ -79,6 +85,13 @@ class StepDetector {
 		@Override
 		public void update(float sampleValue, long sampleTimeInMilis) {
 			
+			if (isResumed) {
+				isResumed = false;
+				if (bridgeResumeGap(sampleTimeInMilis)) {
+					return;
+				}
+			}
+			
 			long tmpPreviousStepTime = previousStepTime;
 			long tmpPreviousStepInterval = previousStepInterval;
 			
@@ -93,12 +106,16 @@ class StepDetector {
 
 				}
 				else { // step interval variance out of range - switch to searching
+					countMetric(StepCounterMetrics.VARIANCE_REJECTS);
+					countMetric(StepCounterMetrics.COUNTING_TO_SEARCHING);
 					detectingStrategy = searchingDetector;
 					searchingDetector.reset(tmpPreviousStepTime, tmpPreviousStepInterval);
 					searchingDetector.update(sampleValue, sampleTimeInMilis);
 				}
 			}
 			else { // step interval out of range - switch to searching
+				// the step is rejected again and counted by searching detector
+				countMetric(StepCounterMetrics.COUNTING_TO_SEARCHING);
 				detectingStrategy = searchingDetector;
 				searchingDetector.reset(tmpPreviousStepTime, tmpPreviousStepInterval);
 				searchingDetector.update(sampleValue, sampleTimeInMilis);
@@ -106,16 +123,49 @@ class StepDetector {
 				
 		}
 
+		/**
+		 * Credits steps missed while the host was restarting, if the first step interval after restored state
+		 * spans a whole number of average step intervals.
+		 * @return true if steps were credited
+		 */
+		private boolean bridgeResumeGap(long sampleTimeInMilis) {
+			long interval = sampleTimeInMilis - previousStepTime;
+			if (avgStepInterval == 0 || interval > MAX_RESUME_INTERVAL) {
+				return false;
+			}
+			int bridgedStepCount = Math.round((float) interval / avgStepInterval); // including this step
+			if (bridgedStepCount < 2) {
+				return false; // normal step
+			}
+			calculateStepIntervalVariance(avgStepInterval * bridgedStepCount, interval);
+			if (!isStepIntervalVarianceInRange()) {
+				return false;
+			}
+			stepInterval = interval / bridgedStepCount;
+			previousStepInterval = stepInterval;
+			previousStepTime = sampleTimeInMilis;
+			stepCount += bridgedStepCount;
+			setHasValidSteps(true);
+			hasValidatedSteps = true;
+			return true;
+		}
+
 	}
 	
-    private static final float ALPHA = 0.8f; // constant of low pass filter for eliminating gravity from acceleration 
-
-	private static final int MIN_STEP_INTERVAL = 200;  //ms, people can walk/run as fast as 5 steps/sec
-	private static final int MAX_STEP_INTERVAL = 2000; //ms, people can walk/run as slow as 1 step/2sec
-	private static final float MIN_STEP_INTERVAL_VARIANCE = 0.7F; //-30%
-	private static final float MAX_STEP_INERVAL_VARIANCE = 1.3F;//+30%
-    private static final int THRESHOLD_WINDOW_SIZE = 50;
-	private Threshold threshold;
+    static final float ALPHA = 0.8f; // constant of low pass filter for eliminating gravity from acceleration 
+
+	static final int MIN_STEP_INTERVAL = 200;  //ms, people can walk/run as fast as 5 steps/sec
+	static final int MAX_STEP_INTERVAL = 2000; //ms, people can walk/run as slow as 1 step/2sec
+	static final float MIN_STEP_INTERVAL_VARIANCE = 0.7F; //-30%
+	static final float MAX_STEP_INERVAL_VARIANCE = 1.3F;//+30%
+	static final float MIN_PEAK_VALUE = 0.3F; // peaks below are ignored
+	static final int MAX_RESUME_INTERVAL = 5000; //ms, longer first step interval after restored state is not bridged
+    static final int THRESHOLD_WINDOW_SIZE = 50;
+	// windows and gravity filter in time, they give the sizes above at 50 Hz (SENSOR_DELAY_GAME)
+	static final int THRESHOLD_WINDOW_TIME = 1000; //ms
+	static final int MOVING_AVG_WINDOW_TIME = 200; //ms
+	static final double GRAVITY_TIME_CONSTANT = -20 / Math.log(ALPHA); //ms
+	private DynamicThreshold threshold;
 	private StepDetectingStrategy detectingStrategy;
 	private SearchingDetector searchingDetector;
 	private CountingDetector countingDetector;
@@ -126,20 +176,25 @@ class StepDetector {
 	private float thresholdValue;
 	private long previousStepTime;
 	private boolean hasValidSteps;
+	private boolean hasValidatedSteps; // steps were credited by searching detector at once
+	private boolean isResumed; // counting state was restored, the next step may follow a restart gap
 	private long stepInterval;
 	private long avgStepInterval;
 	private long previousStepInterval;
 	private float stepIntervalVariance;
-	private float gravity;
-	private float linearAcceleration;
-
-    private static final int MOVING_AVG_WINDOW_SIZE = 10;
-	private MovingAverage movingAvgCalculator = new MovingAverage(MOVING_AVG_WINDOW_SIZE);
 
-	private float smoothedAcceleration;
+    static final int MOVING_AVG_WINDOW_SIZE = 10;
+	private final LinearAccelerationFilter filter;
+	private StepCounterMetrics metrics; // null if disabled
+	private int metricsAxis;
 	
-	public StepDetector(Threshold t) {
+	/**
+	 * @param alpha - constant of low pass filter for eliminating gravity, see {@link #alpha(int)}
+	 * @param movingAvgWindowSize - in samples, see {@link #windowSize(int, int)}
+	 */
+	public StepDetector(DynamicThreshold t, float alpha, int movingAvgWindowSize) {
 		threshold = t;
+		filter = new LinearAccelerationFilter(alpha, movingAvgWindowSize);
 		lastSample = 0;
 		thresholdValue = 0;
 		crossingThresholdCount = 0;
@@ -150,24 +205,44 @@ class StepDetector {
 		previousStepInterval = 0;
 		stepIntervalVariance = 0;
 		hasValidSteps = false;
-		gravity = 0;
-		linearAcceleration = 0;
-		smoothedAcceleration = 0; //we need this field for testing
+		hasValidatedSteps = false;
 		
 		searchingDetector = new SearchingDetector();
 		countingDetector = new CountingDetector();
 		detectingStrategy = searchingDetector;
 	}
 
+	public StepDetector(DynamicThreshold t) {
+		this(t, ALPHA, MOVING_AVG_WINDOW_SIZE);
+	}
+
 	public StepDetector() {
 		this(new Threshold(THRESHOLD_WINDOW_SIZE));
 	}
 
+	/**
+	 * Returns number of samples covering given time at given sample rate, at least 1
+	 */
+	static int windowSize(int windowTimeInMilis, int sampleRateInHz) {
+		return Math.max(1, Math.round(windowTimeInMilis * sampleRateInHz / 1000F));
+	}
+
+	/**
+	 * Returns constant of low pass filter for eliminating gravity with GRAVITY_TIME_CONSTANT at given sample rate
+	 */
+	static float alpha(int sampleRateInHz) {
+		return (float) Math.exp(-1000.0 / (sampleRateInHz * GRAVITY_TIME_CONSTANT));
+	}
+
 	public void update(float newSample, long sampleTimeInMilis) {
 		
+		if (metrics != null) {
+			updateMeasured(newSample, sampleTimeInMilis);
+			return;
+		}
+		
 		// digital filtering
-		calculateLinearAcceleration(newSample);
-		smoothLinearAcceleration();
+		float smoothedAcceleration = filter.filter(newSample);
 		
 		// dynamic threshold
 		//TODO smoothedAcceleration - choose better names???
@@ -175,44 +250,169 @@ class StepDetector {
 	
 		setHasValidSteps(false); // will be set by detecting strategy if steps validated
 		if (hasValidPeak() && isCrossingBelowThreshold(smoothedAcceleration)) {
-			crossingThresholdCount++; //TODO this counter is for testing
-			//detectingStrategy sets back the hasValidSteps flag!
-			detectingStrategy.update(smoothedAcceleration, sampleTimeInMilis);
+			detectStep(smoothedAcceleration, sampleTimeInMilis);
 			restartPeakMeasurement(); //TODO better to put this into the update()
 		}
 		lastSample = smoothedAcceleration;
 	}
 
-	private void restartPeakMeasurement() {
-		threshold.setCurrentMinMax(thresholdValue);
+	/**
+	 * Same as update() with time spent in stages counted by metrics.
+	 */
+	private void updateMeasured(float newSample, long sampleTimeInMilis) {
+		
+		long startTime = System.nanoTime();
+		float smoothedAcceleration = filter.filter(newSample);
+		long filteredTime = System.nanoTime();
+		calculateThreshold(smoothedAcceleration);
+		long thresholdTime = System.nanoTime();
+		setHasValidSteps(false);
+		if (hasValidPeak() && isCrossingBelowThreshold(smoothedAcceleration)) {
+			detectStep(smoothedAcceleration, sampleTimeInMilis);
+			restartPeakMeasurement();
+		}
+		lastSample = smoothedAcceleration;
+		addStageTimes(startTime, filteredTime, thresholdTime, System.nanoTime());
 	}
 
-	private boolean isCrossingBelowThreshold(float newSample) {
-		return (lastSample > thresholdValue) && (newSample < thresholdValue);
+	/**
+	 * Enables metrics of this detector, null disables them.
+	 * @param axis - axis the detector counts metrics for
+	 */
+	void setMetrics(StepCounterMetrics metrics, int axis) {
+		this.metrics = metrics;
+		metricsAxis = axis;
 	}
 
-	private boolean hasValidPeak() {
-		//TODO how to ignore low values?
-		return threshold.getCurrentMaxValue() > 0.3F;
+	StepCounterMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
-	 * Calculates gravity-less values from acceleration samples by simple inverted Low Pass.
-	 * @param acceleration - sensor samples 
+	 * Adds stage times given by nanoTime() at start and end of the stages to metrics.
 	 */
-	private void calculateLinearAcceleration(float acceleration) {
-		//Low Pass
-		gravity = ALPHA * gravity + (1 - ALPHA) * acceleration;
-		//High Pass = Inverted Low Pass
-		linearAcceleration = acceleration - gravity;
+	void addStageTimes(long startTime, long filteredTime, long thresholdTime, long detectedTime) {
+		metrics.addStageTimes(metricsAxis, 
+				filteredTime - startTime, thresholdTime - filteredTime, detectedTime - thresholdTime);
+	}
+
+	private void countMetric(int counter) {
+		if (metrics != null) {
+			metrics.increment(metricsAxis, counter);
+		}
 	}
 
 	/**
-	 * Smoothes values by Moving Average Filter
+	 * Validates step interval of the sample crossing threshold below.
+	 * Package visible for pipelines with own filtering and threshold, see {@link FixedPointStepDetector}
 	 */
-	private void smoothLinearAcceleration() {
-		movingAvgCalculator.pushValue(linearAcceleration);
-		smoothedAcceleration = movingAvgCalculator.getValue();
+	void detectStep(float sampleValue, long sampleTimeInMilis) {
+		crossingThresholdCount++; //TODO this counter is for testing
+		//detectingStrategy sets back the hasValidSteps flag!
+		detectingStrategy.update(sampleValue, sampleTimeInMilis);
+	}
+
+	/**
+	 * Updates only gravity estimate, the rest of pipeline is skipped.
+	 * @return linear acceleration of the sample
+	 */
+	float updateGravity(float newSample) {
+		return filter.updateGravity(newSample);
+	}
+
+	/**
+	 * Restarts detector which was updating gravity only (see {@link #updateGravity(float)}) for a while:
+	 * moving average and threshold window start from the current linear acceleration,
+	 * the threshold is measured again and steps are searched again.
+	 */
+	void restart() {
+		restartPipeline();
+		detectingStrategy = searchingDetector;
+		searchingDetector.reset(previousStepTime, previousStepInterval);
+	}
+
+	/**
+	 * Restarts filtering and threshold, pipelines with own filtering and threshold override it.
+	 */
+	void restartPipeline() {
+		lastSample = filter.restartMovingAverage();
+		threshold.restart(lastSample);
+		thresholdValue = threshold.getThresholdValue();
+	}
+
+	/**
+	 * Writes detector state for checkpoint, see {@link StepCounter#writeState(DataOutput)}.
+	 */
+	void writeState(DataOutput out) throws IOException {
+		out.writeBoolean(isCounting());
+		out.writeInt(searchingDetector.validStepsCount);
+		out.writeLong(searchingDetector.avgStepIntervalSum);
+		out.writeInt(crossingThresholdCount);
+		out.writeInt(stepCount);
+		out.writeLong(previousStepTime);
+		out.writeBoolean(hasValidSteps);
+		out.writeBoolean(hasValidatedSteps);
+		out.writeLong(stepInterval);
+		out.writeLong(avgStepInterval);
+		out.writeLong(previousStepInterval);
+		out.writeFloat(stepIntervalVariance);
+		writePipelineState(out);
+	}
+
+	void readState(DataInput in) throws IOException {
+		detectingStrategy = in.readBoolean() ? countingDetector : searchingDetector;
+		searchingDetector.validStepsCount = StepCounter.checkIndex(in.readInt(), SearchingDetector.VALID_STEPS_COUNT + 1);
+		searchingDetector.avgStepIntervalSum = in.readLong();
+		crossingThresholdCount = in.readInt();
+		stepCount = in.readInt();
+		previousStepTime = in.readLong();
+		hasValidSteps = in.readBoolean();
+		hasValidatedSteps = in.readBoolean();
+		stepInterval = in.readLong();
+		avgStepInterval = in.readLong();
+		previousStepInterval = in.readLong();
+		stepIntervalVariance = in.readFloat();
+		readPipelineState(in);
+		isResumed = false;
+	}
+
+	/**
+	 * Called with the first sample after restored state, if there was a gap long enough to hide a step
+	 * the next step interval of counting detector may be bridged.
+	 * @param gapInMilis - time from the last sample before the state was saved
+	 */
+	void resume(long gapInMilis) {
+		isResumed = isCounting() && gapInMilis >= MIN_STEP_INTERVAL;
+	}
+
+	/**
+	 * Writes state of filtering and threshold, pipelines with own filtering and threshold override it.
+	 */
+	void writePipelineState(DataOutput out) throws IOException {
+		out.writeFloat(lastSample);
+		out.writeFloat(thresholdValue);
+		filter.writeState(out);
+		threshold.writeState(out);
+	}
+
+	void readPipelineState(DataInput in) throws IOException {
+		lastSample = in.readFloat();
+		thresholdValue = in.readFloat();
+		filter.readState(in);
+		threshold.readState(in);
+	}
+
+	private void restartPeakMeasurement() {
+		threshold.setCurrentMinMax(thresholdValue);
+	}
+
+	private boolean isCrossingBelowThreshold(float newSample) {
+		return (lastSample > thresholdValue) && (newSample < thresholdValue);
+	}
+
+	private boolean hasValidPeak() {
+		//TODO how to ignore low values?
+		return threshold.getCurrentMaxValue() > MIN_PEAK_VALUE;
 	}
 
     /**
@@ -224,14 +424,24 @@ class StepDetector {
 	}
 
 	private void calculateStepIntervalVarianceFor(long referenceValue) {
-		if (stepInterval != 0) {
+		calculateStepIntervalVariance(referenceValue, stepInterval);
+		previousStepInterval = stepInterval;
+	}
+
+	// variance of step interval is package visible for FixedPointStepDetector
+	
+	void calculateStepIntervalVariance(long referenceValue, long interval) {
+		if (interval != 0) {
 			//TODO performance optimization: use multiplication instead of division???
-			stepIntervalVariance = referenceValue / ((float)stepInterval);
+			stepIntervalVariance = referenceValue / ((float)interval);
 		}
 		else {
 			stepIntervalVariance = 0;
 		}
-		previousStepInterval = stepInterval;
+	}
+
+	void resetStepIntervalVariance() {
+		stepIntervalVariance = 0;
 	}
 
 	private void calculateStepInterval(long sampleTimeInMilis) {
@@ -240,7 +450,7 @@ class StepDetector {
 	}
 
 
-	private boolean isStepIntervalVarianceInRange() {
+	boolean isStepIntervalVarianceInRange() {
 		return stepIntervalVariance >= MIN_STEP_INTERVAL_VARIANCE && stepIntervalVariance <= MAX_STEP_INERVAL_VARIANCE;
 	}
 
@@ -248,14 +458,37 @@ class StepDetector {
 		return stepInterval >= MIN_STEP_INTERVAL && stepInterval <= MAX_STEP_INTERVAL;
 	}
 
-	private void setHasValidSteps(boolean value) {
+	void setHasValidSteps(boolean value) {
 		hasValidSteps = value;
+		hasValidatedSteps = false;
 	}
 
 	public boolean hasValidSteps() {
 		return hasValidSteps;
 	}
 
+	/**
+	 * Returns true if the last sample added several steps at once, i.e. validated VALID_STEPS_COUNT steps 
+	 * or bridged gap after restored state
+	 */
+	boolean hasValidatedSteps() {
+		return hasValidatedSteps;
+	}
+
+	/**
+	 * Returns true if steps were validated and detector is counting every next step
+	 */
+	boolean isCounting() {
+		return detectingStrategy == countingDetector;
+	}
+
+	/**
+	 * Returns true if the last sample completed threshold measuring window
+	 */
+	boolean isThresholdWindowCompleted() {
+		return threshold.isWindowCompleted();
+	}
+
 	public int getStepCount() {
 		return stepCount;
 	}
@@ -297,10 +530,10 @@ class StepDetector {
 	}
 
 	float getLinearAcceleration() {
-		return linearAcceleration;
+		return filter.getLinearAcceleration();
 	}
 
 	float getSmoothedAcceleration() {
-		return smoothedAcceleration;
+		return filter.getSmoothedAcceleration();
 	}
 }
@@ -0,0 +1,186 @@
+package co.joyatwork.pedometer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Write-behind persistence of step count.
+ *
+ * Step deltas are appended to a small memory-mapped journal file, an append is a couple of memory writes,
+ * there is no write call and no rewrite of the durable total per step. The mapped pages belong to the OS,
+ * so appended deltas survive crash or restart of the process.
+ * The journal is coalesced (compacted) into the durable total kept by {@link StepTotalStore}
+ * when the compaction interval elapsed or the journal is full, i.e. a few writes per minute at most.
+ *
+ * Every compaction increments generation stored together with the total, the journal holds generation
+ * of the total its deltas belong to. Journal of an older generation was already folded into the total
+ * (process died between storing the total and clearing the journal) and is discarded on open.
+ *
+ * Journal layout: int magic, short version, short reserved, long generation, int record count,
+ * int reserved, followed by int step deltas.
+ *
+ * Not thread safe, all calls are expected on the thread counting steps.
+ */
+public class StepJournal {
+
+	/**
+	 * Durable storage of step total, e.g. SharedPreferences.
+	 */
+	public interface StepTotalStore {
+		int getTotal();
+		long getGeneration();
+		/**
+		 * Stores total and generation atomically, they must be durable when the method returns.
+		 */
+		void store(int total, long generation);
+	}
+
+	public static final int DEFAULT_CAPACITY = 1024; // records, the journal takes one 4 KB page
+	public static final long DEFAULT_COMPACTION_INTERVAL = 60 * 1000; // ms
+
+	private static final int MAGIC = 0x53544A4E; // "STJN"
+	private static final short VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int VERSION_OFFSET = 4;
+	private static final int GENERATION_OFFSET = 8;
+	private static final int RECORD_COUNT_OFFSET = 16;
+	private static final int RECORD_SIZE = 4;
+
+	private final StepTotalStore store;
+	private final int capacity;
+	private final long compactionInterval;
+	private final RandomAccessFile journalFile;
+	private final MappedByteBuffer journal;
+
+	private long generation;
+	private int recordCount;
+	private int total;
+	private long lastCompactionTime;
+
+	public StepJournal(File file, StepTotalStore store) throws IOException {
+		this(file, store, DEFAULT_CAPACITY, DEFAULT_COMPACTION_INTERVAL);
+	}
+
+	/**
+	 * Opens the journal and replays deltas not yet coalesced into the durable total.
+	 * @param capacity - number of deltas the journal holds, it is compacted when full
+	 * @param compactionInterval - time in ms the deltas are kept in the journal at most (while appending)
+	 */
+	public StepJournal(File file, StepTotalStore store, int capacity, long compactionInterval) throws IOException {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity too small: " + capacity);
+		}
+		this.store = store;
+		this.capacity = capacity;
+		this.compactionInterval = compactionInterval;
+		journalFile = new RandomAccessFile(file, "rw");
+		try {
+			long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+			long oldSize = journalFile.length();
+			if (oldSize < size) {
+				journalFile.setLength(size);
+			}
+			journal = journalFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, oldSize));
+		} catch (IOException e) {
+			journalFile.close();
+			throw e;
+		}
+		journal.order(ByteOrder.LITTLE_ENDIAN);
+		replay();
+	}
+
+	/**
+	 * Appends step delta, the journal is compacted if the policy says so.
+	 * @param timeInMilis - current time, monotonic clock is preferred
+	 */
+	public void append(int deltaStepCount, long timeInMilis) {
+		if (recordCount == capacity) {
+			compact(timeInMilis);
+		}
+		journal.putInt(HEADER_SIZE + recordCount * RECORD_SIZE, deltaStepCount);
+		recordCount++;
+		journal.putInt(RECORD_COUNT_OFFSET, recordCount); // count after delta, torn append is never replayed
+		total += deltaStepCount;
+		if (recordCount == capacity || timeInMilis - lastCompactionTime >= compactionInterval) {
+			compact(timeInMilis);
+		}
+	}
+
+	/**
+	 * Coalesces journal into the durable total and clears it.
+	 */
+	public void compact(long timeInMilis) {
+		lastCompactionTime = timeInMilis;
+		if (recordCount == 0) {
+			return;
+		}
+		storeTotal(total);
+	}
+
+	/**
+	 * Sets durable total to 0 and clears the journal.
+	 */
+	public void reset(long timeInMilis) {
+		lastCompactionTime = timeInMilis;
+		total = 0;
+		storeTotal(0);
+	}
+
+	/**
+	 * Compacts the journal and closes the file.
+	 */
+	public void close(long timeInMilis) throws IOException {
+		compact(timeInMilis);
+		journalFile.close(); // mapping stays valid till it is garbage collected
+	}
+
+	/**
+	 * Returns durable total plus deltas in the journal
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns number of deltas waiting in the journal
+	 */
+	public int getPendingCount() {
+		return recordCount;
+	}
+
+	private void replay() {
+		total = store.getTotal();
+		generation = store.getGeneration();
+		recordCount = 0;
+		if (journal.getInt(0) == MAGIC && journal.getShort(VERSION_OFFSET) == VERSION
+				&& journal.getLong(GENERATION_OFFSET) == generation) {
+			int count = Math.min(journal.getInt(RECORD_COUNT_OFFSET), capacity);
+			for (int i = 0; i < count; i++) {
+				total += journal.getInt(HEADER_SIZE + i * RECORD_SIZE);
+			}
+			recordCount = count;
+		}
+		else { // new journal or already coalesced into the total
+			clearJournal();
+		}
+	}
+
+	private void storeTotal(int newTotal) {
+		generation++;
+		store.store(newTotal, generation);
+		clearJournal();
+	}
+
+	private void clearJournal() {
+		journal.putInt(RECORD_COUNT_OFFSET, 0);
+		journal.putInt(0, MAGIC);
+		journal.putShort(VERSION_OFFSET, VERSION);
+		journal.putLong(GENERATION_OFFSET, generation);
+		recordCount = 0;
+	}
+
+}
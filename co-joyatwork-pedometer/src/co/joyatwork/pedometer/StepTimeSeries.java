@@ -0,0 +1,280 @@
+package co.joyatwork.pedometer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.TimeZone;
+
+/**
+ * Step counts per minute of wall time kept in fixed-size ring of int buckets in a memory-mapped file,
+ * DEFAULT_CAPACITY covers 31 days.
+ *
+ * Append adds steps to the bucket of the current (open) minute, it is one memory write.
+ * Closed minutes are summed by Fenwick tree (binary indexed tree) over ring positions held in memory,
+ * the open bucket is folded into it once per minute, so appends are amortized O(1)
+ * and any range of minutes (this hour, today, last 7 days, chart bars) is summed in O(log n)
+ * without scanning the buckets. The tree is rebuilt from buckets in O(n) when the file is opened.
+ *
+ * Minutes older than capacity are recycled. Wall time going back (clock adjusted) adds steps
+ * to the open minute, jump forward by more than capacity clears the series.
+ *
+ * File layout: int magic, short version, short reserved, int capacity, int reserved,
+ * long open minute (minutes since epoch), long reserved, followed by int buckets.
+ *
+ * Appends and queries are synchronized, queries can be called on any thread, e.g. UI.
+ */
+public class StepTimeSeries {
+
+	public static final int DEFAULT_CAPACITY = 31 * 24 * 60; // minutes
+	public static final long MINUTE = 60 * 1000; // ms
+	public static final long HOUR = 60 * MINUTE;
+	public static final long DAY = 24 * HOUR;
+
+	private static final int MAGIC = 0x53545453; // "STTS"
+	private static final short VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int VERSION_OFFSET = 4;
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int OPEN_MINUTE_OFFSET = 16;
+	private static final int BUCKET_SIZE = 4;
+
+	private final Clock wallClock;
+	private final int capacity;
+	private final RandomAccessFile seriesFile;
+	private final MappedByteBuffer buckets;
+	private final int[] tree; // Fenwick tree of closed minutes, 1-based over ring positions
+
+	private long openMinute;
+	private int openBucketOffset;
+
+	public StepTimeSeries(File file, Clock wallClock) throws IOException {
+		this(file, wallClock, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Opens the series, a file of other capacity or format is cleared.
+	 * @param wallClock - time in ms since epoch, see {@link WallClock}
+	 * @param capacity - number of minutes kept
+	 */
+	public StepTimeSeries(File file, Clock wallClock, int capacity) throws IOException {
+		if (capacity < 2) {
+			throw new IllegalArgumentException("Capacity too small: " + capacity);
+		}
+		this.wallClock = wallClock;
+		this.capacity = capacity;
+		tree = new int[capacity + 1];
+		seriesFile = new RandomAccessFile(file, "rw");
+		try {
+			long size = HEADER_SIZE + (long) capacity * BUCKET_SIZE;
+			if (seriesFile.length() != size) {
+				seriesFile.setLength(size);
+			}
+			buckets = seriesFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} catch (IOException e) {
+			seriesFile.close();
+			throw e;
+		}
+		buckets.order(ByteOrder.LITTLE_ENDIAN);
+		if (buckets.getInt(0) == MAGIC && buckets.getShort(VERSION_OFFSET) == VERSION
+				&& buckets.getInt(CAPACITY_OFFSET) == capacity) {
+			setOpenMinute(buckets.getLong(OPEN_MINUTE_OFFSET));
+			buildTree();
+		}
+		else {
+			clear(minuteOf(wallClock.getTimeInMilis()));
+		}
+	}
+
+	/**
+	 * Adds steps to the current minute of the wall clock.
+	 */
+	public void append(int deltaStepCount) {
+		append(deltaStepCount, wallClock.getTimeInMilis());
+	}
+
+	public synchronized void append(int deltaStepCount, long timeInMilis) {
+		long minute = minuteOf(timeInMilis);
+		if (minute > openMinute) {
+			advance(minute);
+		}
+		buckets.putInt(openBucketOffset, buckets.getInt(openBucketOffset) + deltaStepCount);
+	}
+
+	/**
+	 * Returns steps of minutes overlapping [fromTimeInMilis, toTimeInMilis)
+	 */
+	public synchronized long getStepCount(long fromTimeInMilis, long toTimeInMilis) {
+		if (toTimeInMilis <= fromTimeInMilis) {
+			return 0;
+		}
+		long fromMinute = Math.max(minuteOf(fromTimeInMilis), openMinute - capacity + 1);
+		long toMinute = Math.min(minuteOf(toTimeInMilis - 1), openMinute);
+		if (fromMinute > toMinute) {
+			return 0;
+		}
+		long stepCount = 0;
+		if (toMinute == openMinute) {
+			stepCount += buckets.getInt(openBucketOffset);
+			if (fromMinute == toMinute) {
+				return stepCount;
+			}
+			toMinute--;
+		}
+		int fromPosition = position(fromMinute);
+		int toPosition = position(toMinute);
+		if (fromPosition <= toPosition) {
+			stepCount += prefixSum(toPosition) - prefixSum(fromPosition - 1);
+		}
+		else { // range wraps around the ring
+			stepCount += prefixSum(capacity - 1) - prefixSum(fromPosition - 1) + prefixSum(toPosition);
+		}
+		return stepCount;
+	}
+
+	/**
+	 * Returns steps since the start of the current hour in default time zone
+	 */
+	public long getHourStepCount() {
+		long now = wallClock.getTimeInMilis();
+		return getStepCount(startOf(now, HOUR), now + 1);
+	}
+
+	/**
+	 * Returns steps since midnight in default time zone
+	 */
+	public long getDayStepCount() {
+		return getLastDaysStepCount(1);
+	}
+
+	/**
+	 * Returns steps of given number of days including today, since midnight in default time zone
+	 */
+	public long getLastDaysStepCount(int dayCount) {
+		long now = wallClock.getTimeInMilis();
+		return getStepCount(startOf(now, DAY) - (dayCount - 1) * DAY, now + 1);
+	}
+
+	/**
+	 * Fills step counts of consecutive periods, e.g. bars of a chart, every period is summed in O(log n).
+	 * @param fromTimeInMilis - start of the first period
+	 * @param periodInMilis - length of period, multiple of MINUTE
+	 * @return the counts passed in
+	 */
+	public long[] getStepCounts(long fromTimeInMilis, long periodInMilis, long[] counts) {
+		for (int i = 0; i < counts.length; i++) {
+			long periodStart = fromTimeInMilis + i * periodInMilis;
+			counts[i] = getStepCount(periodStart, periodStart + periodInMilis);
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns start of the hour or day containing given time in default time zone
+	 * @param periodInMilis - HOUR or DAY
+	 */
+	public static long startOf(long timeInMilis, long periodInMilis) {
+		long offset = TimeZone.getDefault().getOffset(timeInMilis);
+		long localTime = timeInMilis + offset;
+		return localTime - floorMod(localTime, periodInMilis) - offset;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized void close() throws IOException {
+		seriesFile.close(); // mapping stays valid till it is garbage collected
+	}
+
+	/**
+	 * Folds the open minute into the tree and recycles buckets up to the new open minute.
+	 */
+	private void advance(long minute) {
+		if (minute - openMinute >= capacity) {
+			clear(minute);
+			return;
+		}
+		int openPosition = position(openMinute);
+		addToTree(openPosition, buckets.getInt(openBucketOffset));
+		for (long m = openMinute + 1; m <= minute; m++) {
+			int position = position(m);
+			int oldStepCount = buckets.getInt(bucketOffset(position)); // minute m - capacity
+			if (oldStepCount != 0) {
+				addToTree(position, -oldStepCount);
+				buckets.putInt(bucketOffset(position), 0);
+			}
+		}
+		setOpenMinute(minute);
+	}
+
+	private void clear(long minute) {
+		for (int i = 0; i < capacity; i++) {
+			buckets.putInt(bucketOffset(i), 0);
+			tree[i + 1] = 0;
+		}
+		buckets.putInt(0, MAGIC);
+		buckets.putShort(VERSION_OFFSET, VERSION);
+		buckets.putInt(CAPACITY_OFFSET, capacity);
+		setOpenMinute(minute);
+	}
+
+	private void setOpenMinute(long minute) {
+		openMinute = minute;
+		openBucketOffset = bucketOffset(position(minute));
+		buckets.putLong(OPEN_MINUTE_OFFSET, minute);
+	}
+
+	/**
+	 * Builds tree of closed buckets in O(n), every node passes its sum to the parent.
+	 */
+	private void buildTree() {
+		int openPosition = position(openMinute);
+		for (int i = 0; i < capacity; i++) {
+			tree[i + 1] = i != openPosition ? buckets.getInt(bucketOffset(i)) : 0;
+		}
+		for (int i = 1; i <= capacity; i++) {
+			int parent = i + (i & -i);
+			if (parent <= capacity) {
+				tree[parent] += tree[i];
+			}
+		}
+	}
+
+	private void addToTree(int position, int value) {
+		for (int i = position + 1; i <= capacity; i += i & -i) {
+			tree[i] += value;
+		}
+	}
+
+	/**
+	 * Returns sum of closed buckets at ring positions 0..position, 0 for position -1
+	 */
+	private long prefixSum(int position) {
+		long sum = 0;
+		for (int i = position + 1; i > 0; i -= i & -i) {
+			sum += tree[i];
+		}
+		return sum;
+	}
+
+	private int position(long minute) {
+		return (int) floorMod(minute, capacity);
+	}
+
+	private static int bucketOffset(int position) {
+		return HEADER_SIZE + position * BUCKET_SIZE;
+	}
+
+	private static long minuteOf(long timeInMilis) {
+		return (timeInMilis - floorMod(timeInMilis, MINUTE)) / MINUTE;
+	}
+
+	private static long floorMod(long value, long divisor) {
+		long mod = value % divisor;
+		return mod < 0 ? mod + divisor : mod;
+	}
+
+}
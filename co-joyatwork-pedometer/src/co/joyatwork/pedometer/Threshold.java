@@ -1,8 +1,12 @@
 package co.joyatwork.pedometer;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 //TODO Threshold is probably not good name since it evaluates many characteristics of periodic curve!
 //TODO change to package private visibility!
-public class Threshold {
+public class Threshold extends DynamicThreshold {
 	
 	private final int windowSize;
 
@@ -23,6 +27,7 @@ public class Threshold {
 	private boolean isFirstSample; // controls initialization of the threshold measurement
 	private float firstSample;     // used to ignore min/max values if it was the value of 1st sample
 	private boolean isFirstWindow; // controls re-initialization after the 1st window 
+	private boolean isWindowCompleted; // true if the last sample completed measuring window
 	
 
 	public Threshold(int numberOfSamples) {
@@ -36,11 +41,13 @@ public class Threshold {
 		this.maxValue = 0;
 		this.isFirstSample = true;
 		this.isFirstWindow = true;
+		this.isWindowCompleted = false;
 	}
 	
 	//TODO refactor this mess!
 	public void pushSample(float newSample) {
 		
+		isWindowCompleted = false;
 		if (isFirstSample) {
 			isFirstSample = false;
 			initializeMeasurement(newSample);
@@ -61,6 +68,7 @@ public class Threshold {
 		sampleCount++;
 		if (sampleCount == windowSize) {
 			sampleCount = 0;
+			isWindowCompleted = true;
 			//TODO how to decouple it logically from the DC filter algorithm?  
 			// this is necessary due to use of high pass filter to eliminate DC offset from samples
 			// the 1st window yields incorrect min/max values because the output of DC filter is not steady 
@@ -92,6 +100,51 @@ public class Threshold {
 		currentMinValue = measuredMinValue;
 	}
 
+	/**
+	 * Writes threshold state for checkpoint, see {@link StepCounter#writeState(DataOutput)}.
+	 */
+	void writeState(DataOutput out) throws IOException {
+		out.writeInt(windowSize);
+		out.writeFloat(measuredMinValue);
+		out.writeFloat(measuredMaxValue);
+		out.writeFloat(currentMinValue);
+		out.writeFloat(currentMaxValue);
+		out.writeInt(sampleCount);
+		out.writeFloat(minValue);
+		out.writeFloat(maxValue);
+		out.writeBoolean(isFirstSample);
+		out.writeFloat(firstSample);
+		out.writeBoolean(isFirstWindow);
+		out.writeBoolean(isWindowCompleted);
+	}
+
+	void readState(DataInput in) throws IOException {
+		StepCounter.checkState("threshold window", windowSize, in.readInt());
+		measuredMinValue = in.readFloat();
+		measuredMaxValue = in.readFloat();
+		currentMinValue = in.readFloat();
+		currentMaxValue = in.readFloat();
+		sampleCount = StepCounter.checkIndex(in.readInt(), windowSize);
+		minValue = in.readFloat();
+		maxValue = in.readFloat();
+		isFirstSample = in.readBoolean();
+		firstSample = in.readFloat();
+		isFirstWindow = in.readBoolean();
+		isWindowCompleted = in.readBoolean();
+	}
+
+	/**
+	 * The sample does not come from settling DC filter, so the 1st window is not handled specially
+	 */
+	public void restart(float value) {
+		isFirstSample = false;
+		isFirstWindow = false;
+		isWindowCompleted = false;
+		sampleCount = 0;
+		setMinMaxValues(value);
+		minValue = maxValue = 0;
+	}
+
 	private boolean isFirstSampleEqualToMinOrMaxValue() {
 		return (firstSample == measuredMinValue) || (firstSample == measuredMaxValue);
 	}
@@ -124,6 +177,13 @@ public class Threshold {
 		return maxValue;
 	}
 	
+	/**
+	 * Returns true if the last pushed sample completed measuring window
+	 */
+	public boolean isWindowCompleted() {
+		return isWindowCompleted;
+	}
+
 	public float getThresholdValue() {
 		return (minValue + maxValue)/2;
 	}
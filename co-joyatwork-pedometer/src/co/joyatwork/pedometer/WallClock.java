@@ -0,0 +1,14 @@
+package co.joyatwork.pedometer;
+
+/**
+ * Wall clock, time in ms since epoch. It is not monotonic (can be adjusted by user or network),
+ * use it only where calendar time matters, e.g. {@link StepTimeSeries}.
+ */
+public class WallClock implements Clock {
+
+	@Override
+	public long getTimeInMilis() {
+		return System.currentTimeMillis();
+	}
+
+}